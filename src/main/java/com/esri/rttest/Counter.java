@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Count used by the senders and sinks.
+ * Any number of threads can add (LongAdder; contended updates go to padded per-thread cells so
+ * the writers do not share a cache line). Any thread can read.
+ *
+ * The adder is never cleared; reset() records the total at the time of the reset and counts are relative
+ * to it.  This gives snapshot-and-reset without losing an add that happens during the reset
+ * (LongAdder.sumThenReset can lose concurrent adds). reset() and getAndReset() should only be called from one thread.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author david
+ */
+public class Counter {
+
+    private final LongAdder adder = new LongAdder();
+
+    // Total at the last reset
+    private volatile long resetTotal;
+
+    public void increment() {
+        adder.increment();
+    }
+
+    public void add(long n) {
+        adder.add(n);
+    }
+
+    /**
+     *
+     * @return Count since the last reset
+     */
+    public long get() {
+        return adder.sum() - resetTotal;
+    }
+
+    /**
+     * Snapshot and reset. Adds that happen at the same time are counted in this snapshot or the next, never lost.
+     *
+     * @return Count since the last reset
+     */
+    public long getAndReset() {
+        long total = adder.sum();
+        long cnt = total - resetTotal;
+        resetTotal = total;
+        return cnt;
+    }
+
+    public void reset() {
+        getAndReset();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Epoch time in nanoseconds for end-to-end latency.
+ * System.currentTimeMillis only has ms resolution; this clock is calibrated against it once (at the edge of a ms tick)
+ * and then advanced with System.nanoTime.  It does not follow later adjustments of the system clock so for long
+ * tests restart the tools after the clocks are synchronized.
+ *
+ * The sender and sink clocks must be synchronized (NTP or chrony) for the latency to mean anything; on
+ * the same machine no synchronization is needed.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+/**
+ *
+ * @author david
+ */
+public final class EpochClock {
+
+    private static final long BASE_EPOCH_NANOS;
+    private static final long BASE_NANO_TIME;
+
+    static {
+        // Wait for the ms to change so the base is accurate to the resolution of nanoTime
+        long ms = System.currentTimeMillis();
+        long now;
+        long nanos;
+        do {
+            now = System.currentTimeMillis();
+            nanos = System.nanoTime();
+        } while (now == ms);
+        BASE_EPOCH_NANOS = now * 1000000L;
+        BASE_NANO_TIME = nanos;
+    }
+
+    private EpochClock() {
+    }
+
+    /**
+     *
+     * @return Nanoseconds since the epoch
+     */
+    public static long nowNanos() {
+        return toEpochNanos(System.nanoTime());
+    }
+
+    /**
+     *
+     * @param nanoTime Value from System.nanoTime() (e.g. the intended send time from RatePacer)
+     * @return Nanoseconds since the epoch
+     */
+    public static long toEpochNanos(long nanoTime) {
+        return BASE_EPOCH_NANOS + (nanoTime - BASE_NANO_TIME);
+    }
+
+}
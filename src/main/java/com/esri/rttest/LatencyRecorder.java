@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Latency histogram for one thread.
+ * The owning thread records values with record(); recording is wait free (HdrHistogram Recorder)
+ * so it does not slow down the sender.  The reporting thread calls takeInterval() on each thread's
+ * recorder and merges the intervals into one Histogram.
+ *
+ * Latency should be measured from the intended start time (e.g. from RatePacer) not the time the
+ * request was actually sent; otherwise time spent waiting behind a slow request is not counted
+ * (coordinated omission).
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ *
+ * @author david
+ */
+public class LatencyRecorder {
+
+    // Values larger than this are recorded as this
+    public static final long HIGHEST_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder recorder = new Recorder(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+
+    // Returned to the recorder on the next takeInterval
+    private Histogram interval;
+
+    /**
+     * Records latency from startNanos to now.
+     *
+     * @param startNanos System.nanoTime() when the request should have started.
+     */
+    public void record(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        } else if (nanos > HIGHEST_NANOS) {
+            nanos = HIGHEST_NANOS;
+        }
+        recorder.recordValue(nanos);
+    }
+
+    /**
+     * Values recorded since the last call. Only call from one (reporting) thread.
+     * The histogram returned is reused on the next call; add it to another histogram before calling again.
+     *
+     * @return
+     */
+    public Histogram takeInterval() {
+        interval = recorder.getIntervalHistogram(interval);
+        return interval;
+    }
+
+    public static Histogram newHistogram() {
+        return new Histogram(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     *
+     * @param h
+     * @return p50,p99,p99.9,max in ms
+     */
+    public static String format(Histogram h) {
+        return String.format("%.3f,%.3f,%.3f,%.3f",
+                h.getValueAtPercentile(50.0) / 1_000_000.0,
+                h.getValueAtPercentile(99.0) / 1_000_000.0,
+                h.getValueAtPercentile(99.9) / 1_000_000.0,
+                h.getMaxValue() / 1_000_000.0);
+    }
+
+}
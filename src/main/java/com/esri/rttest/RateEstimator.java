@@ -0,0 +1,380 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+ /*
+ * Rate of a count from samples (time, count) in constant memory; replaces the SimpleRegression and the HashMap of
+ * every sample the monitors and sinks kept for the whole run.
+ *
+ * - Whole run: linear regression (slope is the rate) and the standard error of the slope from running sums
+ *   (updated like SimpleRegression; centered so long runs do not lose precision).
+ * - Rolling: rate over the last 10s, 60s and 5m from a ring of the recent samples.  The ring holds enough samples
+ *   for the longest window at the sample period; each window keeps the index of its oldest sample and moves it
+ *   forward as samples are added.
+ * - Average: (last count - first count) / (last time - first time).
+ *
+ * Every update is O(1) (amortized; the window indexes only move forward).
+ *
+ * If rejectOutliers is true a sample whose residual from the current fit is more than OUTLIER_SIGMAS standard
+ * deviations is held back from the regression.  If the next sample fits again the held sample is rejected (e.g. a
+ * count that stalled during a GC pause or an index refresh and then caught up); if the next sample is off too the
+ * rate changed and both are added.  So the regression lags one sample while a sample is held.
+ * Rejected samples are still used for the rolling and average rates.
+ *
+ * Not thread safe; used by the one thread that takes the samples.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+/**
+ *
+ * @author david
+ */
+public class RateEstimator {
+
+    public static final long[] WINDOWS_MS = {10000L, 60000L, 300000L};
+
+    // Samples in the fit before outliers are rejected
+    private static final int MIN_SAMPLES_FOR_REJECT = 5;
+    private static final double OUTLIER_SIGMAS = 4.0;
+
+    private final boolean rejectOutliers;
+    private final double samplePeriodSec;
+
+    // Ring of recent samples; seq is the number of samples added, the newest is at (seq - 1) % capacity
+    private final int capacity;
+    private final long[] times;
+    private final long[] counts;
+    private long seq;
+
+    // Oldest sample (seq) in each window
+    private final long[] windowTail = new long[WINDOWS_MS.length];
+
+    private long firstTime;
+    private long firstCount;
+
+    // Regression of (seconds since firstTime, count - firstCount)
+    private long n;
+    private double xbar;
+    private double ybar;
+    private double sumXX;
+    private double sumXY;
+    private double sumYY;
+
+    private long rejected;
+
+    // Outlier held until the next sample
+    private boolean held;
+    private double heldX;
+    private double heldY;
+
+    /**
+     *
+     * @param samplePeriodMs Time between samples; sizes the ring for the longest window
+     * @param rejectOutliers If true outliers are left out of the regression
+     */
+    public RateEstimator(long samplePeriodMs, boolean rejectOutliers) {
+        long longest = WINDOWS_MS[WINDOWS_MS.length - 1];
+        // One more than the samples in the window so the window can span all of it; room for some jitter
+        long cap = longest / Math.max(samplePeriodMs, 1) + 3;
+        this.capacity = (int) Math.min(cap, 1 << 20);
+        this.times = new long[capacity];
+        this.counts = new long[capacity];
+        this.rejectOutliers = rejectOutliers;
+        this.samplePeriodSec = samplePeriodMs / 1000.0;
+        reset();
+    }
+
+    public RateEstimator(long samplePeriodMs) {
+        this(samplePeriodMs, false);
+    }
+
+    public final void reset() {
+        seq = 0;
+        for (int i = 0; i < windowTail.length; i++) {
+            windowTail[i] = 0;
+        }
+        firstTime = 0L;
+        firstCount = 0L;
+        n = 0;
+        xbar = 0.0;
+        ybar = 0.0;
+        sumXX = 0.0;
+        sumXY = 0.0;
+        sumYY = 0.0;
+        rejected = 0;
+        held = false;
+    }
+
+    private int slot(long s) {
+        return (int) (s % capacity);
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param timeMs Epoch ms of the sample
+     * @param count
+     * @return false if the sample is held back from the regression as a possible outlier
+     */
+    public boolean add(long timeMs, long count) {
+        if (seq == 0) {
+            firstTime = timeMs;
+            firstCount = count;
+        }
+
+        int i = slot(seq);
+        times[i] = timeMs;
+        counts[i] = count;
+        seq++;
+
+        // The ring overwrote the oldest sample
+        long oldest = Math.max(0, seq - capacity);
+        for (int w = 0; w < WINDOWS_MS.length; w++) {
+            long start = timeMs - WINDOWS_MS[w];
+            long tail = Math.max(windowTail[w], oldest);
+            // Keep the newest sample at or before the start of the window so the window is fully covered
+            while (tail < seq - 1 && times[slot(tail + 1)] <= start) {
+                tail++;
+            }
+            windowTail[w] = tail;
+        }
+
+        double x = (timeMs - firstTime) / 1000.0;
+        double y = count - firstCount;
+
+        if (!rejectOutliers) {
+            addToFit(x, y);
+            return true;
+        }
+
+        boolean outlier = isOutlier(x, y);
+        if (held) {
+            held = false;
+            if (outlier) {
+                // Two in a row; the rate changed
+                addToFit(heldX, heldY);
+                addToFit(x, y);
+                return true;
+            }
+            rejected++;
+        } else if (outlier) {
+            held = true;
+            heldX = x;
+            heldY = y;
+            return false;
+        }
+        addToFit(x, y);
+        return true;
+    }
+
+    private boolean isOutlier(double x, double y) {
+        if (n < MIN_SAMPLES_FOR_REJECT || sumXX == 0.0) {
+            return false;
+        }
+        double slope = sumXY / sumXX;
+        double mse = (sumYY - sumXY * sumXY / sumXX) / (n - 2);
+        double residual = y - (ybar + slope * (x - xbar));
+        // A sample off by less than half a period's count is never an outlier (a near perfect fit has a tiny mse)
+        double limit = Math.max(OUTLIER_SIGMAS * Math.sqrt(Math.max(mse, 0.0)), Math.max(Math.abs(slope) * samplePeriodSec / 2.0, 1.0));
+        return Math.abs(residual) > limit;
+    }
+
+    private void addToFit(double x, double y) {
+        if (n == 0) {
+            xbar = x;
+            ybar = y;
+        } else {
+            double fact1 = 1.0 + n;
+            double fact2 = n / (1.0 + n);
+            double dx = x - xbar;
+            double dy = y - ybar;
+            sumXX += dx * dx * fact2;
+            sumYY += dy * dy * fact2;
+            sumXY += dx * dy * fact2;
+            xbar += dx / fact1;
+            ybar += dy / fact1;
+        }
+        n++;
+    }
+
+    private void removeFromFit(double x, double y) {
+        if (n <= 1) {
+            n = 0;
+            xbar = 0.0;
+            ybar = 0.0;
+            sumXX = 0.0;
+            sumXY = 0.0;
+            sumYY = 0.0;
+            return;
+        }
+        double fact1 = n - 1.0;
+        double fact2 = n / (n - 1.0);
+        double dx = x - xbar;
+        double dy = y - ybar;
+        sumXX -= dx * dx * fact2;
+        sumYY -= dy * dy * fact2;
+        sumXY -= dx * dy * fact2;
+        xbar -= dx / fact1;
+        ybar -= dy / fact1;
+        n--;
+    }
+
+    /**
+     * Removes the last sample added (e.g. the sample at the end of a test when the count stopped increasing).
+     * Only the last sample can be removed; call once between adds.
+     */
+    public void removeLast() {
+        if (seq == 0) {
+            return;
+        }
+        int i = slot(seq - 1);
+        if (held) {
+            held = false;
+        } else {
+            removeFromFit((times[i] - firstTime) / 1000.0, counts[i] - firstCount);
+        }
+        seq--;
+        if (seq == 0) {
+            reset();
+            return;
+        }
+
+        // Move the windows back to cover the window before the new last sample; the removed sample overwrote one slot
+        long oldest = Math.max(0, seq + 1 - capacity);
+        long headTime = times[slot(seq - 1)];
+        for (int w = 0; w < WINDOWS_MS.length; w++) {
+            long start = headTime - WINDOWS_MS[w];
+            long tail = Math.min(windowTail[w], seq - 1);
+            while (tail > oldest && times[slot(tail)] > start) {
+                tail--;
+            }
+            windowTail[w] = tail;
+        }
+    }
+
+    /**
+     *
+     * @return Number of samples added (less any removed)
+     */
+    public long getNumSamples() {
+        return seq;
+    }
+
+    /**
+     *
+     * @return Number of samples in the regression
+     */
+    public long getNumFit() {
+        return n;
+    }
+
+    /**
+     *
+     * @return Number of samples left out of the regression
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     *
+     * @return Regression rate (per second) of the whole run; NaN if fewer than 2 samples
+     */
+    public double getRate() {
+        if (n < 2 || sumXX == 0.0) {
+            return Double.NaN;
+        }
+        return sumXY / sumXX;
+    }
+
+    /**
+     *
+     * @return Standard error of the regression rate (per second); NaN if fewer than 3 samples
+     */
+    public double getRateStdErr() {
+        if (n < 3 || sumXX == 0.0) {
+            return Double.NaN;
+        }
+        double mse = (sumYY - sumXY * sumXY / sumXX) / (n - 2);
+        return Math.sqrt(Math.max(mse, 0.0) / sumXX);
+    }
+
+    /**
+     *
+     * @param w Index in WINDOWS_MS
+     * @return Rate (per second) over the window; over all the samples if the run is shorter than the window.
+     * NaN if fewer than 2 samples
+     */
+    public double getRollingRate(int w) {
+        if (seq < 2) {
+            return Double.NaN;
+        }
+        int head = slot(seq - 1);
+        int tail = slot(windowTail[w]);
+        long dt = times[head] - times[tail];
+        if (dt <= 0) {
+            return Double.NaN;
+        }
+        return (double) (counts[head] - counts[tail]) / (double) dt * 1000.0;
+    }
+
+    /**
+     *
+     * @return (last count - first count) / (last time - first time) per second; NaN if fewer than 2 samples
+     */
+    public double getAverageRate() {
+        if (seq < 2) {
+            return Double.NaN;
+        }
+        int head = slot(seq - 1);
+        long dt = times[head] - firstTime;
+        if (dt <= 0) {
+            return Double.NaN;
+        }
+        return (double) (counts[head] - firstCount) / (double) dt * 1000.0;
+    }
+
+    /**
+     *
+     * @return Count of the last sample less the count of the first
+     */
+    public long getCount() {
+        return seq == 0 ? 0 : counts[slot(seq - 1)] - firstCount;
+    }
+
+    /**
+     *
+     * @param sep Separator
+     * @return 10s, 60s and 5m rates (%.0f) separated by sep; empty values if not enough samples
+     */
+    public String formatRollingRates(String sep) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < WINDOWS_MS.length; w++) {
+            if (w > 0) {
+                sb.append(sep);
+            }
+            double r = getRollingRate(w);
+            if (!Double.isNaN(r)) {
+                sb.append(String.format("%.0f", r));
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+ /*
+ * Samples a count at a fixed period for the monitors and sinks (replaces java.util.Timer).
+ *
+ * A ticker thread fires at a fixed rate (any number of ms; sub-second periods are fine) and hands the poll to
+ * a poll thread.  The ticker never waits for a poll so a slow poll does not shift the later samples.
+ * Only one poll is outstanding at a time; a tick that comes while the previous poll is still running is
+ * skipped (counted and logged) instead of queuing polls up behind a slow server.
+ *
+ * System.nanoTime is read before the poll is started and after the count is returned.  The time of the
+ * sample is the middle of the two so the time the poll took does not skew the rate regression.
+ *
+ * The listener is called on the poll thread, one sample at a time.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class Sampler {
+
+    private static final Logger LOG = LogManager.getLogger(Sampler.class);
+
+    /**
+     * Gets the current count (e.g. an http or sql count, or the sum of the sink counters).
+     */
+    public interface Source {
+
+        long count() throws Exception;
+    }
+
+    public interface Listener {
+
+        void onSample(Sample sample);
+    }
+
+    public static final class Sample {
+
+        public final long count;
+        // System.nanoTime() before the poll started and after it returned
+        public final long startNanos;
+        public final long endNanos;
+
+        Sample(long count, long startNanos, long endNanos) {
+            this.count = count;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        /**
+         *
+         * @return Epoch ms at the middle of the poll
+         */
+        public long getTimeMillis() {
+            return EpochClock.toEpochNanos(startNanos + (endNanos - startNanos) / 2) / 1000000L;
+        }
+
+        /**
+         *
+         * @return Time the poll took
+         */
+        public long getPollNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    private final String name;
+    private final long periodMs;
+    private final Source source;
+    private final Listener listener;
+
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService poller;
+
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     *
+     * @param name Used to name the threads
+     * @param periodMs Time between samples
+     * @param source
+     * @param listener
+     */
+    public Sampler(String name, long periodMs, Source source, Listener listener) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Sample period must be greater than 0 ms: " + periodMs);
+        }
+        this.name = name;
+        this.periodMs = periodMs;
+        this.source = source;
+        this.listener = listener;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(threadFactory(name + "-ticker"));
+        this.poller = Executors.newSingleThreadExecutor(threadFactory(name + "-poll"));
+    }
+
+    // Not daemon threads; like Timer they keep the monitor running after main returns
+    private static ThreadFactory threadFactory(String threadName) {
+        return r -> new Thread(r, threadName);
+    }
+
+    /**
+     * Seconds (e.g. 5 or 0.25) to ms.
+     *
+     * @param seconds
+     * @return
+     */
+    public static long parsePeriodMillis(String seconds) {
+        long ms = Math.round(Double.parseDouble(seconds) * 1000.0);
+        if (ms <= 0) {
+            throw new IllegalArgumentException("Sample period must be at least 1 ms: " + seconds);
+        }
+        return ms;
+    }
+
+    public void start() {
+        ticker.scheduleAtFixedRate(this::tick, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+        poller.shutdownNow();
+    }
+
+    /**
+     *
+     * @return Number of ticks skipped because the previous poll was still running
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private void tick() {
+        if (!polling.compareAndSet(false, true)) {
+            long n = skipped.incrementAndGet();
+            LOG.warn(name + " poll took longer than the sample period (" + periodMs + " ms); skipped sample (" + n + " skipped)");
+            return;
+        }
+        try {
+            poller.execute(this::poll);
+        } catch (RuntimeException e) {
+            // Rejected after stop
+            polling.set(false);
+        }
+    }
+
+    private void poll() {
+        try {
+            long start = System.nanoTime();
+            long count = source.count();
+            long end = System.nanoTime();
+            listener.onSample(new Sample(count, start, end));
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        } finally {
+            polling.set(false);
+        }
+    }
+
+}
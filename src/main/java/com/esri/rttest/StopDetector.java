@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+ /*
+ * Decides when a count has stopped increasing for the monitors.
+ *
+ * The monitors used to end a count as soon as one sample was equal to the one before.  At short sample periods a
+ * count that only changes now and then (e.g. an index with a 1s refresh_interval sampled every 250ms) has equal
+ * samples in the middle of a run.  A count is only over when it has not changed for stopAfterMs; at least
+ * MIN_PERIODS sample periods.
+ *
+ * The samples taken while the count is not changing are held.  If the count changes again they are part of the run
+ * and are added to the RateEstimator (addHeld) before the new sample, so a stall is handled by its outlier rejection
+ * instead of ending the run; if the count is over they are dropped.
+ *
+ * Not thread safe; used by the one thread that takes the samples.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author david
+ */
+public class StopDetector {
+
+    public static final int MIN_PERIODS = 2;
+    public static final long DEFAULT_STOP_AFTER_MS = 5000L;
+
+    private final long stopAfterMs;
+
+    // Time of the last sample the count changed; 0 if none
+    private long lastChangeMs;
+
+    // Times of the samples since the last change
+    private long[] heldTimes = new long[16];
+    private int numHeld;
+
+    /**
+     *
+     * @param samplePeriodMs Time between samples
+     * @param stopAfterMs A count is over after this long without a change; at least MIN_PERIODS sample periods
+     */
+    public StopDetector(long samplePeriodMs, long stopAfterMs) {
+        this.stopAfterMs = Math.max(MIN_PERIODS * samplePeriodMs, stopAfterMs);
+        reset();
+    }
+
+    public final void reset() {
+        lastChangeMs = 0L;
+        numHeld = 0;
+    }
+
+    /**
+     * The count changed.
+     *
+     * @param timeMs Time of the sample
+     */
+    public void changed(long timeMs) {
+        lastChangeMs = timeMs;
+    }
+
+    /**
+     * The count did not change.
+     *
+     * @param timeMs Time of the sample
+     * @return true if the count has not changed for stopAfterMs (the count is over)
+     */
+    public boolean isStopped(long timeMs) {
+        return timeMs - lastChangeMs >= stopAfterMs;
+    }
+
+    /**
+     * Holds a sample that did not change the count (the count is not over).
+     *
+     * @param timeMs Time of the sample
+     */
+    public void hold(long timeMs) {
+        if (numHeld == heldTimes.length) {
+            heldTimes = Arrays.copyOf(heldTimes, heldTimes.length * 2);
+        }
+        heldTimes[numHeld++] = timeMs;
+    }
+
+    /**
+     * The count changed again; adds the held samples to rates.
+     *
+     * @param rates
+     * @param count Count of the held samples (the count before the change)
+     * @return Number of samples added
+     */
+    public int addHeld(RateEstimator rates, long count) {
+        int n = numHeld;
+        for (int i = 0; i < n; i++) {
+            rates.add(heldTimes[i], count);
+        }
+        numHeld = 0;
+        return n;
+    }
+
+    public long getStopAfterMs() {
+        return stopAfterMs;
+    }
+
+}
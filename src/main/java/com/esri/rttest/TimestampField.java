@@ -0,0 +1,306 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Position of the send time stamped in each line for end-to-end latency.
+ * The senders stamp lines with stamp(); the sinks read the stamp with extract() and record now - stamp.
+ *
+ * Spec (same on the sender and the sink):
+ *   csv:N         field N (zero based) of a csv line; csv or csv:-1 is a new last field.  A line with fewer fields is
+ *                 stamped in a new last field and extract() reads the last field of it
+ *   json:name     field name of a json object; json is json:ts
+ *   add :ms to either to use epoch ms instead of epoch ns (e.g. csv:-1:ms, csv:ms, json:ms, json:time:ms)
+ *   true          csv:-1:ms (what Http append-time always did)
+ *
+ * extract() does not allocate; one scanner reads the bytes (or chars) of the line in place through an Accessor.
+ * stamp() only allocates the stamped line; the prefixes are built once and the digits are written into the line.
+ * A json line without a closing brace (e.g. a blank line) is sent without a stamp.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author david
+ */
+public class TimestampField {
+
+    public enum Format {
+        CSV,
+        JSON
+    }
+
+    private final Format format;
+
+    // Field of a csv line; -1 for the last field
+    private final int csvIndex;
+
+    // "name" including the quotes
+    private final byte[] jsonKey;
+
+    private final boolean millis;
+
+    // Inserted before the value; json: "name": for an empty object and ,"name": after other fields
+    private static final byte[] CSV_PREFIX = {','};
+    private final byte[] jsonPrefix;
+    private final byte[] jsonPrefixEmpty;
+
+    public TimestampField(Format format, int csvIndex, String jsonName, boolean millis) {
+        this.format = format;
+        this.csvIndex = csvIndex;
+        this.jsonKey = ("\"" + jsonName + "\"").getBytes(StandardCharsets.UTF_8);
+        this.millis = millis;
+        this.jsonPrefixEmpty = ("\"" + jsonName + "\":").getBytes(StandardCharsets.UTF_8);
+        this.jsonPrefix = (",\"" + jsonName + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @param spec
+     * @return null if spec is null, none, or false
+     */
+    public static TimestampField parse(String spec) {
+        if (spec == null || spec.equalsIgnoreCase("none") || spec.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (spec.equalsIgnoreCase("true")) {
+            return new TimestampField(Format.CSV, -1, "ts", true);
+        }
+        // The :ms suffix first so it is not taken for the field index or name
+        boolean millis = false;
+        if (spec.toLowerCase().endsWith(":ms")) {
+            millis = true;
+            spec = spec.substring(0, spec.length() - 3);
+        }
+        String parts[] = spec.split(":", 2);
+        Format format = Format.valueOf(parts[0].toUpperCase());
+        if (format == Format.CSV) {
+            int index = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            return new TimestampField(format, index, "ts", millis);
+        } else {
+            String name = parts.length > 1 && !parts[1].isEmpty() ? parts[1] : "ts";
+            return new TimestampField(format, -1, name, millis);
+        }
+    }
+
+    /**
+     * Copy of the line with the stamp added.
+     *
+     * @param line With or without the newline
+     * @param epochNanos Send time
+     * @return New line ending with a newline if line had a line terminator; the line itself if a json line has no closing brace
+     */
+    public ByteBuffer stamp(ByteBuffer line, long epochNanos) {
+        int start = line.position();
+        int end = line.limit();
+        while (end > start && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r')) {
+            end--;
+        }
+        boolean newline = end < line.limit();
+
+        long value = millis ? epochNanos / 1000000L : epochNanos;
+
+        // Insert the prefix, value, and suffix at pos
+        int pos = end;
+        byte[] prefix;
+        boolean suffix = false;
+
+        if (format == Format.CSV) {
+            // Start of field csvIndex; the line has fewer fields if not found
+            int field = -1;
+            if (csvIndex == 0) {
+                field = start;
+            }
+            int numCommas = 0;
+            for (int i = start; i < end && field < 0 && csvIndex > 0; i++) {
+                if (line.get(i) == ',' && ++numCommas == csvIndex) {
+                    field = i + 1;
+                }
+            }
+
+            if (field < 0) {
+                // Last field
+                prefix = CSV_PREFIX;
+            } else {
+                pos = field;
+                prefix = null;
+                suffix = true;
+            }
+        } else {
+            // Before the closing brace
+            int close = end - 1;
+            while (close >= start && line.get(close) != '}') {
+                close--;
+            }
+            if (close < start) {
+                // Not a json object (e.g. a blank line)
+                return line;
+            }
+            int prev = close - 1;
+            while (prev >= start && Character.isWhitespace(line.get(prev))) {
+                prev--;
+            }
+            pos = close;
+            boolean empty = prev < start || line.get(prev) == '{';
+            prefix = empty ? jsonPrefixEmpty : jsonPrefix;
+        }
+
+        int numDigits = numDigits(value);
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        byte[] stamped = new byte[end - start + prefixLength + numDigits + (suffix ? 1 : 0) + (newline ? 1 : 0)];
+
+        ByteBuffer src = line.duplicate();
+        src.limit(pos);
+        int n = pos - start;
+        src.get(stamped, 0, n);
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, stamped, n, prefixLength);
+            n += prefixLength;
+        }
+        n += numDigits;
+        for (int i = n - 1; i >= n - numDigits; i--) {
+            stamped[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        if (suffix) {
+            stamped[n++] = ',';
+        }
+        src.limit(end).position(pos);
+        int rest = end - pos;
+        src.get(stamped, n, rest);
+        n += rest;
+        if (newline) {
+            stamped[n] = '\n';
+        }
+        return ByteBuffer.wrap(stamped);
+    }
+
+    // Digits in a non negative value
+    private static int numDigits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private long toEpochNanos(long value) {
+        return millis ? value * 1000000L : value;
+    }
+
+    // Reads the character at an index of a line; one for byte[] lines and one for CharSequence lines
+    private interface Accessor {
+
+        int at(Object line, int i);
+    }
+
+    private static final Accessor BYTES = (line, i) -> ((byte[]) line)[i];
+
+    private static final Accessor CHARS = (line, i) -> ((CharSequence) line).charAt(i);
+
+    /**
+     * Reads the stamp from a line.
+     *
+     * @param b
+     * @param start First byte of the line
+     * @param end End of the line (exclusive); may include the newline
+     * @return Epoch nanos; -1 if the line does not have a stamp
+     */
+    public long extract(byte[] b, int start, int end) {
+        return extract(BYTES, b, start, end);
+    }
+
+    /**
+     * Reads the stamp from a line (e.g. a WebSocket text message).
+     *
+     * @param s
+     * @return Epoch nanos; -1 if the line does not have a stamp
+     */
+    public long extract(CharSequence s) {
+        return extract(CHARS, s, 0, s.length());
+    }
+
+    private long extract(Accessor a, Object line, int start, int end) {
+        while (end > start && (a.at(line, end - 1) == '\n' || a.at(line, end - 1) == '\r')) {
+            end--;
+        }
+
+        int pos = -1;
+
+        if (format == Format.CSV) {
+            int field = 0;
+            if (csvIndex > 0) {
+                pos = start;
+                while (field < csvIndex && pos < end) {
+                    if (a.at(line, pos++) == ',') {
+                        field++;
+                    }
+                }
+            }
+            if (csvIndex < 0 || field < csvIndex) {
+                // Last field; stamp() appends the value as a new last field if the line has fewer than csvIndex fields
+                pos = end;
+                while (pos > start && a.at(line, pos - 1) != ',') {
+                    pos--;
+                }
+            } else if (csvIndex == 0) {
+                pos = start;
+            }
+        } else {
+            // The key is followed by a colon; the same text as a value is skipped
+            for (int i = start; i + jsonKey.length <= end && pos < 0; i++) {
+                int k = 0;
+                while (k < jsonKey.length && a.at(line, i + k) == jsonKey[k]) {
+                    k++;
+                }
+                if (k == jsonKey.length) {
+                    int p = i + k;
+                    while (p < end && a.at(line, p) == ' ') {
+                        p++;
+                    }
+                    if (p < end && a.at(line, p) == ':') {
+                        pos = p + 1;
+                    }
+                }
+            }
+            if (pos < 0) {
+                return -1;
+            }
+        }
+
+        while (pos < end && (a.at(line, pos) == ' ' || a.at(line, pos) == '"')) {
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        int c;
+        while (pos < end && (c = a.at(line, pos)) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            pos++;
+            digits++;
+        }
+        return digits == 0 ? -1 : toEpochNanos(value);
+    }
+
+}
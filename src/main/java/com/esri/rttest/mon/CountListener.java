@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Watches the count polled by a monitor (ElasticIndexMon, SolrIndexMon, FeatureLayerMon, TimescaleSqlMon) and
+ * outputs the rates; each monitor had its own copy of this as CheckCount.
+ *
+ * When the count starts changing a row is output each sample.  When it has not changed for stopAfterMs (StopDetector)
+ * the last sample is removed and the totals are output.  Samples with the same count before that are held; if the
+ * count changes again they are added to the RateEstimator and its outlier rejection decides if they are used.
+ * A count that goes down starts over.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.StopDetector;
+
+/**
+ *
+ * @author david
+ */
+public class CountListener implements Sampler.Listener {
+
+    long cnt1 = 0;
+    long cnt2 = -1;
+    long startCount = 0;
+    long endCount = 0;
+    int numSamples = 0;
+    long t1 = 0L;
+    long t2 = 0L;
+    // Rates from the samples of the current count (constant memory)
+    RateEstimator rates;
+    // Ends the count after no change for stopAfterMs
+    StopDetector stop;
+    boolean sendStdout;
+
+    /**
+     *
+     * @param sampleRateMs
+     * @param sendStdout
+     * @param rejectOutliers Leave outlier samples out of the regression (RateEstimator)
+     * @param stopAfterMs A count is over after no change for this long (at least StopDetector.MIN_PERIODS samples)
+     */
+    public CountListener(long sampleRateMs, boolean sendStdout, boolean rejectOutliers, long stopAfterMs) {
+        this.sendStdout = sendStdout;
+        rates = new RateEstimator(sampleRateMs, rejectOutliers);
+        stop = new StopDetector(sampleRateMs, stopAfterMs);
+    }
+
+    boolean inCounting() {
+        return cnt1 > 0;
+    }
+
+    long getStartCount() {
+        return startCount;
+    }
+
+    long getEndCount() {
+        return endCount;
+    }
+
+    @Override
+    public void onSample(Sampler.Sample sample) {
+
+        cnt1 = sample.count;
+        t1 = sample.getTimeMillis();
+
+        if (cnt2 == -1) {
+            System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
+            System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|10s Rate|60s Rate|5m Rate|");
+            System.out.println("|-------------|-----|-----|----------------------|--------------------------|--------|--------|-------|");
+        }
+
+        if (cnt2 == -1 || cnt1 < cnt2) {
+            // If first count or count has gone down
+            cnt2 = cnt1;
+            stop.reset();
+            startCount = cnt1;
+            endCount = cnt1;
+            rates.reset();
+            numSamples = 0;
+
+        } else if (cnt1 > cnt2) {
+            // Add the samples held while the count did not change
+            numSamples += stop.addHeld(rates, cnt2);
+            stop.changed(t1);
+
+            // Increase number of samples
+            numSamples += 1;
+
+            // Add to the rate estimator (regression and rolling rates)
+            rates.add(t1, cnt1);
+
+            if (numSamples >= 2) {
+                double regRate = rates.getRate();
+                double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
+                if (sendStdout) {
+                    System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " | " + rates.formatRollingRates(" | ") + " |");
+                }
+            } else {
+                System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           | " + rates.formatRollingRates(" | ") + " |");
+            }
+
+        } else if (cnt1 == cnt2 && numSamples > 0 && !stop.isStopped(t1)) {
+            // Not changed yet; t2 stays at the time of the last change
+            stop.hold(t1);
+            return;
+
+        } else if (cnt1 == cnt2 && numSamples > 0) {
+
+            System.out.println("Count is no longer increasing...");
+
+            endCount = cnt1;
+
+            numSamples -= 1;
+            // Remove the last sample
+            rates.removeLast();
+            // Drop the samples held since the last change
+            stop.reset();
+
+            // Average Rate (first to last sample)
+            double avgRate = rates.getAverageRate();
+
+            if (sendStdout) {
+                System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
+            }
+
+            // Output Results
+            long cnt = cnt2 - startCount;
+            double regRate = rates.getRate();
+
+            if (numSamples >= 2) {
+                if (sendStdout) {
+                    System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f | Rate Std Err: %,.1f | Rejected Samples: %d\n\n", cnt, regRate, avgRate, rates.getRateStdErr(), rates.getRejected());
+                }
+            } else {
+                if (sendStdout) {
+                    System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
+                }
+            }
+
+            // Reset
+            cnt1 = -1;
+            cnt2 = -1;
+            t1 = 0L;
+            t2 = 0L;
+
+        }
+
+        cnt2 = cnt1;
+        t2 = t1;
+
+    }
+
+}
@@ -25,23 +25,46 @@
  * 30 Aug 2017: Started adding Logging to try to get rid of log messages on startup.
  * Didn't work. If however you add 2>/dev/null to end of command line the info messages are hidden.
  *
+ * 17 Oct 2026: Samples are taken by Sampler instead of a Timer; sampleRateSec can be a fraction (e.g. 0.5) and
+ *     the time of a sample is the middle of the end offsets request instead of after it returns.
+ *     The samples go to a RateEstimator (constant memory) instead of a SimpleRegression and a map of every sample;
+ *     10s, 60s and 5m rates are added to the table and the slope standard error and rejected samples (optional outlier
+ *     rejection) to the totals.
+ * 17 Oct 2026: The end offsets of all the partitions are fetched in one request (endOffsets) instead of assign,
+ *     seekToEnd and a position call for each partition.  The table adds the skew of the partitions (max/mean of the
+ *     partition counts) and the total lag of each consumer group (optional group-ids); the committed offsets of the
+ *     groups are requested (AdminClient) at the same time as the end offsets.  After a count a table of the count,
+ *     rate (measured from the partition's end offsets) and lag of each partition is output.
+ *     The count is over after it has not changed for stopAfterSec (StopDetector; at least two samples) instead of at
+ *     the first sample equal to the one before; a producer that pauses between bursts had equal samples in the middle
+ *     of a run.
+ *     The partitions of the topic are cached; they are requested again every METADATA_REFRESH_MS and after a sample
+ *     fails (e.g. partitions added or the topic deleted).  The committed offsets request of each group is limited to
+ *     the partitions of the topic.
+ *
  * Creator: David Jennings
  *
  */
 package com.esri.rttest.mon;
 
-import java.util.Collections;
-import java.util.HashMap;
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.StopDetector;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListConsumerGroupOffsetsOptions;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.logging.log4j.LogManager;
@@ -55,21 +78,37 @@ public class KafkaTopicMon {
 
     private static final Logger LOG = LogManager.getLogger(KafkaTopicMon.class);
 
-    // ******************* TimerTask Class ******************************
-    class CheckCount extends TimerTask {
+    // Time between requests for the partitions of the topic
+    static final long METADATA_REFRESH_MS = 30000L;
+
+    // ******************* Sampler Listener Class ******************************
+    class CheckCount implements Sampler.Listener {
 
         long cnt1 = 0;
         long cnt2 = -1;
         long startCount = 0;
         long endCount = 0;
         int numSamples = 0;
-        HashMap<Long, Long> samples;
         long t1 = 0L;
         long t2 = 0L;
-        SimpleRegression regression;
+        // Rates from the samples of the current count (constant memory)
+        RateEstimator rates;
+        // Ends the count after no change for stopAfterMs
+        StopDetector stop;
+        // End offset of each partition when the count started
+        TreeMap<Integer, Long> startEnds = new TreeMap<>();
+        // End offsets and times of the first, the one before the last, and the last sample the count increased;
+        // the rate of each partition is measured from them
+        TreeMap<Integer, Long> firstEnds;
+        TreeMap<Integer, Long> prevEnds;
+        TreeMap<Integer, Long> lastEnds;
+        long firstTime;
+        long prevTime;
+        long lastTime;
 
         public CheckCount() {
-            regression = new SimpleRegression();
+            rates = new RateEstimator(sampleRateMs, rejectOutliers);
+            stop = new StopDetector(sampleRateMs, stopAfterMs);
             cnt1 = 0;
             cnt2 = -1;
             startCount = 0;
@@ -87,10 +126,6 @@ public class KafkaTopicMon {
             }
         }
 
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
-
         long getStartCount() {
             return startCount;
         }
@@ -99,158 +134,269 @@ public class KafkaTopicMon {
             return endCount;
         }
 
-        @Override
-        public void run() {
-
-            try {
-                LOG.info("Checking Count");
-
-                List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
-                        .map(p -> new TopicPartition(topic, p.partition()))
-                        .collect(Collectors.toList());
-                consumer.assign(partitions);
-                consumer.seekToEnd(Collections.emptySet());
-                Map<TopicPartition, Long> endPartitions = partitions.stream()
-                        .collect(Collectors.toMap(Function.identity(), consumer::position));
-//              consumer.seekToBeginning(Collections.emptySet());
-//              cnt1 = partitions.stream().mapToLong(p -> endPartitions.get(p) - consumer.position(p)).sum();
-                Iterator itTP = endPartitions.entrySet().iterator();
-                cnt1 = 0;
-                while (itTP.hasNext()) {
-                    Map.Entry tp = (Map.Entry) itTP.next();
-                    cnt1 += (long) tp.getValue();
+        // partition -> count since the count started
+        TreeMap<Integer, Long> partitionCounts() {
+            TreeMap<Integer, Long> counts = new TreeMap<>();
+            for (Map.Entry<Integer, Long> entry : partitionEnds.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue() - startEnds.getOrDefault(entry.getKey(), 0L));
+            }
+            return counts;
+        }
+
+        // Rate (per second) of the partition from the first to the one before the last increasing sample (the last
+        // sample is removed like it is from the regression); NaN if there are not two samples
+        double partitionRate(int partition) {
+            if (firstEnds == null || prevEnds == null || prevTime <= firstTime) {
+                return Double.NaN;
+            }
+            long first = firstEnds.getOrDefault(partition, startEnds.getOrDefault(partition, 0L));
+            long prev = prevEnds.getOrDefault(partition, first);
+            return (double) (prev - first) / (double) (prevTime - firstTime) * 1000.0;
+        }
+
+        void resetPartitionRates() {
+            firstEnds = null;
+            prevEnds = null;
+            lastEnds = null;
+            firstTime = 0L;
+            prevTime = 0L;
+            lastTime = 0L;
+        }
+
+        // Max partition count / mean partition count; 1 if the partitions are even, the number of partitions if all
+        // the messages went to one partition
+        String skew() {
+            TreeMap<Integer, Long> counts = partitionCounts();
+            long max = 0;
+            long total = 0;
+            for (long c : counts.values()) {
+                max = Math.max(max, c);
+                total += c;
+            }
+            if (total <= 0) {
+                return "";
+            }
+            return String.format("%.2f", (double) max / ((double) total / (double) counts.size()));
+        }
+
+        // Total lag of each group separated by sep; - if the group has no committed offsets
+        String lags(String sep) {
+            StringBuilder sb = new StringBuilder();
+            for (String group : groups) {
+                sb.append(sep);
+                long lag = -1;
+                for (long l : groupLags.get(group).values()) {
+                    if (l >= 0) {
+                        lag = Math.max(lag, 0) + l;
+                    }
                 }
+                sb.append(lag >= 0 ? String.valueOf(lag) : "-");
+            }
+            return sb.toString();
+        }
 
-                t1 = System.currentTimeMillis();
-                if (cnt2 == -1) {
-                    System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
-                    System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|");
-                    System.out.println("|-------------|-----|-----|----------------------|--------------------------|");
+        @Override
+        public void onSample(Sampler.Sample sample) {
+
+            cnt1 = sample.count;
+            t1 = sample.getTimeMillis();
+            if (cnt2 == -1) {
+                System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
+                StringBuilder header = new StringBuilder("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|10s Rate|60s Rate|5m Rate|Skew|");
+                StringBuilder line = new StringBuilder("|-------------|-----|-----|----------------------|--------------------------|--------|--------|-------|----|");
+                for (String group : groups) {
+                    header.append("Lag ").append(group).append("|");
+                    line.append("---|");
                 }
+                System.out.println(header);
+                System.out.println(line);
+            }
 
-                if (cnt2 == -1 || cnt1 < cnt2) {
-                    cnt2 = cnt1;
-                    startCount = cnt1;
-                    endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
-                    numSamples = 0;
-
-                } else if (cnt1 > cnt2) {
-                    // Increase number of samples
-                    numSamples += 1;
-
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
-
-                    if (numSamples >= 2) {
-                        double regRate = regression.getSlope() * 1000;
-                        double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
-                        if (sendStdout) {
-                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |");
-                        }
-                    } else {
-                        System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |");
+            if (cnt2 == -1 || cnt1 < cnt2) {
+                cnt2 = cnt1;
+                stop.reset();
+                startCount = cnt1;
+                endCount = cnt1;
+                rates.reset();
+                numSamples = 0;
+                startEnds = new TreeMap<>(partitionEnds);
+                resetPartitionRates();
+
+            } else if (cnt1 > cnt2) {
+                // The end offsets moved again; the samples held during the pause are part of the run
+                numSamples += stop.addHeld(rates, cnt2);
+                stop.changed(t1);
+
+                // Increase number of samples
+                numSamples += 1;
+
+                // Add to the rate estimator (regression and rolling rates)
+                rates.add(t1, cnt1);
+
+                // partitionEnds is a new map each sample
+                if (firstEnds == null) {
+                    firstEnds = partitionEnds;
+                    firstTime = t1;
+                }
+                prevEnds = lastEnds;
+                prevTime = lastTime;
+                lastEnds = partitionEnds;
+                lastTime = t1;
+
+                if (numSamples >= 2) {
+                    double regRate = rates.getRate();
+                    double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
+                    if (sendStdout) {
+                        System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " | " + rates.formatRollingRates(" | ") + " | " + skew() + lags(" | ") + " |");
                     }
+                } else {
+                    System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           | " + rates.formatRollingRates(" | ") + " | " + skew() + lags(" | ") + " |");
+                }
 
-                } else if (cnt1 == cnt2 && numSamples > 0) {
+            } else if (cnt1 == cnt2 && numSamples > 0 && !stop.isStopped(t1)) {
+                // Not moved yet (e.g. the producer paused); t2 stays at the time of the last change
+                stop.hold(t1);
+                return;
 
-                    System.out.println("Count is no longer increasing...");
+            } else if (cnt1 == cnt2 && numSamples > 0) {
 
-                    endCount = cnt1;
+                System.out.println("Count is no longer increasing...");
 
-                    numSamples -= 1;
-                    // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
+                endCount = cnt1;
 
-                    // Calculate Average Rate
-                    long minTime = Long.MAX_VALUE;
-                    long maxTime = Long.MIN_VALUE;
-                    long minCount = Long.MAX_VALUE;
-                    long maxCount = Long.MIN_VALUE;
-                    for (Map.Entry pair : samples.entrySet()) {
-                        long time = (long) pair.getKey();
-                        long count = (long) pair.getValue();
-                        if (time < minTime) {
-                            minTime = time;
-                        }
-                        if (time > maxTime) {
-                            maxTime = time;
-                        }
-                        if (count < minCount) {
-                            minCount = count;
-                        }
-                        if (count > maxCount) {
-                            maxCount = count;
-                        }
-                    }
-                    double avgRate = (double) (maxCount - minCount) / (double) (maxTime - minTime) * 1000.0;
+                numSamples -= 1;
+                // Remove the last sample
+                rates.removeLast();
+                // Drop the samples held since the last change
+                stop.reset();
+
+                // Average Rate (first to last sample)
+                double avgRate = rates.getAverageRate();
+
+                if (sendStdout) {
+                    System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
+                }
+
+                // Output Results
+                long cnt = cnt2 - startCount;
 
+                double regRate = rates.getRate();
+
+                //if (numSamples > 5) {
+                //    double rateStdErr = regression.getSlopeStdErr();
+                //    if (sendStdout) {
+                //      System.out.format("%d , %.0f, %.4f\n", cnt, regRate, rateStdErr);
+                //        System.out.format("%d , %.0f\n", cnt, regRate);
+                //    }
+                //} else if (numSamples >= 2) {
+                if (numSamples >= 2) {
+                    if (sendStdout) {
+                        System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f | Rate Std Err: %,.1f | Rejected Samples: %d\n\n", cnt, regRate, avgRate, rates.getRateStdErr(), rates.getRejected());
+                    }
+                } else {
                     if (sendStdout) {
-                        System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
+                        System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
                     }
+                }
 
-                    // Output Results
-                    long cnt = cnt2 - startCount;
-
-                    double regRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-                    //if (numSamples > 5) {
-                    //    double rateStdErr = regression.getSlopeStdErr();
-                    //    if (sendStdout) {
-                    //      System.out.format("%d , %.0f, %.4f\n", cnt, regRate, rateStdErr);
-                    //        System.out.format("%d , %.0f\n", cnt, regRate);
-                    //    }
-                    //} else if (numSamples >= 2) {
-                    if (numSamples >= 2) {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f\n\n", cnt, regRate, avgRate);
+                if (sendStdout && cnt > 0) {
+                    // A hot partition limits the producers and consumers of the topic; the rate of each partition is
+                    // measured from its end offsets.  Lag is at the last sample; - if the group has no committed offset
+                    StringBuilder header = new StringBuilder("Partition,Count,Rate");
+                    for (String group : groups) {
+                        header.append(",Lag ").append(group);
+                    }
+                    System.out.println(header);
+                    for (Map.Entry<Integer, Long> entry : partitionCounts().entrySet()) {
+                        StringBuilder row = new StringBuilder();
+                        row.append(entry.getKey()).append(",").append(entry.getValue()).append(",");
+                        double rate = partitionRate(entry.getKey());
+                        if (!Double.isNaN(rate)) {
+                            row.append(String.format("%.0f", rate));
                         }
-                    } else {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
+                        for (String group : groups) {
+                            long lag = groupLags.get(group).getOrDefault(entry.getKey(), -1L);
+                            row.append(",").append(lag >= 0 ? String.valueOf(lag) : "-");
                         }
+                        System.out.println(row);
                     }
-
-                    // Reset 
-                    cnt1 = -1;
-                    cnt2 = -1;
-                    startCount = 0;
-                    numSamples = 0;
-                    t1 = 0L;
-                    t2 = 0L;
-                    regression = new SimpleRegression();
-
+                    System.out.println();
                 }
 
-                cnt2 = cnt1;
-                t2 = t1;
-            } catch (Exception e) {
-                LOG.error("ERROR", e);
+                // Reset 
+                cnt1 = -1;
+                cnt2 = -1;
+                startCount = 0;
+                numSamples = 0;
+                t1 = 0L;
+                t2 = 0L;
+                rates.reset();
+                resetPartitionRates();
 
             }
 
+            cnt2 = cnt1;
+            t2 = t1;
+
         }
 
     }
     // *****************************************************************
 
-    Timer timer;
+    Sampler sampler;
     String brokers;
     String topic;
-    long sampleRate;
+    long sampleRateMs;
     KafkaConsumer<String, String> consumer;
     boolean sendStdout;
+    // Leave outliers (e.g. a slow end offsets request or GC pause) out of the regression
+    boolean rejectOutliers;
+    // A count is over after no change for this long (at least StopDetector.MIN_PERIODS samples)
+    long stopAfterMs;
+    // Consumer groups to report the lag of; committed offsets are read with the AdminClient (null if no groups)
+    String[] groups;
+    AdminClient admin;
+    long requestTimeoutMs = 11000;
+
+    // Used on the sampler's poll thread only
+    // Partitions of the topic; from the last metadata request
+    List<TopicPartition> partitions = new ArrayList<>();
+    long metadataTime = 0L;
+    boolean refreshMetadata = true;
+
+    // Set by getCount and read by CheckCount; both run on the sampler's poll thread
+    // partition -> end offset
+    TreeMap<Integer, Long> partitionEnds = new TreeMap<>();
+    // group -> partition -> lag (-1 if the group has no committed offset for the partition)
+    Map<String, TreeMap<Integer, Long>> groupLags = new LinkedHashMap<>();
+
+    public KafkaTopicMon(String brokers, String topic, long sampleRateMs, boolean sendStdout, boolean rejectOutliers) {
+        this(brokers, topic, sampleRateMs, sendStdout, rejectOutliers, new String[0], StopDetector.DEFAULT_STOP_AFTER_MS);
+    }
 
-    public KafkaTopicMon(String brokers, String topic, long sampleRate, boolean sendStdout) {
+    /**
+     *
+     * @param brokers
+     * @param topic
+     * @param sampleRateMs
+     * @param sendStdout
+     * @param rejectOutliers
+     * @param groups Consumer group ids to report the lag of; empty for none
+     * @param stopAfterMs A count is over after no change for this long
+     */
+    public KafkaTopicMon(String brokers, String topic, long sampleRateMs, boolean sendStdout, boolean rejectOutliers, String[] groups, long stopAfterMs) {
 
         try {
             this.brokers = brokers;
             this.topic = topic;
-            this.sampleRate = sampleRate;
+            this.sampleRateMs = sampleRateMs;
             this.sendStdout = sendStdout;
+            this.rejectOutliers = rejectOutliers;
+            this.stopAfterMs = stopAfterMs;
+            this.groups = groups;
+            for (String group : groups) {
+                groupLags.put(group, new TreeMap<>());
+            }
 
             Properties props = new Properties();
 
@@ -262,7 +408,7 @@ public class KafkaTopicMon {
             props.put("auto.commit.interval.ms", 1000);
             props.put("auto.offset.reset", "earliest");
             props.put("session.timeout.ms", "10000");
-            props.put("request.timeout.ms", "11000");
+            props.put("request.timeout.ms", String.valueOf(requestTimeoutMs));
             props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
             props.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
 
@@ -287,6 +433,13 @@ public class KafkaTopicMon {
                 System.exit(-2);
             }
 
+            if (groups.length > 0) {
+                Properties adminProps = new Properties();
+                adminProps.put("bootstrap.servers", this.brokers);
+                adminProps.put("request.timeout.ms", String.valueOf(requestTimeoutMs));
+                admin = AdminClient.create(adminProps);
+            }
+
         } catch (TimeoutException e) {
             LOG.error("Could not connect to Kafka");
             System.exit(-1);
@@ -298,11 +451,74 @@ public class KafkaTopicMon {
 
     }
 
+    void updatePartitions() {
+        List<TopicPartition> tps = new ArrayList<>();
+        List<PartitionInfo> infos = consumer.partitionsFor(topic);
+        if (infos != null) {
+            for (PartitionInfo p : infos) {
+                tps.add(new TopicPartition(topic, p.partition()));
+            }
+        }
+        if (tps.size() != partitions.size()) {
+            LOG.info("Watching " + tps.size() + " partitions");
+        }
+        partitions = tps;
+        metadataTime = System.currentTimeMillis();
+        refreshMetadata = false;
+    }
+
+    long getCount() throws InterruptedException, ExecutionException, java.util.concurrent.TimeoutException {
+        LOG.info("Checking Count");
+
+        if (refreshMetadata || System.currentTimeMillis() - metadataTime >= METADATA_REFRESH_MS) {
+            updatePartitions();
+        }
+
+        // Committed offsets of each group.  The AdminClient asks for one group per request (a coordinator lookup and
+        // an OffsetFetch for each group), limited to the partitions of the topic; the requests are sent before the end
+        // offsets request so they are all outstanding at the same time
+        Map<String, KafkaFuture<Map<TopicPartition, OffsetAndMetadata>>> committed = new LinkedHashMap<>();
+        for (String group : groups) {
+            ListConsumerGroupOffsetsOptions options = new ListConsumerGroupOffsetsOptions().topicPartitions(partitions);
+            committed.put(group, admin.listConsumerGroupOffsets(group, options).partitionsToOffsetAndMetadata());
+        }
+
+        // End offsets of all the partitions in one request
+        Map<TopicPartition, Long> endOffsets;
+        try {
+            endOffsets = consumer.endOffsets(partitions);
+        } catch (RuntimeException e) {
+            // The partitions may have changed (e.g. UnknownTopicOrPartitionException); get them again before the next sample
+            refreshMetadata = true;
+            throw e;
+        }
+
+        TreeMap<Integer, Long> ends = new TreeMap<>();
+        long cnt = 0;
+        for (Map.Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+            ends.put(entry.getKey().partition(), entry.getValue());
+            cnt += entry.getValue();
+        }
+
+        for (Map.Entry<String, KafkaFuture<Map<TopicPartition, OffsetAndMetadata>>> entry : committed.entrySet()) {
+            Map<TopicPartition, OffsetAndMetadata> offsets = entry.getValue().get(requestTimeoutMs, TimeUnit.MILLISECONDS);
+            TreeMap<Integer, Long> lags = new TreeMap<>();
+            for (Map.Entry<Integer, Long> end : ends.entrySet()) {
+                OffsetAndMetadata offset = offsets.get(new TopicPartition(topic, end.getKey()));
+                lags.put(end.getKey(), offset == null ? -1L : Math.max(0L, end.getValue() - offset.offset()));
+            }
+            groupLags.put(entry.getKey(), lags);
+        }
+        partitionEnds = ends;
+
+        return cnt;
+    }
+
     public void run() {
         try {
 
-            timer = new Timer();
-            timer.schedule(new CheckCount(), 0, sampleRate * 1000);
+            sampler = new Sampler("KafkaTopicMon", sampleRateMs, this::getCount, new CheckCount());
+            sampler.start();
 
         } catch (Exception e) {
             LOG.error("ERROR", e);
@@ -314,22 +530,37 @@ public class KafkaTopicMon {
 
         String broker = "";
         String topic = "";
-        int sampleRateSec = 5; // default to 5 seconds.
+        long sampleRateMs = 5000; // default to 5 seconds.
         Boolean sendStdout = true;
+        boolean rejectOutliers = false;
+        String[] groups = new String[0];
+        long stopAfterMs = StopDetector.DEFAULT_STOP_AFTER_MS;
 
         LOG.info("Entering application.");
         int numargs = args.length;
-        if (numargs != 2 && numargs != 3) {
-            System.err.println("Usage: KakfaTopicMon [brokers] [topic] (sampleRateSec)");
+        if (numargs < 2 || numargs > 6) {
+            System.err.println("Usage: KakfaTopicMon [brokers] [topic] (sampleRateSec) (rejectOutliers=false) (group-ids) (stopAfterSec=5)");
+            System.err.println("rejectOutliers: true leaves outlier samples (e.g. a slow end offsets request or GC pause) out of the regression rate; defaults to false.");
+            System.err.println("group-ids: Comma separated consumer groups; the lag (end offset - committed offset) of each group is reported. Defaults to none; use none or an empty string with stopAfterSec.");
+            System.err.println("stopAfterSec: The count is over after it has not changed for this long (at least two samples); defaults to 5.");
             System.err.println("Example Command: java -cp target/rttest.jar com.esri.rttest.mon.KafkaTopicMon broker.kafka.l4lb.thisdcos.directory:9092 planes 30");
         } else {
             broker = args[0];
             topic = args[1];
-            if (numargs == 3) {
-                sampleRateSec = Integer.parseInt(args[2]);
+            if (numargs >= 3) {
+                sampleRateMs = Sampler.parsePeriodMillis(args[2]);
+            }
+            if (numargs >= 4) {
+                rejectOutliers = Boolean.parseBoolean(args[3]);
+            }
+            if (numargs >= 5 && !args[4].isEmpty() && !args[4].equalsIgnoreCase("none")) {
+                groups = args[4].split(",");
+            }
+            if (numargs == 6) {
+                stopAfterMs = Sampler.parsePeriodMillis(args[5]);
             }
 
-            KafkaTopicMon ktm = new KafkaTopicMon(broker, topic, sampleRateSec, sendStdout);
+            KafkaTopicMon ktm = new KafkaTopicMon(broker, topic, sampleRateMs, sendStdout, rejectOutliers, groups, stopAfterMs);
             ktm.run();
         }
 
@@ -0,0 +1,398 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+ /*
+ * Monitors many Kafka Topics (e.g. every topic of a pipeline) from one process.
+ * Like KafkaTopicMon each topic's count is watched and when the count is changing samples are collected; the rates
+ * of all the topics are output in one table.  After a topic's count has not changed for stopAfterSec its totals are
+ * output.
+ *
+ * The topics are a comma separated list of names or regular expressions (e.g. planes.*,satellites-in); a comma inside
+ * braces is part of the expression (e.g. planes-[0-9]{1,3}).
+ *
+ * The partitions of the matching topics are cached; the metadata (listTopics) is only requested on startup, every
+ * metadataRefreshSec and after a sample fails (e.g. a topic was deleted).  Each sample is one end offsets request
+ * for all the partitions of all the topics.
+ *
+ * 17 Oct 2026: The end offsets request waits at most one sample period (at least MIN_OFFSETS_TIMEOUT_MS) instead of the
+ *     consumer's default api timeout.  If it fails the topics are listed and it is retried in the same sample, so the
+ *     partitions of a deleted topic are dropped as soon as listTopics no longer returns it.
+ *     Commas inside braces (regex quantifiers such as {1,3}) no longer split the topics.
+ *
+ * Creator: David Jennings
+ *
+ */
+package com.esri.rttest.mon;
+
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.StopDetector;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaTopicsMon {
+
+    private static final Logger LOG = LogManager.getLogger(KafkaTopicsMon.class);
+
+    // Shortest wait for an end offsets request
+    static final long MIN_OFFSETS_TIMEOUT_MS = 1000L;
+
+    // Commas that separate the topics; a comma inside braces is part of a regex quantifier (e.g. {1,3})
+    static final String TOPIC_SEPARATOR = ",(?![^{}]*\\})";
+
+    // ******************* Count of one Topic ******************************
+    class TopicCount {
+
+        final String topic;
+        long cnt1 = 0;
+        long cnt2 = -1;
+        long startCount = 0;
+        int numSamples = 0;
+        long t1 = 0L;
+        long t2 = 0L;
+        // Rates from the samples of the current count (constant memory)
+        RateEstimator rates;
+        // Ends the count after no change for stopAfterMs
+        StopDetector stop;
+
+        TopicCount(String topic) {
+            this.topic = topic;
+            rates = new RateEstimator(sampleRateMs, rejectOutliers);
+            stop = new StopDetector(sampleRateMs, stopAfterMs);
+        }
+
+        void sample(long t, long cnt) {
+
+            cnt1 = cnt;
+            t1 = t;
+
+            if (cnt2 == -1 || cnt1 < cnt2) {
+                cnt2 = cnt1;
+                stop.reset();
+                startCount = cnt1;
+                rates.reset();
+                numSamples = 0;
+
+            } else if (cnt1 > cnt2) {
+                // This topic's samples held while its count did not change are part of the run
+                numSamples += stop.addHeld(rates, cnt2);
+                stop.changed(t1);
+
+                if (numSamples == 0 && headerNeeded) {
+                    printHeader();
+                }
+
+                // Increase number of samples
+                numSamples += 1;
+
+                // Add to the rate estimator (regression and rolling rates)
+                rates.add(t1, cnt1);
+
+                if (sendStdout) {
+                    if (numSamples >= 2) {
+                        double regRate = rates.getRate();
+                        double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
+                        System.out.println("| " + numSamples + " | " + t1 + " | " + topic + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " | " + rates.formatRollingRates(" | ") + " |");
+                    } else {
+                        System.out.println("| " + numSamples + " | " + t1 + " | " + topic + " | " + (cnt1 - startCount) + " |           |           | " + rates.formatRollingRates(" | ") + " |");
+                    }
+                }
+
+            } else if (cnt1 == cnt2 && numSamples > 0 && !stop.isStopped(t1)) {
+                // Not changed yet; t2 stays at the time of the last change
+                stop.hold(t1);
+                return;
+
+            } else if (cnt1 == cnt2 && numSamples > 0) {
+
+                numSamples -= 1;
+                // Remove the last sample
+                rates.removeLast();
+                // Drop the samples held since the last change
+                stop.reset();
+
+                long total = cnt2 - startCount;
+
+                if (sendStdout) {
+                    System.out.println(topic + ": Count is no longer increasing...");
+                    if (numSamples >= 2) {
+                        System.out.format("Topic: %s | Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f | Rate Std Err: %,.1f | Rejected Samples: %d\n\n", topic, total, rates.getRate(), rates.getAverageRate(), rates.getRateStdErr(), rates.getRejected());
+                    } else {
+                        System.out.format("Topic: %s | Total Count: %,d | Not enough samples Rate calculations. \n\n", topic, total);
+                    }
+                    headerNeeded = true;
+                }
+
+                // Reset; the next count starts from this count
+                startCount = cnt1;
+                numSamples = 0;
+                rates.reset();
+
+            }
+
+            cnt2 = cnt1;
+            t2 = t1;
+
+        }
+
+    }
+
+    // ******************* Sampler Listener Class ******************************
+    class CheckCount implements Sampler.Listener {
+
+        // topic -> count
+        Map<String, TopicCount> counts = new HashMap<>();
+
+        @Override
+        public void onSample(Sampler.Sample sample) {
+
+            if (counts.isEmpty()) {
+                System.out.println("Watching for changes in count of " + topicEnds.size() + " topics...  Use Ctrl-C to Exit.");
+            }
+
+            long t = sample.getTimeMillis();
+            for (Map.Entry<String, Long> entry : topicEnds.entrySet()) {
+                counts.computeIfAbsent(entry.getKey(), TopicCount::new).sample(t, entry.getValue());
+            }
+
+            // Topics no longer matched or deleted
+            counts.keySet().retainAll(topicEnds.keySet());
+
+        }
+
+    }
+    // *****************************************************************
+
+    Sampler sampler;
+    String brokers;
+    Pattern[] topicPatterns;
+    long sampleRateMs;
+    long metadataRefreshMs;
+    KafkaConsumer<String, String> consumer;
+    boolean sendStdout;
+    // Leave outliers (e.g. a slow end offsets request or GC pause) out of the regression
+    boolean rejectOutliers;
+    // A count is over after no change for this long (at least StopDetector.MIN_PERIODS samples)
+    long stopAfterMs;
+
+    // Used on the sampler's poll thread only
+    // Partitions of the matching topics; from the last metadata request
+    List<TopicPartition> partitions = new ArrayList<>();
+    long metadataTime = 0L;
+    boolean refreshMetadata = true;
+    // topic -> sum of the end offsets of its partitions; set by getCount and read by CheckCount
+    TreeMap<String, Long> topicEnds = new TreeMap<>();
+    boolean headerNeeded = true;
+
+    /**
+     *
+     * @param brokers
+     * @param topics Comma separated topic names or regular expressions
+     * @param sampleRateMs
+     * @param sendStdout
+     * @param rejectOutliers
+     * @param metadataRefreshMs Time between requests for the partitions of the topics
+     * @param stopAfterMs A topic's count is over after no change for this long
+     */
+    public KafkaTopicsMon(String brokers, String topics, long sampleRateMs, boolean sendStdout, boolean rejectOutliers, long metadataRefreshMs, long stopAfterMs) {
+
+        try {
+            this.brokers = brokers;
+            this.sampleRateMs = sampleRateMs;
+            this.sendStdout = sendStdout;
+            this.rejectOutliers = rejectOutliers;
+            this.metadataRefreshMs = metadataRefreshMs;
+            this.stopAfterMs = stopAfterMs;
+
+            String[] parts = topics.split(TOPIC_SEPARATOR);
+            topicPatterns = new Pattern[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                topicPatterns[i] = Pattern.compile(parts[i].trim());
+            }
+
+            Properties props = new Properties();
+
+            // https://kafka.apache.org/documentation/#consumerconfigs
+            // Only metadata and end offsets are requested; the consumer never joins the group or fetches records
+            props.put("bootstrap.servers", this.brokers);
+            props.put("group.id", "abc");
+            props.put("enable.auto.commit", "false");
+            props.put("session.timeout.ms", "10000");
+            props.put("request.timeout.ms", "11000");
+            props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+            props.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+
+            consumer = new KafkaConsumer<>(props);
+
+            updatePartitions();
+
+            if (partitions.isEmpty()) {
+                System.out.println("No topics found matching " + topics);
+                System.exit(-2);
+            }
+
+        } catch (TimeoutException e) {
+            LOG.error("Could not connect to Kafka");
+            System.exit(-1);
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+
+        }
+
+    }
+
+    boolean matches(String topic) {
+        // Internal topics (e.g. __consumer_offsets) are left out unless named
+        for (Pattern p : topicPatterns) {
+            if (p.matcher(topic).matches() && (!topic.startsWith("__") || p.pattern().startsWith("__"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One metadata request for all the topics
+    void updatePartitions() {
+        List<TopicPartition> tps = new ArrayList<>();
+        for (Map.Entry<String, List<PartitionInfo>> entry : consumer.listTopics().entrySet()) {
+            if (matches(entry.getKey())) {
+                for (PartitionInfo p : entry.getValue()) {
+                    tps.add(new TopicPartition(entry.getKey(), p.partition()));
+                }
+            }
+        }
+        if (tps.size() != partitions.size() || !tps.containsAll(partitions)) {
+            LOG.info("Watching " + tps.size() + " partitions");
+        }
+        partitions = tps;
+        metadataTime = System.currentTimeMillis();
+        refreshMetadata = false;
+    }
+
+    long getCount() {
+        LOG.info("Checking Count");
+
+        if (refreshMetadata || System.currentTimeMillis() - metadataTime >= metadataRefreshMs) {
+            updatePartitions();
+        }
+
+        // End offsets of all the partitions of all the topics in one request
+        Duration timeout = Duration.ofMillis(Math.max(sampleRateMs, MIN_OFFSETS_TIMEOUT_MS));
+        Map<TopicPartition, Long> endOffsets;
+        try {
+            endOffsets = consumer.endOffsets(partitions, timeout);
+        } catch (RuntimeException e) {
+            // The partitions may have changed (e.g. a topic deleted); get them again and retry once
+            LOG.warn("End offsets request failed; listing the topics again: " + e.getMessage());
+            List<TopicPartition> before = partitions;
+            refreshMetadata = true;
+            updatePartitions();
+            if (partitions.size() == before.size() && partitions.containsAll(before)) {
+                throw e;
+            }
+            endOffsets = consumer.endOffsets(partitions, timeout);
+        }
+
+        TreeMap<String, Long> ends = new TreeMap<>();
+        long cnt = 0;
+        for (Map.Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+            ends.merge(entry.getKey().topic(), entry.getValue(), Long::sum);
+            cnt += entry.getValue();
+        }
+        topicEnds = ends;
+
+        return cnt;
+    }
+
+    void printHeader() {
+        System.out.println("|Sample Number|Epoch|Topic|Count|Linear Regression Rate|Approx. Instantaneous Rate|10s Rate|60s Rate|5m Rate|");
+        System.out.println("|-------------|-----|-----|-----|----------------------|--------------------------|--------|--------|-------|");
+        headerNeeded = false;
+    }
+
+    public void run() {
+        try {
+
+            sampler = new Sampler("KafkaTopicsMon", sampleRateMs, this::getCount, new CheckCount());
+            sampler.start();
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+
+    }
+
+    public static void main(String[] args) {
+
+        String broker = "";
+        String topics = "";
+        long sampleRateMs = 5000; // default to 5 seconds.
+        Boolean sendStdout = true;
+        boolean rejectOutliers = false;
+        long metadataRefreshMs = 30000;
+        long stopAfterMs = StopDetector.DEFAULT_STOP_AFTER_MS;
+
+        LOG.info("Entering application.");
+        int numargs = args.length;
+        if (numargs < 2 || numargs > 6) {
+            System.err.println("Usage: KafkaTopicsMon [brokers] [topics] (sampleRateSec) (rejectOutliers=false) (metadataRefreshSec=30) (stopAfterSec=5)");
+            System.err.println("topics: Comma separated topic names or regular expressions (e.g. planes.*,satellites-in); a comma inside braces (e.g. planes-[0-9]{1,3}) is part of the expression.");
+            System.err.println("rejectOutliers: true leaves outlier samples (e.g. taken during a GC pause) out of the regression rate; defaults to false.");
+            System.err.println("metadataRefreshSec: Time between checks for new topics or partitions; defaults to 30.");
+            System.err.println("stopAfterSec: A topic's count is over after it has not changed for this long (at least two samples); defaults to 5.");
+            System.err.println("Example Command: java -cp target/rttest.jar com.esri.rttest.mon.KafkaTopicsMon broker.kafka.l4lb.thisdcos.directory:9092 planes.* 10");
+        } else {
+            broker = args[0];
+            topics = args[1];
+            if (numargs >= 3) {
+                sampleRateMs = Sampler.parsePeriodMillis(args[2]);
+            }
+            if (numargs >= 4) {
+                rejectOutliers = Boolean.parseBoolean(args[3]);
+            }
+            if (numargs >= 5) {
+                metadataRefreshMs = Sampler.parsePeriodMillis(args[4]);
+            }
+            if (numargs == 6) {
+                stopAfterMs = Sampler.parsePeriodMillis(args[5]);
+            }
+
+            KafkaTopicsMon ktm = new KafkaTopicsMon(broker, topics, sampleRateMs, sendStdout, rejectOutliers, metadataRefreshMs, stopAfterMs);
+            ktm.run();
+        }
+
+    }
+
+}
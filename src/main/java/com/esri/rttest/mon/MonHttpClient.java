@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Http client used by the monitors (ElasticIndexMon, SolrIndexMon, FeatureLayerMon) to poll counts.
+ *
+ * Created once per monitor and reused for every sample. The connections are pooled and kept alive so after the
+ * first sample a poll is one request on an open connection (no TCP or TLS handshake).  Basic credentials are sent
+ * with each request (preemptive) instead of waiting for a 401 challenge.  Connect and read timeouts keep a hung
+ * server from blocking the sampler forever.
+ *
+ * Like the monitors did before all certificates and host names are trusted.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ *
+ * @author david
+ */
+public class MonHttpClient {
+
+    private static final Logger LOG = LogManager.getLogger(MonHttpClient.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+
+    // A monitor only has one poll outstanding at a time; a couple spare for a poll that is being abandoned
+    private static final int MAX_CONNECTIONS = 4;
+
+    private final CloseableHttpClient httpClient;
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    // Basic authorization header value; null if no user
+    private final String authorization;
+
+    public MonHttpClient(String user, String userpw) {
+        this(user, userpw, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     *
+     * @param user null or empty for no credentials
+     * @param userpw
+     * @param connectTimeoutMs
+     * @param readTimeoutMs Max time waiting for the response
+     */
+    public MonHttpClient(String user, String userpw, int connectTimeoutMs, int readTimeoutMs) {
+
+        SSLContext sslContext;
+        try {
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+
+                @Override
+                public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                }
+            }}, new SecureRandom());
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new IllegalStateException(e);
+        }
+
+        connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
+                .build());
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        // Check connections idle for a while (closed by the server) before reusing them
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .build();
+
+        httpClient = HttpClients
+                .custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(60, TimeUnit.SECONDS)
+                .build();
+
+        if (user == null || user.isEmpty()) {
+            authorization = null;
+        } else {
+            String userpass = user + ":" + (userpw == null ? "" : userpw);
+            authorization = "Basic " + Base64.getEncoder().encodeToString(userpass.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Gets the url; the connection is returned to the pool once the body is read.
+     *
+     * @param url
+     * @return Body of the response
+     * @throws IOException On a connect or read timeout or a response other than 200
+     */
+    public String get(String url) throws IOException {
+        HttpGet request = new HttpGet(url);
+        if (authorization != null) {
+            request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (responseCode != 200) {
+                throw new IOException("Http " + responseCode + " from " + url + ": " + body);
+            }
+            return body;
+        }
+    }
+
+    public JSONObject getJSON(String url) throws IOException {
+        return new JSONObject(get(url));
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+}
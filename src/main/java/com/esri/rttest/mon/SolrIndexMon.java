@@ -22,284 +22,68 @@
  * After three samples are made outputs rates based on linear regression.
  * After counts stop changing outputs the final rate and last estimated rate.
  *
+ * 17 Oct 2026: The rows=0 select requests share one MonHttpClient (kept alive, with connect and read timeouts)
+ *     instead of a new client for every sample.  Sampler takes the samples; sampleRateSec can be a fraction.
+ *     The counts are watched by CountListener (rolling rates, optional outlier rejection).  numFound only changes
+ *     after a (soft) commit, so a collection sampled faster than its autoSoftCommit time has equal samples in the
+ *     middle of a run; the count is only over after it has not changed for stopAfterSec.
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.mon;
 
-import org.apache.commons.math3.stat.regression.SimpleRegression;
-import org.apache.http.Header;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.StopDetector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class SolrIndexMon {
 
     private static final Logger LOG = LogManager.getLogger(SolrIndexMon.class);
 
-    class CheckCount extends TimerTask {
-
-        long cnt1 = 0;
-        long cnt2 = -1;
-        long startCount = 0;
-        long endCount = 0;
-        int numSamples = 0;
-        HashMap<Long, Long> samples;
-        long t1 = 0L;
-        long t2 = 0L;
-        SimpleRegression regression;
-
-        public CheckCount() {
-            regression = new SimpleRegression();
-            cnt1 = 0;
-            cnt2 = -1;
-            startCount = 0;
-            numSamples = 0;
-            t1 = 0L;
-            t2 = 0L;
-        }
-
-        boolean inCounting() {
-            if (cnt1 > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
-
-        long getStartCount() {
-            return startCount;
-        }
-
-        long getEndCount() {
-            return endCount;
-        }
-
-        @Override
-        public void run() {
-            try {
-
-                LOG.info("Checking Count");
-
-                // Solr Collection URL
-                String url = solrSearchUrl + "/select?q=*:*&wt=json&rows=0";
-                SSLContext sslContext = SSLContext.getInstance("SSL");
-
-                CredentialsProvider provider = new BasicCredentialsProvider();
-                UsernamePasswordCredentials credentials
-                        = new UsernamePasswordCredentials(user, userpw);
-                provider.setCredentials(AuthScope.ANY, credentials);
-
-                sslContext.init(null, new TrustManager[]{new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        if (sendStdout) {
-                            System.out.println("getAcceptedIssuers =============");
-                        }
-                        return null;
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] certs,
-                            String authType) {
-                        if (sendStdout) {
-                            System.out.println("checkClientTrusted =============");
-                        }
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] certs,
-                            String authType) {
-                        if (sendStdout) {
-                            System.out.println("checkServerTrusted =============");
-                        }
-                    }
-                }}, new SecureRandom());
-
-                CloseableHttpClient httpclient = HttpClients
-                        .custom()
-                        .setDefaultCredentialsProvider(provider)
-                        .setSSLContext(sslContext)
-                        .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-                        .build();
-
-                HttpGet request = new HttpGet(url);
-                CloseableHttpResponse response = httpclient.execute(request);
-                BufferedReader rd = new BufferedReader(
-                        new InputStreamReader(response.getEntity().getContent()));
-
-                Header contentType = response.getEntity().getContentType();
-                String ct = contentType.getValue().split(";")[0];
-
-                int responseCode = response.getStatusLine().getStatusCode();
-
-                String line;
-                StringBuilder result = new StringBuilder();
-                while ((line = rd.readLine()) != null) {
-                    result.append(line);
-                }
-
-                JSONObject json = new JSONObject(result.toString());
-                request.abort();
-                response.close();
-
-                cnt1 = json.getJSONObject("response").getInt("numFound");
-                t1 = System.currentTimeMillis();
-
-                if (cnt2 == -1) {
-                    System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
-                    System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|");
-                    System.out.println("|-------------|-----|-----|----------------------|--------------------------|");
-                } 
-                
-                if (cnt2 == -1 || cnt1 < cnt2) {
-                    cnt2 = cnt1;
-                    startCount = cnt1;
-                    endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
-                    numSamples = 0;
-
-                } else if (cnt1 > cnt2) {
-                    // Increase number of samples
-                    numSamples += 1;
-
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
-
-                    if (numSamples >= 2) {
-                        double regRate = regression.getSlope() * 1000;
-                        double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
-                        if (sendStdout) {
-                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |");
-                        }
-                    } else {
-                        System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |");
-                    }
-
-                } else if (cnt1 == cnt2 && numSamples > 0) {
-
-                    System.out.println("Count is no longer increasing...");
-
-                    endCount = cnt1;
-
-                    numSamples -= 1;
-                    // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
-
-                    // Calculate Average Rate
-                    long minTime = Long.MAX_VALUE;
-                    long maxTime = Long.MIN_VALUE;
-                    long minCount = Long.MAX_VALUE;
-                    long maxCount = Long.MIN_VALUE;
-                    for (Map.Entry pair : samples.entrySet()) {
-                        long time = (long) pair.getKey();
-                        long count = (long) pair.getValue();
-                        if (time < minTime) {
-                            minTime = time;
-                        }
-                        if (time > maxTime) {
-                            maxTime = time;
-                        }
-                        if (count < minCount) {
-                            minCount = count;
-                        }
-                        if (count > maxCount) {
-                            maxCount = count;
-                        }
-                    }
-                    double avgRate = (double) (maxCount - minCount) / (double) (maxTime - minTime) * 1000.0;
-
-                    if (sendStdout) {
-                        System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
-                    }
-
-                    // Output Results
-                    long cnt = cnt2 - startCount;
-
-                    double regRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-                    if (numSamples >= 2) {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f\n\n", cnt, regRate, avgRate);
-                        }
-                    } else {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
-                        }
-                    }
-
-                    // Reset
-                    cnt1 = -1;
-                    cnt2 = -1;
-                    t1 = 0L;
-                    t2 = 0L;
-
-                }
-
-                cnt2 = cnt1;
-                t2 = t1;
-
-            } catch (IOException | UnsupportedOperationException | KeyManagementException | NoSuchAlgorithmException | JSONException e) {
-                LOG.error("ERROR", e);
-
-            }
-
-        }
-
-    }
-
-    Timer timer;
+    Sampler sampler;
+    // Created once; reused (keep-alive) by every sample
+    MonHttpClient httpClient;
     String solrSearchUrl;
     String user;
     String userpw;
-    int sampleRateSec;
+    long sampleRateMs;
     boolean sendStdout;
+    // Leave outliers (e.g. a sample taken just before a commit or during a GC pause) out of the regression
+    boolean rejectOutliers;
+    // A count is over after no change for this long (at least StopDetector.MIN_PERIODS samples)
+    long stopAfterMs;
 
-    public SolrIndexMon(String solrSearchUrl, int sampleRateSec, String user, String userpw, boolean sendStdout) {
+    public SolrIndexMon(String solrSearchUrl, long sampleRateMs, String user, String userpw, boolean sendStdout, boolean rejectOutliers, long stopAfterMs) {
+        this.httpClient = new MonHttpClient(user, userpw);
 
         this.solrSearchUrl = solrSearchUrl;
-        this.sampleRateSec = sampleRateSec;
+        this.sampleRateMs = sampleRateMs;
         this.user = user;
         this.userpw = userpw;
         this.sendStdout = sendStdout;
+        this.rejectOutliers = rejectOutliers;
+        this.stopAfterMs = stopAfterMs;
+    }
+
+    long getCount() throws IOException {
+        LOG.info("Checking Count");
+
+        // Solr Collection URL
+        String url = solrSearchUrl + "/select?q=*:*&wt=json&rows=0";
+        JSONObject json = httpClient.getJSON(url);
+
+        return json.getJSONObject("response").getLong("numFound");
     }
 
     public void run() {
         try {
 
-            timer = new Timer();
-            timer.schedule(new SolrIndexMon.CheckCount(), 0, sampleRateSec * 1000);
+            sampler = new Sampler("SolrIndexMon", sampleRateMs, this::getCount, new CountListener(sampleRateMs, sendStdout, rejectOutliers, stopAfterMs));
+            sampler.start();
 
         } catch (Exception e) {
             LOG.error("ERROR", e);
@@ -312,27 +96,44 @@ public class SolrIndexMon {
         String solrSearchUrl = "";
         String username = "";   // default to empty string
         String password = "";  // default to empty string
-        int sampleRateSec = 5; // default to 5 seconds.  
+        long sampleRateMs = 5000; // default to 5 seconds.  
         Boolean sendStdout = true;
+        boolean rejectOutliers = false;
+        long stopAfterMs = StopDetector.DEFAULT_STOP_AFTER_MS;
 
         LOG.info("Entering application.");
         int numargs = args.length;
-        if (numargs != 1 && numargs != 2 && numargs != 4) {
-            System.err.print("Usage: SolrIndexMon [SolrSearchURL] (sampleRateSec) ((username) (password))  \n");
+        if (numargs < 1 || numargs > 6) {
+            System.err.print("Usage: SolrIndexMon [SolrSearchURL] (sampleRateSec) ((username) (password)) (rejectOutliers=false) (stopAfterSec=5)  \n");
+            System.err.println("rejectOutliers: true leaves outlier samples (e.g. taken just before a commit or during a GC pause) out of the regression rate; defaults to false.");
+            System.err.println("stopAfterSec: The count is over after it has not changed for this long (at least two samples); defaults to 5.");
+            System.err.println("Without username and password rejectOutliers and stopAfterSec are the third and fourth args.");
             System.err.println("Example: java -cp target/rttest.jar com.esri.rttest.mon.SolrIndexMon http://localhost:8983/solr/realtime.safegraph 20 user pass");
         } else {
             solrSearchUrl = args[0];
 
             if (numargs >= 2) {
-                sampleRateSec = Integer.parseInt(args[1]);
+                sampleRateMs = Sampler.parsePeriodMillis(args[1]);
             }
 
-            if (numargs == 4) {
+            // Without username and password the third arg is rejectOutliers (true or false)
+            boolean credentials = numargs >= 5 || (numargs == 4 && !args[2].equalsIgnoreCase("true") && !args[2].equalsIgnoreCase("false"));
+            int opt = 2;
+            if (credentials) {
                 username = args[2];
                 password = args[3];
+                opt = 4;
+            }
+
+            if (numargs > opt) {
+                rejectOutliers = Boolean.parseBoolean(args[opt]);
+            }
+
+            if (numargs > opt + 1) {
+                stopAfterMs = Sampler.parsePeriodMillis(args[opt + 1]);
             }
 
-            SolrIndexMon t = new SolrIndexMon(solrSearchUrl, sampleRateSec, username, password, sendStdout);
+            SolrIndexMon t = new SolrIndexMon(solrSearchUrl, sampleRateMs, username, password, sendStdout, rejectOutliers, stopAfterMs);
             t.run();
 
         }
@@ -1,245 +1,103 @@
 package com.esri.rttest.mon;
 
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.StopDetector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.JSONException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class TimescaleSqlMon {
   private static final Logger LOG = LogManager.getLogger(TimescaleSqlMon.class);
 
-  class CheckCount extends TimerTask {
+  Sampler sampler;
+  String connectionUrl;
+  String user;
+  String userpw;
+  String schema;
+  String tableName;
+  String hyperTablePrefix;
+  long sampleRateMs;
+  boolean sendStdout;
+  // Leave outliers (e.g. a slow count query or GC pause) out of the regression
+  boolean rejectOutliers;
+  // A count is over after no change for this long (at least StopDetector.MIN_PERIODS samples)
+  long stopAfterMs;
+  Connection connection;
 
-    long cnt1;
-    long cnt2;
-    long startCount;
-    long endCount;
-    int numSamples;
-    HashMap<Long, Long> samples;
-    long t1;
-    long t2;
-    SimpleRegression regression;
+  public TimescaleSqlMon(String connectionUrl, String schema, String tableName, long sampleRateMs, String user, String userpw, boolean sendStdout, boolean rejectOutliers, long stopAfterMs) {
 
-    public CheckCount() {
-      regression = new SimpleRegression();
-      cnt1 = 0;
-      cnt2 = -1;
-      startCount = 0;
-      numSamples = 0;
-      t1 = 0L;
-      t2 = 0L;
-      samples = null;
-    }
+    this.connectionUrl = connectionUrl;
+    this.sampleRateMs = sampleRateMs;
+    this.user = user;
+    this.userpw = userpw;
+    this.sendStdout = sendStdout;
+    this.rejectOutliers = rejectOutliers;
+    this.stopAfterMs = stopAfterMs;
+    this.schema  = schema;
+    this.tableName = tableName;
+  }
 
-    boolean inCounting() {
-      if (cnt1 > 0) {
-        return true;
-      } else {
-        return false;
-      }
-    }
+  long getCount() throws SQLException {
+    LOG.info("Checking Count");
 
-    HashMap<Long, Long> getSamples() {
-      return samples;
-    }
 
-    long getStartCount() {
-      return startCount;
+    if(connection == null || connection.isClosed()){
+      //String url = "jdbc:postgresql://$kTimescaleHost:5432/$schema";
+      Properties properties = new Properties();
+      properties.put("user", "realtime");
+      properties.put("password", "esri.test");
+      connection = DriverManager.getConnection(connectionUrl, properties);
     }
 
-    long getEndCount() {
-      return endCount;
-    }
-
-    @Override
-    public void run() {
-      try {
-
-        LOG.info("Checking Count");
 
-
-        if(connection == null || connection.isClosed()){
-          //String url = "jdbc:postgresql://$kTimescaleHost:5432/$schema";
-          Properties properties = new Properties();
-          properties.put("user", "realtime");
-          properties.put("password", "esri.test");
-          connection = DriverManager.getConnection(connectionUrl, properties);
-        }
-
-
-        Statement statement = connection.createStatement();
-        if(hyperTablePrefix == null || "".equalsIgnoreCase(hyperTablePrefix)) {
-          //identify sub-tables of hypertable
-          ResultSet chunks = statement.executeQuery("SELECT show_chunks('" + schema + "." + tableName + "')");
-
-          if (chunks.next()){
-            //chunk table name format: _hyper_[tableid]_[chunkid]_chunk
-            String fullTableName = chunks.getString(1);
-            String chunkTableName = fullTableName.split("\\.")[1];
-            String[] parts = chunkTableName.split("_");
-            StringBuilder prefix = new StringBuilder();
+    Statement statement = connection.createStatement();
+    if(hyperTablePrefix == null || "".equalsIgnoreCase(hyperTablePrefix)) {
+      //identify sub-tables of hypertable
+      ResultSet chunks = statement.executeQuery("SELECT show_chunks('" + schema + "." + tableName + "')");
+
+      if (chunks.next()){
+        //chunk table name format: _hyper_[tableid]_[chunkid]_chunk
+        String fullTableName = chunks.getString(1);
+        String chunkTableName = fullTableName.split("\\.")[1];
+        String[] parts = chunkTableName.split("_");
+        StringBuilder prefix = new StringBuilder();
+        prefix.append("_");
+        for (int i = 0; i < parts.length - 2; i++) {
+          if(!"".equalsIgnoreCase(parts[i])) {
+            prefix.append(parts[i]);
             prefix.append("_");
-            for (int i = 0; i < parts.length - 2; i++) {
-              if(!"".equalsIgnoreCase(parts[i])) {
-                prefix.append(parts[i]);
-                prefix.append("_");
-              }
-            }
-            hyperTablePrefix = prefix.toString();
-
-          }
-          chunks.close();
-        }
-
-        ResultSet hyperTableCount = statement.executeQuery("SELECT sum(n_tup_ins) from pg_stat_user_tables where" +
-            " relname like '" + hyperTablePrefix + "%';");
-
-        if(hyperTableCount.next()) {
-          cnt1 = hyperTableCount.getLong(1);
-          t1 = System.currentTimeMillis();
-        }
-        hyperTableCount.close();
-        statement.close();
-
-        if (cnt2 == -1) {
-          System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
-          System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|");
-          System.out.println("|-------------|-----|-----|----------------------|--------------------------|");
-        }
-
-        if (cnt2 == -1 || cnt1 < cnt2) {
-          cnt2 = cnt1;
-          startCount = cnt1;
-          endCount = cnt1;
-          regression = new SimpleRegression();
-          samples = new HashMap<>();
-          numSamples = 0;
-
-        } else if (cnt1 > cnt2) {
-          // Increase number of samples
-          numSamples += 1;
-
-          // Add to Linear Regression
-          regression.addData(t1, cnt1);
-          samples.put(t1, cnt1);
-
-          if (numSamples >= 2) {
-            double regRate = regression.getSlope() * 1000;
-            double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
-            if (sendStdout) {
-              System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |");
-            }
-          } else {
-            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |");
-          }
-
-        } else if (cnt1 == cnt2 && numSamples > 0) {
-          System.out.println("Count is no longer increasing...");
-
-          endCount = cnt1;
-          numSamples -= 1;
-
-          // Remove the last sample
-          regression.removeData(t2, cnt2);
-          samples.remove(t2, cnt2);
-
-          // Calculate Average Rate
-          long minTime = Long.MAX_VALUE;
-          long maxTime = Long.MIN_VALUE;
-          long minCount = Long.MAX_VALUE;
-          long maxCount = Long.MIN_VALUE;
-          for (Map.Entry pair : samples.entrySet()) {
-            long time = (long) pair.getKey();
-            long count = (long) pair.getValue();
-            if (time < minTime) {
-              minTime = time;
-            }
-            if (time > maxTime) {
-              maxTime = time;
-            }
-            if (count < minCount) {
-              minCount = count;
-            }
-            if (count > maxCount) {
-              maxCount = count;
-            }
           }
-          double avgRate = (double) (maxCount - minCount) / (double) (maxTime - minTime) * 1000.0;
-
-          if (sendStdout) {
-            System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
-          }
-          // Output Results
-          long cnt = cnt2 - startCount;
-          double regRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-          if (numSamples >= 2) {
-            if (sendStdout) {
-              System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f\n\n", cnt, regRate, avgRate);
-            }
-          } else {
-            if (sendStdout) {
-              System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
-            }
-          }
-
-          // Reset
-          cnt1 = -1;
-          cnt2 = -1;
-          t1 = 0L;
-          t2 = 0L;
-
         }
-
-        cnt2 = cnt1;
-        t2 = t1;
-
-      } catch (UnsupportedOperationException | JSONException | SQLException e) {
-        LOG.error("ERROR", e);
+        hyperTablePrefix = prefix.toString();
 
       }
-
+      chunks.close();
     }
 
-  }
+    ResultSet hyperTableCount = statement.executeQuery("SELECT sum(n_tup_ins) from pg_stat_user_tables where" +
+        " relname like '" + hyperTablePrefix + "%';");
 
-  Timer timer;
-  String connectionUrl;
-  String user;
-  String userpw;
-  String schema;
-  String tableName;
-  String hyperTablePrefix;
-  int sampleRateSec;
-  boolean sendStdout;
-  Connection connection;
-
-  public TimescaleSqlMon(String connectionUrl, String schema, String tableName, int sampleRateSec, String user, String userpw, boolean sendStdout) {
+    boolean found = hyperTableCount.next();
+    long count = found ? hyperTableCount.getLong(1) : 0;
+    hyperTableCount.close();
+    statement.close();
 
-    this.connectionUrl = connectionUrl;
-    this.sampleRateSec = sampleRateSec;
-    this.user = user;
-    this.userpw = userpw;
-    this.sendStdout = sendStdout;
-    this.schema  = schema;
-    this.tableName = tableName;
+    if (!found) {
+      throw new SQLException("No count for " + hyperTablePrefix);
+    }
+    return count;
   }
 
   public void run() {
     try {
 
-      timer = new Timer();
-      timer.schedule(new TimescaleSqlMon.CheckCount(), 0, sampleRateSec * 1000);
+      sampler = new Sampler("TimescaleSqlMon", sampleRateMs, this::getCount, new CountListener(sampleRateMs, sendStdout, rejectOutliers, stopAfterMs));
+      sampler.start();
 
     } catch (Exception e) {
       LOG.error("ERROR", e);
@@ -254,13 +112,18 @@ public class TimescaleSqlMon {
     String password = "";  // default to empty string
     String schema = "";
     String tableName = "";
-    int sampleRateSec = 5; // default to 5 seconds.
+    long sampleRateMs = 5000; // default to 5 seconds.
     Boolean sendStdout = true;
+    boolean rejectOutliers = false;
+    long stopAfterMs = StopDetector.DEFAULT_STOP_AFTER_MS;
 
     LOG.info("Entering application.");
     int numargs = args.length;
-    if (numargs != 3 && numargs != 4 && numargs != 6) {
-      System.err.print("Usage: TimescaleSqlMon [connectionUrl] [schema] [tableName] (sampleRateSec) ((username) (password))  \n");
+    if (numargs < 3 || numargs > 8) {
+      System.err.print("Usage: TimescaleSqlMon [connectionUrl] [schema] [tableName] (sampleRateSec) ((username) (password)) (rejectOutliers=false) (stopAfterSec=5)  \n");
+      System.err.println("rejectOutliers: true leaves outlier samples (e.g. a slow count query or GC pause) out of the regression rate; defaults to false.");
+      System.err.println("stopAfterSec: The count is over after it has not changed for this long (at least two samples); defaults to 5.");
+      System.err.println("Without username and password rejectOutliers and stopAfterSec are the fifth and sixth args.");
       System.err.println("Example: java -cp target/rttest.jar com.esri.rttest.mon.TimescaleSqlMon jdbc:postgresql://HostName:5432/dbName realtime safegraph 20 user pass");
     } else {
       connectionUrl = args[0];
@@ -268,15 +131,27 @@ public class TimescaleSqlMon {
       tableName = args[2];
 
       if (numargs >= 4) {
-        sampleRateSec = Integer.parseInt(args[3]);
+        sampleRateMs = Sampler.parsePeriodMillis(args[3]);
       }
 
-      if (numargs == 6) {
+      // Without username and password the fifth arg is rejectOutliers (true or false)
+      boolean credentials = numargs >= 7 || (numargs == 6 && !args[4].equalsIgnoreCase("true") && !args[4].equalsIgnoreCase("false"));
+      int opt = 4;
+      if (credentials) {
         username = args[4];
         password = args[5];
+        opt = 6;
+      }
+
+      if (numargs > opt) {
+        rejectOutliers = Boolean.parseBoolean(args[opt]);
+      }
+
+      if (numargs > opt + 1) {
+        stopAfterMs = Sampler.parsePeriodMillis(args[opt + 1]);
       }
 
-      TimescaleSqlMon t = new TimescaleSqlMon(connectionUrl, schema, tableName, sampleRateSec, username, password, sendStdout);
+      TimescaleSqlMon t = new TimescaleSqlMon(connectionUrl, schema, tableName, sampleRateMs, username, password, sendStdout, rejectOutliers, stopAfterMs);
       t.run();
 
     }
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable byte array used to build request bodies from ByteBuffer lines.
+ * Call reset() and reuse it instead of concatenating Strings.
+ *
+ * @author david
+ */
+public class ByteArrayBuilder {
+
+    private byte[] buf;
+    private int count;
+
+    public ByteArrayBuilder(int initialSize) {
+        buf = new byte[initialSize];
+        count = 0;
+    }
+
+    private void ensureCapacity(int len) {
+        if (count + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+        }
+    }
+
+    public ByteArrayBuilder append(ByteBuffer src) {
+        int len = src.remaining();
+        ensureCapacity(len);
+        src.duplicate().get(buf, count, len);
+        count += len;
+        return this;
+    }
+
+    public ByteArrayBuilder append(byte[] src) {
+        ensureCapacity(src.length);
+        System.arraycopy(src, 0, buf, count, src.length);
+        count += src.length;
+        return this;
+    }
+
+    public ByteArrayBuilder append(byte b) {
+        ensureCapacity(1);
+        buf[count++] = b;
+        return this;
+    }
+
+    public ByteArrayBuilder append(String s) {
+        return append(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return The backing array; only the first size() bytes are valid.
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+}
@@ -32,23 +32,37 @@
  * NOTE: Based on testing using sparktest; I suspect if I hyper-threaded this like I did for tcp I could get faster rates.
  * In a Round-robin fashion send requests to each of the elasticsearch nodes.
  *
+ * 17 Oct 2026
+ * Bulk requests are sent with an async client so up to in-flight requests are outstanding at once.
+ * The nodes are found using IPPorts (ip, dns name, or app[marathon-app-name]) and requests go to them round robin.
+ * A bulk request is sent when it has elastic-bulk-num docs or bulk-bytes bytes; bodies are built in pooled buffers.
+ * The items in each bulk response are checked; docs rejected with 429 (write queue full) are counted (not retried;
+ * they are dropped and reported in the rejected column) and the sender backs off before the next request.  The back off doubles on each rejection and halves on success.
+ * The back off pauses the RatePacer (its timeline moves later) so the sender does not burst to catch up after it.
+ *
  */
 package com.esri.rttest.send;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.time.Duration;
-import java.time.LocalDateTime;
+import com.esri.rttest.Counter;
+import com.esri.rttest.IPPort;
+import com.esri.rttest.IPPorts;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.ResponseHandler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  *
@@ -58,26 +72,56 @@ public class ElasticsearchHttp {
 
     private static final Logger LOG = LogManager.getLogger(ElasticsearchHttp.class);
 
-    //private final String USER_AGENT = "Mozilla/5.0";
-    private HttpClient httpClient;
-    private HttpPost httpPost;
+    private static final byte[] INDEX_ACTION = "{\"index\": {}}\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 5000;
 
-    private String strURL;  // http://data.sats-sat03.l4lb.thisdcos.directory:9200/index/type
+    private CloseableHttpAsyncClient httpClient;
+
+    // _bulk url of each node
+    private final ArrayList<String> bulkURLs = new ArrayList<>();
     private Integer esbulk;
+    private Integer bulkBytes;
+    private Integer inFlight;
+
+    // Outstanding bulk request window
+    private Semaphore window;
+
+    // Bulk bodies are returned by the callbacks and reused
+    private final ConcurrentLinkedQueue<ByteArrayBuilder> freeBodies = new ConcurrentLinkedQueue<>();
+
+    // Updated from the client's io threads
+    private final Counter cnt = new Counter();
+    private final Counter cntErr = new Counter();
+    private final Counter cntRejected = new Counter();
+    // Read by the sending thread; doubled and halved by the io threads
+    private final AtomicLong backoffMs = new AtomicLong();
 
     /**
      *
-     * @param strURL
-     * @param esbulk
+     * @param strURL http://host:port/index/type; host can be an ip, dns name, or app[marathon-app-name]
+     * @param esbulk Max docs per bulk request
+     * @param bulkBytes Max bytes per bulk request
+     * @param inFlight Max outstanding bulk requests
      */
-    public ElasticsearchHttp(String strURL, Integer esbulk) {
+    public ElasticsearchHttp(String strURL, Integer esbulk, Integer bulkBytes, Integer inFlight) {
 
         try {
 
-            if (strURL.endsWith("/")) {
-                this.strURL = strURL + "_bulk";
-            } else {
-                this.strURL = strURL + "/_bulk";
+            IPPorts ipp = new IPPorts(strURL);
+            if (ipp.getIPPorts() == null || ipp.getIPPorts().isEmpty()) {
+                throw new UnsupportedOperationException("Could not discover the any ip port combinations.");
+            }
+
+            String path = ipp.getPath();
+            if (!path.endsWith("/")) {
+                path = path + "/";
+            }
+            for (IPPort ipport : ipp.getIPPorts()) {
+                String bulkURL = ipp.getProtocol() + "://" + ipport.getIp() + ":" + ipport.getPort() + path + "_bulk";
+                System.out.println(bulkURL);
+                bulkURLs.add(bulkURL);
             }
 
             this.esbulk = esbulk;
@@ -86,105 +130,208 @@ public class ElasticsearchHttp {
                 this.esbulk = 0;
             }
 
-            httpClient = HttpClientBuilder.create().build();
+            this.bulkBytes = bulkBytes;
+            this.inFlight = inFlight;
+            this.window = new Semaphore(inFlight);
 
-            httpPost = new HttpPost(this.strURL);
+            httpClient = HttpAsyncClients
+                    .custom()
+                    .setMaxConnTotal(inFlight)
+                    .setMaxConnPerRoute(inFlight)
+                    .build();
+
+            httpClient.start();
 
         } catch (Exception e) {
             LOG.error("ERROR",e);
         }
     }
 
-    private void postLine(String data) throws Exception {
+    private void backoff() {
+        backoffMs.updateAndGet(b -> Math.min(Math.max(b * 2, MIN_BACKOFF_MS), MAX_BACKOFF_MS));
+    }
 
-        StringEntity postingString = new StringEntity(data);
+    private void relax() {
+        backoffMs.updateAndGet(b -> b / 2 < MIN_BACKOFF_MS ? 0 : b / 2);
+    }
 
-        httpPost.setEntity(postingString);
-        httpPost.setHeader("Content-type", "application/json");
+    /**
+     * Counts the docs of a bulk request using its response.
+     *
+     * @param status Http status of the bulk request
+     * @param body Bulk response
+     * @param numDocs Docs in the request
+     */
+    private void countResponse(int status, String body, int numDocs) {
+        if (status == 429) {
+            cntRejected.add(numDocs);
+            backoff();
+            return;
+        }
+        if (status != 200) {
+            cntErr.add(numDocs);
+            return;
+        }
+        if (!body.contains("\"errors\":true")) {
+            cnt.add(numDocs);
+            relax();
+            return;
+        }
+
+        // Some items failed; check the status of each
+        int ok = 0;
+        int rejected = 0;
+        int failed = 0;
+
+        JSONArray items = new JSONObject(body).getJSONArray("items");
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            Iterator<String> actions = item.keys();
+            int itemStatus = actions.hasNext() ? item.getJSONObject(actions.next()).optInt("status") : 0;
+            if (itemStatus == 429) {
+                rejected++;
+            } else if (itemStatus < 200 || itemStatus >= 300) {
+                failed++;
+            } else {
+                ok++;
+            }
+        }
+
+        cnt.add(ok);
+        cntErr.add(failed);
+        cntRejected.add(rejected);
 
-        ResponseHandler<String> responseHandler = new BasicResponseHandler();
-        String resp = httpClient.execute(httpPost, responseHandler);
-        
-        //JSONObject jsonResp = new JSONObject(resp);
-        //System.out.println(jsonResp);
-        httpPost.releaseConnection();
+        if (rejected > 0) {
+            backoff();
+        } else {
+            relax();
+        }
     }
 
-    public void sendFile(String filename, Integer rate, Integer numToSend) {
+    private class BulkCallback implements FutureCallback<HttpResponse> {
 
-        try {
-            FileReader fr;
-            fr = new FileReader(filename);
-            ArrayList<String> lines;
-            String line;
-            // Read the file into an array
-            try (BufferedReader br = new BufferedReader(fr)) {
-                // Read the file into an array
-                lines = new ArrayList<>();
-                while ((line = br.readLine()) != null) {
-                    lines.add(line);
-                }
+        private final ByteArrayBuilder body;
+        private final int numDocs;
+
+        BulkCallback(ByteArrayBuilder body, int numDocs) {
+            this.body = body;
+            this.numDocs = numDocs;
+        }
+
+        private void done() {
+            freeBodies.offer(body);
+            window.release();
+        }
+
+        @Override
+        public void completed(HttpResponse resp) {
+            try {
+                String respBody = resp.getEntity() == null ? "" : EntityUtils.toString(resp.getEntity());
+                countResponse(resp.getStatusLine().getStatusCode(), respBody, numDocs);
+            } catch (Exception e) {
+                cntErr.add(numDocs);
+                LOG.error("ERROR", e);
+            } finally {
+                done();
             }
-            fr.close();
+        }
 
-            Iterator<String> linesIt = lines.iterator();
+        @Override
+        public void failed(Exception e) {
+            cntErr.add(numDocs);
+            done();
+            LOG.error(e.getMessage());
+        }
 
-            // Get the System Time
-            LocalDateTime st = LocalDateTime.now();
+        @Override
+        public void cancelled() {
+            cntErr.add(numDocs);
+            done();
+        }
+    }
 
-            Integer cnt = 0;
+    // cnt,err,rate,rejected
+    private String counts(long st) {
+        Double rate = (double) cnt.get() / (System.currentTimeMillis() - st) * 1000;
+        return cnt.get() + "," + cntErr.get() + "," + String.format("%.0f", rate) + "," + cntRejected.get();
+    }
 
-            // Estimate time for to send all events requested
-            double estTime = numToSend / rate;
+    public void sendFile(String filename, Integer rate, Integer numToSend) {
 
-            // Time for each block
-            double timePerGroupMS = estTime * this.esbulk / numToSend * 1000.0;
-            //System.out.println(timePerGroupMS);
+        try {
+            // Map the file
+            MappedLineFile lines = new MappedLineFile(filename);
+            int lineNum = 0;
 
-            long msDelay = Math.round(timePerGroupMS);
-            //System.out.println(msDelay);                                
+            long st = System.currentTimeMillis();
+            long timeLastDisplayedRate = st;
 
-            while (cnt < numToSend) {
+            Integer numSent = 0;
+            int nextNode = 0;
 
-                Integer i = 0;
-                line = "";
-                long stime = System.currentTimeMillis();
+            // Each bulk request is sent at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
 
-                while (i < this.esbulk && cnt < numToSend) {
-                    i += 1;
-                    cnt += 1;
-                    if (!linesIt.hasNext()) {
-                        linesIt = lines.iterator();  // Reset Iterator
-                    }
-                    line += "{\"index\": {}}\n";
-                    line += linesIt.next() + "\n";
+            while (numSent < numToSend) {
+
+                if (System.currentTimeMillis() - timeLastDisplayedRate > 5000) {
+                    // cnt,err,rate,rejected,lag
+                    timeLastDisplayedRate = System.currentTimeMillis();
+                    System.out.println(counts(st) + "," + pacer.takeMaxLagMillis());
+                }
+
+                // The body is owned by the request until its callback
+                ByteArrayBuilder bulk = freeBodies.poll();
+                if (bulk == null) {
+                    bulk = new ByteArrayBuilder(64 * 1024);
                 }
+                bulk.reset();
 
-                postLine(line);
-                long etime = System.currentTimeMillis() - stime;
+                Integer i = 0;
+                while (i < this.esbulk && numSent < numToSend) {
+                    if (lineNum == lines.size()) {
+                        lineNum = 0;  // Start from top of file
+                    }
+                    if (i > 0 && bulk.size() + INDEX_ACTION.length + lines.getRecord(lineNum).remaining() > this.bulkBytes) {
+                        break;
+                    }
+                    i += 1;
+                    numSent += 1;
+                    bulk.append(INDEX_ACTION);
+                    bulk.append(lines.getRecord(lineNum++));
+                }
 
-                long delay = msDelay - etime;
+                // Slow down while the cluster is rejecting docs; the pacer's timeline moves with the pause so
+                // the requests after it are not sent in a burst to catch up
+                long delay = backoffMs.get();
                 if (delay > 0) {
-                    Thread.sleep(delay);
+                    pacer.pause(delay);
                 }
-            }
 
-            Double sendRate = 0.0;
+                pacer.acquire(i);
 
-            if (st != null) {
-                LocalDateTime et = LocalDateTime.now();
+                HttpPost httpPost = new HttpPost(bulkURLs.get(nextNode));
+                nextNode = (nextNode + 1) % bulkURLs.size();
+                httpPost.setHeader("Content-type", "application/x-ndjson");
+                httpPost.setEntity(new ByteArrayEntity(bulk.array(), 0, bulk.size()));
 
-                Duration delta = Duration.between(st, et);
+                window.acquire();
+                httpClient.execute(httpPost, new BulkCallback(bulk, i));
+            }
 
-                Double elapsedSeconds = (double) delta.getSeconds() + delta.getNano() / 1000000000.0;
+            // Wait for the outstanding requests
+            window.acquire(inFlight);
+            window.release(inFlight);
 
-                sendRate = (double) cnt / elapsedSeconds;
+            System.out.println(counts(st));
+            if (cntRejected.get() > 0) {
+                System.out.println(cntRejected.get() + " docs were rejected (429) and not retried; they are not in the index.");
             }
 
-            System.out.println(cnt + "," + sendRate);
+            httpClient.close();
 
         } catch (Exception e) {
-            // Could fail on very large files that would fill heap space 
+            // Could fail on very large files that would fill heap space
 //            System.out.println(con.toString());
             LOG.error("ERROR",e);
 
@@ -195,8 +342,13 @@ public class ElasticsearchHttp {
     public static void main(String[] args) {
 
         int numargs = args.length;
-        if (numargs != 4 && numargs != 5) {
-            System.err.print("Usage: Elasticsearch <elastic-url-to-type-index> <file> <rate> <numrecords> (<elastic-bulk-num>)\n");
+        if (numargs < 4 || numargs > 7) {
+            System.err.print("Usage: Elasticsearch <elastic-url-to-type-index> <file> <rate> <numrecords> (<elastic-bulk-num=1000>) (<bulk-bytes=5242880>) (<in-flight=4>)\n");
+            System.err.print("elastic-url-to-type-index: host can be an ip, dns name (each ip is used), or app[marathon-app-name]\n");
+            System.err.print("elastic-bulk-num: Max docs per bulk request\n");
+            System.err.print("bulk-bytes: Max bytes per bulk request\n");
+            System.err.print("in-flight: Max outstanding bulk requests; requests are sent round robin to the nodes\n");
+            System.err.print("Output: count,errors,rate,rejected(,lag); docs rejected by Elasticsearch with 429 (write queue full) are dropped, not retried, and counted in rejected\n");
         } else {
 
             String url = args[0];
@@ -205,14 +357,26 @@ public class ElasticsearchHttp {
             Integer numRecords = Integer.parseInt(args[3]);
 
             Integer elasticBulk = 1000;
-            if (numargs == 5) {
+            if (numargs > 4) {
                 elasticBulk = Integer.parseInt(args[4]);
             }
 
+            Integer bulkBytes = 5242880;
+            if (numargs > 5) {
+                bulkBytes = Integer.parseInt(args[5]);
+            }
+
+            Integer inFlight = 4;
+            if (numargs > 6) {
+                inFlight = Integer.parseInt(args[6]);
+            }
+
             if (elasticBulk < 100) {
                 System.out.println("Smallest supported elastic-bulk-num is 100");
+            } else if (inFlight < 1) {
+                System.out.println("Smallest supported in-flight is 1");
             } else {
-                ElasticsearchHttp t = new ElasticsearchHttp(url, elasticBulk);
+                ElasticsearchHttp t = new ElasticsearchHttp(url, elasticBulk, bulkBytes, inFlight);
                 t.sendFile(filename, rate, numRecords);
 
             }
@@ -18,23 +18,33 @@
  */
 /**
  * Test Class
+ *
+ * 17 Oct 2026
+ * The file is memory mapped (MappedLineFile). With source=bytes each line's bytes are copied from the mapped file into
+ * a byte array the first time the line is used; the array is the source of every IndexRequest for that line, including
+ * when the file is recycled.  The arrays are never changed so requests that are in flight can share them.
+ * The lines are already json so Elasticsearch can use the bytes as is; the send loop no longer parses each line into a
+ * JSONObject and copies it to a Map.  The old behavior is still available with source=map.
+ * BulkProcessor concurrent requests and flush interval can be set. Failed docs are counted.
+ * The output adds the max lag (ms) behind the requested rate (RatePacer) like the other senders.
  */
 package com.esri.rttest.send;
 
 import com.esri.rttest.MarathonInfo;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -46,6 +56,7 @@ import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.json.JSONObject;
 
@@ -62,9 +73,24 @@ public class ElasticsearchTrans {
     String idx;
     String typ;
     Integer esbulk;
+    Integer concurrentRequests;
+    Long flushIntervalMs;
     Client client;
 
-    public ElasticsearchTrans(String esnodes, String clusterName, String idx, String typ, Integer esbulk) {
+    // Updated by the BulkProcessor listener
+    private final AtomicLong cntFailed = new AtomicLong();
+
+    /**
+     *
+     * @param esnodes host:port,host:port
+     * @param clusterName
+     * @param idx
+     * @param typ
+     * @param esbulk Docs per bulk request
+     * @param concurrentRequests Bulk requests that can be outstanding while new docs are added; 0 sends the bulk requests synchronously
+     * @param flushIntervalMs Max time before docs added are sent; 0 disables the interval
+     */
+    public ElasticsearchTrans(String esnodes, String clusterName, String idx, String typ, Integer esbulk, Integer concurrentRequests, Long flushIntervalMs) {
 
         try {
 
@@ -73,6 +99,8 @@ public class ElasticsearchTrans {
             this.idx = idx;
             this.typ = typ;
             this.esbulk = esbulk;
+            this.concurrentRequests = concurrentRequests;
+            this.flushIntervalMs = flushIntervalMs;
 
 //            // These are for Elasticsearch 2.x
 //            Settings settings = Settings.settingsBuilder().put("cluster.name", this.clusterName).build();
@@ -98,24 +126,43 @@ public class ElasticsearchTrans {
         }
     }
 
-    public void sendFile(String filename, Integer rate, Integer numToSend) {
+    /**
+     * Source of the IndexRequests for a line. Built from the mapped file on first use; the array is not changed after
+     * so it is shared by all the requests for the line.
+     *
+     * @param sources Built sources by line number
+     * @param lines
+     * @param lineNum
+     * @return json bytes of the line without the line terminator
+     */
+    private byte[] source(byte[][] sources, MappedLineFile lines, int lineNum) {
+        byte[] source = sources[lineNum];
+        if (source == null) {
+            ByteBuffer line = lines.getLine(lineNum);
+            source = new byte[line.remaining()];
+            line.get(source);
+            sources[lineNum] = source;
+        }
+        return source;
+    }
 
-        ArrayList<String> lines = new ArrayList<String>();
+    /**
+     *
+     * @param filename
+     * @param rate
+     * @param numToSend
+     * @param useMap Parse each line into a Map as it is sent instead of using the pre-built byte sources
+     */
+    public void sendFile(String filename, Integer rate, Integer numToSend, boolean useMap) {
 
-        try {
-            FileReader fr = new FileReader(filename);
-            BufferedReader br = new BufferedReader(fr);
+        MappedLineFile lines;
 
-            // Read the file into an array
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-
-            br.close();
-            fr.close();
+        try {
+            // Map the file
+            lines = new MappedLineFile(filename);
         } catch (IOException e) {
             LOG.error("ERROR",e);
+            return;
         }
 
         BulkProcessor bulkProcessor = BulkProcessor.builder(
@@ -130,82 +177,87 @@ public class ElasticsearchTrans {
             public void afterBulk(long executionId,
                     BulkRequest request,
                     BulkResponse response) {
+                if (response.hasFailures()) {
+                    long failed = 0;
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            failed++;
+                        }
+                    }
+                    cntFailed.addAndGet(failed);
+                }
             }
 
             @Override
             public void afterBulk(long executionId,
                     BulkRequest request,
                     Throwable failure) {
+                cntFailed.addAndGet(request.numberOfActions());
                 if (failure != null) {
-                    String ms = failure.getMessage();
-                    if (!ms.isEmpty()) {
-                        System.out.println(ms);
-                    }
+                    // The message can be null (e.g. NoNodeAvailableException causes)
+                    LOG.error("ERROR", failure);
                 }
 
             }
         })
                 .setBulkActions(this.esbulk)
                 .setBulkSize(new ByteSizeValue(1, ByteSizeUnit.GB))
-                .setFlushInterval(TimeValue.timeValueSeconds(5))
-                .setConcurrentRequests(1)
+                .setFlushInterval(this.flushIntervalMs > 0 ? TimeValue.timeValueMillis(this.flushIntervalMs) : null)
+                .setConcurrentRequests(this.concurrentRequests)
                 .build();
 
-        Iterator<String> linesIt = lines.iterator();
+        // Byte sources by line; reused each time the file is recycled
+        byte[][] sources = useMap ? null : new byte[lines.size()][];
+
+        int lineNum = 0;
 
         // Get the System Time
         LocalDateTime st = LocalDateTime.now();
 
         Integer cnt = 0;
 
-        // Delay between each send in nano seconds            
-        Double ns_delay = 1000000000.0 / (double) rate;
-
-        long ns = ns_delay.longValue();
-        if (ns < 0) {
-            ns = 0;  // can't be less than 0 
-        }
+        // Each line is added at its scheduled time
+        RatePacer pacer = new RatePacer(rate);
 
         while (cnt < numToSend) {
             cnt += 1;
-            final long stime = System.nanoTime();
+            pacer.acquire();
 
-            if (!linesIt.hasNext()) {
-                linesIt = lines.iterator();  // Reset Iterator
+            if (lineNum == lines.size()) {
+                lineNum = 0;  // Start from top of file
             }
-            String line = linesIt.next();
 
-            JSONObject json = new JSONObject(lines);
+            if (useMap) {
+                String line = lines.getString(lineNum++);
 
-            Map<String, Object> map = new HashMap<>();
-            Iterator keys = json.keys();
-            
-            while (keys.hasNext()) {
-                String key = (String) keys.next();
-                map.put(key, json.get(key));
-            }
+                JSONObject json = new JSONObject(line);
 
-            bulkProcessor.add(new IndexRequest(this.idx, this.typ).source(map));
+                Map<String, Object> map = new HashMap<>();
+                Iterator keys = json.keys();
 
-            // polls every 10ms
-            Long ct = System.currentTimeMillis();
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    map.put(key, json.get(key));
+                }
+
+                bulkProcessor.add(new IndexRequest(this.idx, this.typ).source(map));
+            } else {
+                // The request wraps the shared bytes of the line; nothing is parsed or copied
+                bulkProcessor.add(new IndexRequest(this.idx, this.typ).source(source(sources, lines, lineNum++), XContentType.JSON));
+            }
 
             if (cnt == 1) {
                 st = LocalDateTime.now();
             }
 
-            long etime;
-            do {
-                // This approach uses a lot of CPU                    
-                etime = System.nanoTime();
-                // Adding the following sleep for a few microsecond reduces the load
-                // However, it also effects the through put
-                //Thread.sleep(0,100);  
-            } while (stime + ns >= etime);
-
         }
 
-        bulkProcessor.close();
+        // Wait for the outstanding bulk requests so the failures are counted
+        try {
+            bulkProcessor.awaitClose(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.error("ERROR",e);
+        }
 
         LocalDateTime et = LocalDateTime.now();
 
@@ -215,7 +267,8 @@ public class ElasticsearchTrans {
 
         double sendRate = (double) cnt / elapsedSeconds;
 
-        System.out.println(cnt + "," + sendRate);
+        // cnt,rate,failed,lag
+        System.out.println(cnt + "," + sendRate + "," + cntFailed.get() + "," + pacer.takeMaxLagMillis());
 
     }
 
@@ -238,8 +291,11 @@ public class ElasticsearchTrans {
         // Command line example: a3:9300 simulator simfile simFile_1000_10s.json 100 1000 20
         // java -cp target/Simulator.jar com.esri.simulator.Elasticsearch3 http://192.168.0.142:1025/simulator/simFile simFile_1000_10s.json 9000 100000 300
         int numargs = args.length;
-        if (numargs != 7 && numargs != 8) {
-            System.err.print("Usage: ElasticsearchTrans <elastic-search-transports> <cluster-name> <index> <type> <file> <rate> <numrecords> (<elastic-bulk-num>)\n");
+        if (numargs < 7 || numargs > 11) {
+            System.err.print("Usage: ElasticsearchTrans <elastic-search-transports> <cluster-name> <index> <type> <file> <rate> <numrecords> (<elastic-bulk-num=1000>) (<concurrent-requests=1>) (<flush-interval-ms=5000>) (<source=bytes>)\n");
+            System.err.print("concurrent-requests: Bulk requests outstanding while docs are added; 0 for synchronous bulk requests\n");
+            System.err.print("flush-interval-ms: Max time before added docs are sent; 0 to only send full bulk requests\n");
+            System.err.print("source: bytes sends the json bytes of each line from the memory mapped file as is; map parses each line into a Map as it is sent\n");
         } else {
 
             String transports = args[0];
@@ -251,10 +307,25 @@ public class ElasticsearchTrans {
             Integer numRecords = Integer.parseInt(args[6]);
 
             Integer elasticBulk = 1000;
-            if (numargs == 8) {
+            if (numargs > 7) {
                 elasticBulk = Integer.parseInt(args[7]);
             }
 
+            Integer concurrentRequests = 1;
+            if (numargs > 8) {
+                concurrentRequests = Integer.parseInt(args[8]);
+            }
+
+            Long flushIntervalMs = 5000L;
+            if (numargs > 9) {
+                flushIntervalMs = Long.parseLong(args[9]);
+            }
+
+            boolean useMap = false;
+            if (numargs > 10) {
+                useMap = args[10].equalsIgnoreCase("map");
+            }
+
             String esnodesSplit[] = transports.split(":");
             if (esnodesSplit.length == 1) {
                 // Assume this is a MarathonName
@@ -284,8 +355,8 @@ public class ElasticsearchTrans {
 //        System.out.println("rate: " + rate);
 //        System.out.println("numRecords: " + numRecords);
 //        System.out.println("elasticBulk: " + elasticBulk);
-            ElasticsearchTrans t = new ElasticsearchTrans(transports, clusterName, idx, typ, elasticBulk);
-            t.sendFile(filename, rate, numRecords);
+            ElasticsearchTrans t = new ElasticsearchTrans(transports, clusterName, idx, typ, elasticBulk, concurrentRequests, flushIntervalMs);
+            t.sendFile(filename, rate, numRecords, useMap);
 
         }
 
@@ -21,19 +21,35 @@
  * Sends lines of a text file to a HTTP Server using HTTP Post
  * Lines are sent at a specified rate.
  * 
+ * Each HttpPosterThread has its own RingBuffer; lines are put on the rings round robin.
+ * Each line is stamped with its intended send time; the poster threads record the latency from
+ * that time to the response. Latency percentiles (ms) for the last interval follow the rate
+ * on each output line; the final line has the percentiles for the whole run.
+ * 
+ * If inFlight is greater than 0 each thread is an HttpAsyncSenderThread that keeps up to inFlight posts
+ * outstanding instead of waiting for each response; a few threads can then drive much higher rates.
+ * 
+ * The optional batch (lines:bytes:format:lingerMs) posts several lines per request as newline delimited
+ * lines (ndjson) or a JSON array (json). Counts and rates are still lines, not requests.
+ * 
+ * 17 Oct 2026: append-time is now a stamp spec (TimestampField) for end-to-end latency to the sink; e.g. csv:2
+ * or json:ts stamps the intended send time in epoch ns.  true is still a csv field of epoch ms at the end.
+ * 
  * Creator: David Jennings
  */
 package com.esri.rttest.send;
 
+import com.esri.rttest.EpochClock;
 import com.esri.rttest.IPPort;
 import com.esri.rttest.IPPorts;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.TimestampField;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.HdrHistogram.Histogram;
 /**
  *
  * @author david
@@ -49,7 +65,12 @@ public class Http {
             + "([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\."
             + "([01]?\\d\\d?|2[0-4]\\d|25[0-5])$";
 
-    LinkedBlockingQueue<String> lbq = new LinkedBlockingQueue<>();
+    // Lines waiting to be sent per thread
+    private static final int RING_CAPACITY = 65536;
+
+    List<RingBuffer<ByteBuffer>> rings = new ArrayList<>();
+
+    List<LatencyRecorder> latencyRecorders = new ArrayList<>();
 
     /**
      *
@@ -59,25 +80,17 @@ public class Http {
      * @param numToSend Number of lines to send. If more than number of lines in
      * file will resend from start.
      * @param numThreads
-     * @param appendTime
+     * @param stamp If not null each line is stamped with its intended send time.
+     * @param waitStrategy How the main and poster threads wait on a full or empty ring.
+     * @param inFlight If greater than 0 each thread is async with up to this many outstanding posts.
+     * @param batch lines:bytes:format:lingerMs for each post; null for one line per post.
      */
-    public void sendFile(String url, String filename, Integer rate, Integer numToSend, Integer numThreads, boolean appendTime) {
+    public void sendFile(String url, String filename, Integer rate, Integer numToSend, Integer numThreads, TimestampField stamp, RingBuffer.WaitStrategy waitStrategy,
+            Integer inFlight, String batch) {
         try {
-            FileReader fr = new FileReader(filename);
-            BufferedReader br = new BufferedReader(fr);
-
-            // Read the file into an array
-            ArrayList<String> lines = new ArrayList<>();
-
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-
-            br.close();
-            fr.close();
-
-            Iterator<String> linesIt = lines.iterator();
+            // Map the file
+            MappedLineFile lines = new MappedLineFile(filename);
+            int lineNum = 0;
 
             IPPorts ipp = new IPPorts(url);
             ArrayList<IPPort> ipPorts = ipp.getIPPorts();
@@ -89,22 +102,37 @@ public class Http {
 
             Integer cnt = 0;
 
-            // Create the HttpPosterThread
-            HttpPosterThread[] threads = new HttpPosterThread[numThreads];
+            // Create the sender threads
+            SenderStats[] threads = new SenderStats[numThreads];
 
             for (int i = 0; i < threads.length; i++) {
 
                 IPPort ipport = ipPorts.get(i % ipPorts.size());
                 String thdURL = ipp.getProtocol() + "://" + ipport.getIp() + ":" + ipport.getPort() + ipp.getPath();
                 System.out.println(thdURL);
-                threads[i] = new HttpPosterThread(lbq, thdURL);
-
-
-                threads[i].start();
+                RingBuffer<ByteBuffer> ring = new RingBuffer<>(RING_CAPACITY, waitStrategy);
+                rings.add(ring);
+                if (inFlight > 0) {
+                    HttpAsyncSenderThread thread = new HttpAsyncSenderThread(ring, thdURL, inFlight, HttpBatcher.parse(batch));
+                    latencyRecorders.add(thread.getLatency());
+                    thread.start();
+                    threads[i] = thread;
+                } else {
+                    HttpPosterThread thread = new HttpPosterThread(ring, thdURL, HttpBatcher.parse(batch));
+                    latencyRecorders.add(thread.getLatency());
+                    thread.start();
+                    threads[i] = thread;
+                }
             }
 
+            // Latency for the last interval and the whole run
+            Histogram interval = LatencyRecorder.newHistogram();
+            Histogram total = LatencyRecorder.newHistogram();
+
             Long timeLastDisplayedRate = System.currentTimeMillis();
-            Long timeStartedBatch = System.currentTimeMillis();
+            // Each line is queued at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
+            int nextRing = 0;
 
             while (cnt < numToSend) {
 
@@ -116,42 +144,32 @@ public class Http {
                     int cntErr = 0;
 
                     // Get Counts from Threads
-                    for (HttpPosterThread thread : threads) {
+                    for (SenderStats thread : threads) {
                         cnts += thread.getCnt();
                         cntErr += thread.getCntErr();
                     }
 
                     Double curRate = (double) cnts / (System.currentTimeMillis() - st) * 1000;
 
-                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate));
+                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate) + "," + pacer.takeMaxLagMillis() + "," + latencies(interval, total));
 
                 }
 
-                if (!linesIt.hasNext()) {
-                    linesIt = lines.iterator();  // Reset Iterator
+                if (lineNum == lines.size()) {
+                    lineNum = 0;  // Start from top of file
                 }
 
-                if (appendTime) {
-                    // assuming CSV
+                long intended = pacer.acquire();
 
-                    line = linesIt.next() + "," + String.valueOf(System.currentTimeMillis()) + "\n";
-                } else {
-                    line = linesIt.next() + "\n";
+                ByteBuffer line = lines.getLine(lineNum++);
+                if (stamp != null) {
+                    line = stamp.stamp(line, EpochClock.toEpochNanos(intended));
                 }
 
-                lbq.put(line);
+                nextRing = RingBuffer.putAny(rings, nextRing, line, intended) + 1;
 
                 cnt += 1;
 
-                if (cnt % rate == 0) {
-                    // Wait until one second before queuing next rate events into lbq
-                    // Send rate events wait until 1 second is up
-                    long timeToWait = 1000 - (System.currentTimeMillis() - timeStartedBatch);
-                    if (timeToWait > 0) {
-                        Thread.sleep(timeToWait);
-                    }
-                    timeStartedBatch = System.currentTimeMillis();
-                }
 
             }
 
@@ -166,17 +184,17 @@ public class Http {
                     timeLastDisplayedRate = System.currentTimeMillis();
 
                     // Get Counts from Threads
-                    for (HttpPosterThread thread : threads) {
+                    for (SenderStats thread : threads) {
                         cnts += thread.getCnt();
                         cntErr += thread.getCntErr();
                     }
 
                     Double curRate = (double) cnts / (System.currentTimeMillis() - st) * 1000;
 
-                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate));
+                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate) + "," + pacer.takeMaxLagMillis() + "," + latencies(interval, total));
 
-                    // End if the lbq is empty
-                    if (lbq.size() == 0) {
+                    // End if the rings are empty
+                    if (queued() == 0) {
                         System.out.println("Queue Empty");
                         break;
                     }
@@ -193,22 +211,22 @@ public class Http {
                         break;
                     }
 
+                    prevCnts = cnts;
                     cnts = 0;
                     cntErr = 0;
-                    prevCnts = cnts;
 
                 }
             }
 
             // Terminate Threads
-            for (HttpPosterThread thread : threads) {
+            for (SenderStats thread : threads) {
                 thread.terminate();
             }
 
             cnts = 0;
             cntErr = 0;
 
-            for (HttpPosterThread thread : threads) {
+            for (SenderStats thread : threads) {
                 cnts += thread.getCnt();
                 cntErr += thread.getCntErr();
                 if (thread.getLastUpdate() > et) et = thread.getLastUpdate();                
@@ -216,7 +234,9 @@ public class Http {
 
             Double sendRate = (double) cnts / (et - st) * 1000;
 
-            System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", sendRate));
+            latencies(interval, total);
+
+            System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", sendRate) + "," + LatencyRecorder.format(total));
 
             System.exit(0);
 
@@ -228,18 +248,47 @@ public class Http {
         }
     }
 
+    /**
+     * Merges the latency recorded by the threads since the last call into interval and total.
+     *
+     * @return p50,p99,p99.9,max for the interval
+     */
+    private String latencies(Histogram interval, Histogram total) {
+        interval.reset();
+        for (LatencyRecorder latency : latencyRecorders) {
+            interval.add(latency.takeInterval());
+        }
+        total.add(interval);
+        return LatencyRecorder.format(interval);
+    }
+
+    private long queued() {
+        long n = 0;
+        for (RingBuffer<ByteBuffer> ring : rings) {
+            if (!ring.isClosed()) {
+                n += ring.size();
+            }
+        }
+        return n;
+    }
+
     public static void main(String args[]) throws Exception {
 
         // Example Command Line args: localhost:8001 simFile_1000_10s.dat 1000 10000
         int numargs = args.length;
-        if (numargs < 4 || numargs > 6) {
+        if (numargs < 4 || numargs > 9) {
             // append append time option was added to support end-to-end latency; I used it for Trinity testing but it's a little confusing
             //System.err.print("Usage: Http <url> <file> <rate> <numrecords> (<append-time-csv>)\n");
             // url: http://server:ip/path 
             // Consider including url: app(http-kafka)/path with this look up ip:port using mesos
             // e.g.  curl http://master.mesos:8080/v2/apps/http-kafka | jq '[.app.tasks[] | {ip: .ipAddresses[].ipAddress, port: .ports[0]}]'
             // http://app(http-kafka)/path would be replaced with http://ip:port/path if more than one then round-robin assign to each thread
-            System.err.print("Usage: Http2 <url> <file> <rate> <numrecords> (<numthreads=1>) \n");
+            System.err.print("Usage: Http2 <url> <file> <rate> <numrecords> (<numthreads=1>) (<append-time=false>) (<wait=park>) (<inFlight=0>) (<batch=0>)\n");
+            System.err.print("append-time: Stamps each line with the send time for end-to-end latency; csv(:N) or json(:name) in epoch ns, add :ms for epoch ms; true is csv:-1:ms; defaults to false\n");
+            System.err.print("wait: spin, yield, or park. How threads wait when their ring is full or empty; defaults to park\n");
+            System.err.print("inFlight: If greater than 0 each thread sends async with up to this many outstanding posts; defaults to 0 (wait for each response)\n");
+            System.err.print("batch: lines:bytes:format:lingerMs (e.g. 1000:1048576:json:10). Posts up to lines lines or bytes bytes per request as ndjson (default) or a json array; waits up to lingerMs (default 10) for more lines; defaults to 0 (one line per post)\n");
+            System.err.print("Output: count,errors,rate,lag,latencies; lines in non-200 responses are counted as errors and are not in count or rate\n");
         } else {
             String url = args[0];
             String file = args[1];
@@ -251,13 +300,28 @@ public class Http {
                 numthreads = Integer.parseInt(args[4]);
             }
 
-            Boolean appendTime = false;
-            if (numargs == 6) {
-                appendTime = Boolean.parseBoolean(args[5]);
+            TimestampField stamp = null;
+            if (numargs > 5) {
+                stamp = TimestampField.parse(args[5]);
+            }
+
+            RingBuffer.WaitStrategy waitStrategy = RingBuffer.WaitStrategy.PARK;
+            if (numargs > 6) {
+                waitStrategy = RingBuffer.parseWaitStrategy(args[6]);
+            }
+
+            Integer inFlight = 0;
+            if (numargs > 7) {
+                inFlight = Integer.parseInt(args[7]);
+            }
+
+            String batch = null;
+            if (numargs > 8) {
+                batch = args[8];
             }
 
             Http t = new Http();
-            t.sendFile(url, file, rate, numrecords, numthreads, appendTime);
+            t.sendFile(url, file, rate, numrecords, numthreads, stamp, waitStrategy, inFlight, batch);
 
         }
 
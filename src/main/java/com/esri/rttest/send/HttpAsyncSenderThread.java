@@ -0,0 +1,251 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Async version of HttpPosterThread.
+ * HttpPosterThread waits for each response before sending the next line so a thread can do at most 1/RTT posts per second.
+ * This thread hands each post to an async client (non-blocking io) and goes on to the next line; responses are
+ * handled in callbacks.  Up to maxInFlight posts can be outstanding; when the window is full the thread waits
+ * for a response before sending the next post.
+ *
+ * The client keeps a pool of up to maxInFlight connections; failed connections are replaced by the pool so the
+ * client does not need to be recreated after a NoHttpResponseException.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.LatencyRecorder;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class HttpAsyncSenderThread extends Thread implements SenderStats {
+
+    private static final Logger LOG = LogManager.getLogger(HttpAsyncSenderThread.class);
+
+    // Max time terminate waits for outstanding posts
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+
+    RingBuffer<ByteBuffer> ring;
+    private volatile boolean running = true;
+
+    private final String url;
+    private final int maxInFlight;
+
+    private final CloseableHttpAsyncClient httpClient;
+
+    // Outstanding post window
+    private final Semaphore window;
+
+    // One or more lines per post
+    private final HttpBatcher batcher;
+
+    // Bodies are returned by the callbacks and reused
+    private final ConcurrentLinkedQueue<ByteArrayBuilder> freeBodies = new ConcurrentLinkedQueue<>();
+
+    // Updated from the client's io threads
+    private final Counter cnt = new Counter();
+    private final Counter cntErr = new Counter();
+    private final Counter numPosts = new Counter();
+    private volatile long lastUpdate;
+
+    // Time from the intended send time to the response
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    @Override
+    public long getCnt() {
+        return cnt.get();
+    }
+
+    @Override
+    public long getCntErr() {
+        return cntErr.get();
+    }
+
+    @Override
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     *
+     * @return Number of posts
+     */
+    @Override
+    public long getNumWrites() {
+        return numPosts.get();
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    HttpAsyncSenderThread(RingBuffer<ByteBuffer> ring, String url, int maxInFlight, HttpBatcher batcher) throws Exception {
+        this.ring = ring;
+        this.batcher = batcher;
+        this.url = url;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+
+        SSLContext sslContext = SSLContext.getInstance("SSL");
+
+        sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                    String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                    String authType) {
+            }
+        }}, new SecureRandom());
+
+        httpClient = HttpAsyncClients
+                .custom()
+                .setSSLContext(sslContext)
+                .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
+                .setMaxConnTotal(maxInFlight)
+                .setMaxConnPerRoute(maxInFlight)
+                .build();
+
+        httpClient.start();
+    }
+
+    @Override
+    public void terminate() {
+        running = false;
+        try {
+            // Let the line in hand and the outstanding posts finish so they are counted
+            this.join(DRAIN_TIMEOUT_MS);
+            if (window.tryAcquire(maxInFlight, DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                window.release(maxInFlight);
+            }
+            httpClient.close();
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private class PostCallback implements FutureCallback<HttpResponse> {
+
+        private final long intended;
+        private final int numLines;
+        private final ByteArrayBuilder body;
+
+        PostCallback(long intended, int numLines, ByteArrayBuilder body) {
+            this.intended = intended;
+            this.numLines = numLines;
+            this.body = body;
+        }
+
+        private void done() {
+            freeBodies.offer(body);
+            window.release();
+        }
+
+        @Override
+        public void completed(HttpResponse resp) {
+            latency.record(intended);
+            // Errors are counted in cntErr only; cnt (the send rate) is the lines accepted
+            if (resp.getStatusLine().getStatusCode() == 200) {
+                cnt.add(numLines);
+            } else {
+                cntErr.add(numLines);
+            }
+            numPosts.increment();
+            lastUpdate = System.currentTimeMillis();
+            done();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            cntErr.add(numLines);
+            done();
+            LOG.error(e.getMessage());
+        }
+
+        @Override
+        public void cancelled() {
+            cntErr.add(numLines);
+            done();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running || batcher.hasPending()) {
+                // The body is owned by the request until its callback
+                ByteArrayBuilder body = freeBodies.poll();
+                if (body == null) {
+                    body = new ByteArrayBuilder(4096);
+                }
+
+                int numLines = batcher.fill(ring, body);
+                if (numLines == 0) {
+                    freeBodies.offer(body);
+                    continue;
+                }
+                // Intended send time of the first line; includes time waiting in the ring and for the window
+                long intended = batcher.getStamp();
+
+                HttpPost httpPost = new HttpPost(url);
+                httpPost.setHeader("Content-type", "application/json");
+                httpPost.setEntity(new ByteArrayEntity(body.array(), 0, body.size()));
+
+                window.acquire();
+                httpClient.execute(httpPost, new PostCallback(intended, numLines, body));
+            }
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        } finally {
+            // Stop Http from putting lines on the ring; what is left is not sent
+            ring.close();
+            cntErr.add(ring.clear() + batcher.clear());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Builds Http post bodies from the lines in a sender thread's ring.
+ * A body holds up to maxLines lines or maxBytes bytes; the lines (without their line terminators) are newline
+ * delimited or a JSON array (each line is an element).  A body with one ndjson line is the line as is.  After the first line the batcher waits up to linger ms
+ * for more lines before the body is sent.
+ *
+ * The default (no batch) is one line per post.
+ *
+ * Each thread needs its own HttpBatcher.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author david
+ */
+public class HttpBatcher {
+
+    public enum Format {
+        NDJSON,
+        JSON
+    }
+
+    private final int maxLines;
+    private final int maxBytes;
+    private final Format format;
+    private final long lingerNanos;
+
+    // Line that did not fit in the last body; first line of the next
+    private ByteBuffer pending;
+    private long pendingStamp;
+
+    // Stamp of the first line in the last body
+    private long stamp;
+
+    /**
+     *
+     * @param maxLines Max lines per body
+     * @param maxBytes Max bytes per body; 0 for no limit. A single line larger than this is sent by itself.
+     * @param format
+     * @param lingerMs Max time to wait for more lines after the first line of a body
+     */
+    public HttpBatcher(int maxLines, int maxBytes, Format format, long lingerMs) {
+        this.maxLines = maxLines < 1 ? 1 : maxLines;
+        this.maxBytes = maxBytes;
+        this.format = format;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+    }
+
+    /**
+     * Parse lines:bytes:format:lingerMs (e.g. 1000:1048576:json:10). Missing parts default to
+     * 1048576 bytes, ndjson and 10ms. Null or 0 is one line per post.
+     *
+     * @param spec
+     * @return
+     */
+    public static HttpBatcher parse(String spec) {
+        if (spec == null) {
+            return new HttpBatcher(1, 0, Format.NDJSON, 0);
+        }
+        String parts[] = spec.split(":");
+        int lines = Integer.parseInt(parts[0]);
+        if (lines <= 1 && parts.length == 1) {
+            return new HttpBatcher(1, 0, Format.NDJSON, 0);
+        }
+        int bytes = parts.length > 1 ? Integer.parseInt(parts[1]) : 1048576;
+        Format format = parts.length > 2 ? Format.valueOf(parts[2].toUpperCase()) : Format.NDJSON;
+        long lingerMs = parts.length > 3 ? Long.parseLong(parts[3]) : 10;
+        return new HttpBatcher(lines, bytes, format, lingerMs);
+    }
+
+    /**
+     *
+     * @return true if a line is waiting for the next body
+     */
+    public boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * Drops the line waiting for the next body.
+     *
+     * @return number of lines dropped
+     */
+    public int clear() {
+        if (pending == null) {
+            return 0;
+        }
+        pending = null;
+        return 1;
+    }
+
+    /**
+     *
+     * @return Stamp (intended send time) of the first line of the last body
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    private int length(ByteBuffer line) {
+        if (format == Format.NDJSON) {
+            return line.remaining();
+        }
+        // Without the line terminator; plus a comma or bracket
+        int end = line.limit();
+        if (end > line.position() && line.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > line.position() && line.get(end - 1) == '\r') {
+            end--;
+        }
+        return end - line.position() + 1;
+    }
+
+    private void append(ByteArrayBuilder body, ByteBuffer line, boolean first) {
+        if (format == Format.NDJSON) {
+            if (!first) {
+                body.append((byte) '\n');
+            }
+            body.append(line);
+        } else {
+            body.append(first ? (byte) '[' : (byte) ',');
+            ByteBuffer json = line.duplicate();
+            json.limit(json.position() + length(line) - 1);
+            body.append(json);
+        }
+    }
+
+    /**
+     * Fills body with the next lines from the ring. Waits up to 100ms for the first line.
+     *
+     * @param ring
+     * @param body Reset before the lines are added
+     * @return Number of lines in the body; 0 if no lines arrived
+     * @throws InterruptedException
+     */
+    public int fill(RingBuffer<ByteBuffer> ring, ByteArrayBuilder body) throws InterruptedException {
+        body.reset();
+
+        ByteBuffer line;
+        if (pending != null) {
+            line = pending;
+            stamp = pendingStamp;
+            pending = null;
+        } else {
+            line = ring.poll(100, TimeUnit.MILLISECONDS);
+            if (line == null) {
+                return 0;
+            }
+            stamp = ring.getStamp();
+        }
+
+        append(body, line, true);
+        int n = 1;
+
+        long deadline = System.nanoTime() + lingerNanos;
+
+        while (n < maxLines) {
+            line = ring.poll();
+            if (line == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                line = ring.poll(remaining, TimeUnit.NANOSECONDS);
+                if (line == null) {
+                    break;
+                }
+            }
+            if (maxBytes > 0 && body.size() + length(line) + 1 > maxBytes) {
+                pending = line;
+                pendingStamp = ring.getStamp();
+                break;
+            }
+            append(body, line, false);
+            n++;
+        }
+
+        if (format == Format.JSON) {
+            body.append((byte) ']');
+        }
+
+        return n;
+    }
+
+}
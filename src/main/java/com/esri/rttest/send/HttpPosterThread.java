@@ -18,10 +18,12 @@
  */
 package com.esri.rttest.send;
 
+import com.esri.rttest.Counter;
+import com.esri.rttest.LatencyRecorder;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.concurrent.LinkedBlockingQueue;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
@@ -29,7 +31,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.logging.log4j.LogManager;
@@ -39,12 +41,12 @@ import org.apache.logging.log4j.Logger;
  *
  * @author david
  */
-public class HttpPosterThread extends Thread {
+public class HttpPosterThread extends Thread implements SenderStats {
     
     private static final Logger LOG = LogManager.getLogger(HttpPosterThread.class);
     
 
-    LinkedBlockingQueue<String> lbq;
+    RingBuffer<ByteBuffer> ring;
     private volatile boolean running = true;
 
     private final String url;
@@ -55,27 +57,54 @@ public class HttpPosterThread extends Thread {
     private CloseableHttpClient httpClient;
 
     private HttpPost httpPost;
+
+    // Reused for each request body
+    private final ByteArrayBuilder body = new ByteArrayBuilder(4096);
+
+    // One or more lines per post
+    private final HttpBatcher batcher;
     
     SSLContext sslContext;
 
-    private long lastUpdate;    
-    private long cntErr;
-    private long cnt;
+    private volatile long lastUpdate;    
+    private final Counter cntErr = new Counter();
+    private final Counter cnt = new Counter();
+    private final Counter numPosts = new Counter();
 
+    // Time from the intended send time to the response
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    @Override
     public long getCntErr() {
-        return cntErr;
+        return cntErr.get();
     }
 
+    @Override
     public long getCnt() {
-        return cnt;
+        return cnt.get();
     }
     
+    @Override
     public long getLastUpdate() {
         return lastUpdate;
     }    
 
-    HttpPosterThread(LinkedBlockingQueue<String> lbq, String url) throws Exception {
-        this.lbq = lbq;
+    /**
+     *
+     * @return Number of posts
+     */
+    @Override
+    public long getNumWrites() {
+        return numPosts.get();
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    HttpPosterThread(RingBuffer<ByteBuffer> ring, String url, HttpBatcher batcher) throws Exception {
+        this.ring = ring;
+        this.batcher = batcher;
         this.url = url;
 
         sslContext = SSLContext.getInstance("SSL");
@@ -126,10 +155,9 @@ public class HttpPosterThread extends Thread {
         //httpClient = HttpClientBuilder.create().build();
         httpPost = new HttpPost(url);
         httpPost.setHeader("Content-type", "application/json");
-        
-        cntErr = 0;
     }
 
+    @Override
     public void terminate() {
         running = false;
     }
@@ -137,12 +165,14 @@ public class HttpPosterThread extends Thread {
     @Override
     public void run() {
         try {
-            while (running) {
-                String line = lbq.take();
-                if (line == null) {
-                    break;
+            while (running || batcher.hasPending()) {
+                int numLines = batcher.fill(ring, body);
+                if (numLines == 0) {
+                    continue;
                 }
-                StringEntity postingString = new StringEntity(line);
+                // Intended send time of the first line; includes time waiting in the ring behind slow requests
+                long intended = batcher.getStamp();
+                ByteArrayEntity postingString = new ByteArrayEntity(body.array(), 0, body.size());
 
                 try {
                 
@@ -151,8 +181,14 @@ public class HttpPosterThread extends Thread {
                     HttpResponse resp = httpClient.execute(httpPost);
                     //CloseableHttpResponse resp = httpClient.execute(httpPost);
 
-                    if (resp.getStatusLine().getStatusCode() != 200) {
-                        cntErr += 1;
+                    latency.record(intended);
+                    numPosts.increment();
+
+                    // Errors are counted in cntErr only; cnt (the send rate) is the lines accepted
+                    if (resp.getStatusLine().getStatusCode() == 200) {
+                        cnt.add(numLines);
+                    } else {
+                        cntErr.add(numLines);
                     }
 
                     // Using EntityUtils.consume hurt my kafkaHttp; did not help other ingest
@@ -160,11 +196,15 @@ public class HttpPosterThread extends Thread {
                     //EntityUtils.consume(respEntity);
                     httpPost.releaseConnection();
 
-                    cnt += 1;
                     lastUpdate = System.currentTimeMillis();
                     
                 } catch (NoHttpResponseException e) {
                     LOG.error(e.getMessage());
+                    // The lines of the post were not sent
+                    cntErr.add(numLines);
+
+                    // Replace the client; close the old one so its connections are released
+                    httpClient.close();
                     httpClient = HttpClients
                             .custom()
                             .setSSLContext(sslContext)
@@ -180,6 +220,10 @@ public class HttpPosterThread extends Thread {
         } catch (InterruptedException | IOException e) {
             LOG.error("ERROR",e);
             
+        } finally {
+            // Stop Http from putting lines on the ring; what is left is not sent
+            ring.close();
+            cntErr.add(ring.clear() + batcher.clear());
         }
     }
 }
@@ -20,21 +20,20 @@
 
 package com.esri.rttest.send;
 
+import com.esri.rttest.EpochClock;
 import com.esri.rttest.MarathonInfo;
-import java.io.BufferedReader;
+import com.esri.rttest.TimestampField;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import java.util.UUID;
 
 import com.sun.org.apache.xpath.internal.operations.Bool;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -43,21 +42,48 @@ import org.apache.logging.log4j.Logger;
  * Sends lines of a text file to a Kafka Topic 
  * Lines are sent at a specified rate.
  * 
+ * With threads greater than 1 the lines are sent by that many KafkaSenderThreads in this process; each
+ * sends its share of the rate.  The threads share producers (producers of them).  This replaces running
+ * several instances (runKafkaTest.sh).
+ * 
+ * Producer settings (e.g. batch.size, linger.ms, compression.type, acks) can be overridden with
+ * producer-props (k=v,k=v).  The key strategy (uuid, none, counter, partition) sets how records are keyed.
+ * 
+ * Each send has a callback (KafkaAcks) that counts the records acknowledged and failed and the time from
+ * send to ack.  The output lines are count,rate,lag followed by acked,failed,ackRate,p50,p99,p99.9,max (ms).
+ * 
+ * The optional stamp (TimestampField) stamps each line with its scheduled send time in epoch ns so a sink
+ * (e.g. TcpSink or WebSocketSink reading the output of a consumer) can measure end-to-end latency.
+ * 
  * @author david
  */
 public class Kafka {
 
     private static final Logger LOG = LogManager.getLogger(Kafka.class);
     
-    private Producer<String, String> producer;
+    private Producer<String, ByteBuffer> producer;
     private String topic;
+    private Properties props;
+    private KafkaRecords.KeyStrategy keyStrategy = KafkaRecords.KeyStrategy.UUID;
+    private final KafkaAcks acks = new KafkaAcks();
+    private TimestampField stamp;
     
     public Kafka(String brokers, String topic) {
+        this(brokers, topic, null);
+    }
+
+    /**
+     * 
+     * @param brokers
+     * @param topic
+     * @param producerProps Overrides for the producer configs: k=v,k=v (e.g. linger.ms=5,compression.type=lz4); null for none
+     */
+    public Kafka(String brokers, String topic, String producerProps) {
         
         
 
             // https://kafka.apache.org/documentation/#producerconfigs
-            Properties props = new Properties();
+            props = new Properties();
             props.put("bootstrap.servers",brokers);
             props.put("client.id", Kafka.class.getName());
             props.put("acks", "1");
@@ -67,14 +93,36 @@ public class Kafka {
             props.put("buffer.memory", 8192000);
             props.put("request.timeout.ms", "11000");
             props.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-            props.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+            props.put("value.serializer", "org.apache.kafka.common.serialization.ByteBufferSerializer");
             /* Addin Simple Partioner didn't help */
             //props.put("partitioner.class", SimplePartitioner.class.getCanonicalName());
+
+            if (producerProps != null) {
+                for (String kv : producerProps.split(",")) {
+                    String parts[] = kv.split("=", 2);
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("Invalid producer property: " + kv);
+                    }
+                    props.put(parts[0].trim(), parts[1].trim());
+                }
+            }
             
             this.producer = new KafkaProducer<>(props);
             this.topic = topic;
             
     }
+
+    public void setKeyStrategy(KafkaRecords.KeyStrategy keyStrategy) {
+        this.keyStrategy = keyStrategy;
+    }
+
+    /**
+     *
+     * @param stamp Lines are stamped with the send time; null for no stamp
+     */
+    public void setStamp(TimestampField stamp) {
+        this.stamp = stamp;
+    }
     
     /**
      * 
@@ -85,30 +133,19 @@ public class Kafka {
      */
     public long sendFile(String filename, Integer rate, long numToSend, Integer burstDelay, long startingCount) {
         try {
-            FileReader fr = new FileReader(filename);
-            BufferedReader br = new BufferedReader(fr);
-            
-            // Read the file into an array
-            ArrayList<String> lines = new ArrayList<>();
-            
-            
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);                
-            }
-            
-            br.close();
-            fr.close();
-            
-            Iterator<String> linesIt = lines.iterator();
+            // Map the file; lines are sent as ByteBuffers without decoding
+            MappedLineFile lines = new MappedLineFile(filename);
+            int lineNum = 0;
             
             // Get the System Time
             Long st = System.currentTimeMillis();
 
             long cnt = startingCount;
             
-            // Tweak used to adjust delays to try and get requested rate
-            Long tweak = 0L;              
+            // Each send (or burst) starts at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
+
+            KafkaRecords records = new KafkaRecords(producer, topic, keyStrategy, startingCount);
             
             /*
                 For rates < 100/s burst is better
@@ -116,47 +153,18 @@ public class Kafka {
             */
             
             
-            // *********** SEND Constant Rate using nanosecond delay *********
+            // *********** SEND Constant Rate; each line at its scheduled time *********
             if (burstDelay == 0) {
-                // Delay between each send in nano seconds            
-                Double ns_delay = 1000000000.0 / (double) rate;
-                
-                // By adding some to the delay you can fine tune to achieve the desired output
-                ns_delay = ns_delay - (tweak * 100);
-                
-                long ns = ns_delay.longValue();
-                if (ns < 0) ns = 0;  // can't be less than 0 
-
-
-                
 
                 while (cnt < numToSend || numToSend < 0) {
                     
                    if (cnt % rate == 0 && cnt > 0) {
-                        // Calculate rate and adjust as needed
+                        // Output rate and how far the sends are behind schedule (ms)
                         Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
 
-                        System.out.println(cnt + "," + String.format("%.0f", curRate));
+                        System.out.println(cnt + "," + String.format("%.0f", curRate) + "," + pacer.takeMaxLagMillis() + "," + acks.report(System.currentTimeMillis() - st));
                     }
 
-                    if (cnt % 1000 == 0 && cnt > 0) {
-                        // Calculate rate and adjust as needed
-                        Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-                        // rate difference as percentage 
-                        Double rateDiff = (rate - curRate) / rate;
-
-                        // Add or subracts up to 100ns 
-                        tweak = (long) (rateDiff * rate);
-
-                        // By adding some to the delay you can fine tune to achieve the desired output
-                        ns = ns - tweak;
-                        if (ns < 0) {
-                            ns = 0;  // can't be less than 0 
-                        }
-
-                    }                             
-                    
                     if (cnt == Integer.MAX_VALUE) {
                         cnt = 0;
                         st = System.currentTimeMillis();
@@ -164,56 +172,37 @@ public class Kafka {
                     
                     cnt += 1;
 
-                    if (!linesIt.hasNext()) linesIt = lines.iterator();  // Reset Iterator
+                    if (lineNum == lines.size()) lineNum = 0;  // Start from top of file
 
-                    line = linesIt.next() + "\n";
+                    ByteBuffer line = lines.getLine(lineNum++);
 
-                    final long stime = System.nanoTime();
-                    
-                    UUID uuid = UUID.randomUUID();
-                    producer.send(new ProducerRecord<>(this.topic, uuid.toString(),line));                                        
+                    long scheduled = pacer.acquire();
 
+                    if (stamp != null) {
+                        line = stamp.stamp(line, EpochClock.toEpochNanos(scheduled));
+                    }
                     
-                    long etime;
-                    do {
-                        // This approach uses a lot of CPU                    
-                        etime = System.nanoTime();
-                        // Adding the following sleep for a few microsecond reduces the load
-                        // However, it also effects the through put
-                        //Thread.sleep(0,100);  
-                    } while (stime + ns >= etime);                
+                    producer.send(records.next(line), acks.callback());
 
                 }
             } else {
                 // *********** SEND in bursts every msDelay ms  *********
 
                 Integer msDelay = burstDelay;
-                Integer numPerBurst = Math.round(rate / 1000 * msDelay); 
+                Integer numPerBurst = (int) Math.round((double) rate / 1000 * msDelay); 
 
                 if (numPerBurst < 1) numPerBurst = 1;
                 
-                Integer delay = burstDelay;
-
                 while (cnt < numToSend || numToSend < 0) {
                     
-                   // Adjust delay every burst
-                    Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-                    Double rateDiff = (rate - curRate) / rate;
-                    tweak = (long) (rateDiff * rate);
-                    delay = delay - Math.round(tweak / 1000.0f);
-                    if (delay < 0) {
-                        delay = 0;  // delay cannot be negative
-                    } else {
-                        Thread.sleep(delay);
-                    }                    
-                                        
-                                        
+                    // Wait for the scheduled start of this burst
+                    long scheduled = pacer.acquire(numPerBurst);
 
                     Integer i = 0;
                     while (i < numPerBurst) {
                         if (cnt % rate == 0 && cnt > 0) {
-                            curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-                            System.out.println(cnt + "," + String.format("%.0f", curRate));
+                            Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
+                            System.out.println(cnt + "," + String.format("%.0f", curRate) + "," + pacer.takeMaxLagMillis() + "," + acks.report(System.currentTimeMillis() - st));
                         }                        
                         
                         if (cnt == Integer.MAX_VALUE) {
@@ -225,12 +214,14 @@ public class Kafka {
                         cnt += 1;
                         
                         i += 1;
-                        if (!linesIt.hasNext()) linesIt = lines.iterator();  // Reset Iterator
+                        if (lineNum == lines.size()) lineNum = 0;  // Start from top of file
 
-                        line = linesIt.next() + "\n";
+                        ByteBuffer line = lines.getLine(lineNum++);
+                        if (stamp != null) {
+                            line = stamp.stamp(line, EpochClock.toEpochNanos(scheduled));
+                        }
 
-                        UUID uuid = UUID.randomUUID();
-                        producer.send(new ProducerRecord<>(this.topic, uuid.toString(),line));
+                        producer.send(records.next(line), acks.callback());
                         
                         // Break out as soon as numToSend is reached
                         if (cnt >= numToSend) {
@@ -248,11 +239,11 @@ public class Kafka {
             
             Double sendRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
             
-            System.out.println(cnt + "," + String.format("%.0f", sendRate));
+            System.out.println(cnt + "," + String.format("%.0f", sendRate) + "," + acks.reportTotal(System.currentTimeMillis() - st));
 
             return cnt;
                              
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             // Could fail on very large files that would fill heap space 
             
             LOG.error("ERROR", e);
@@ -261,6 +252,95 @@ public class Kafka {
         return startingCount;
     }
 
+    /**
+     * Sends the file from numThreads threads.
+     * 
+     * @param filename File with lines of data to be sent.
+     * @param rate Total rate in lines per second; each thread sends rate / numThreads.
+     * @param numToSend Total number of lines to send; less than 0 to send until stopped.
+     * @param numThreads
+     * @param numProducers Number of producers shared by the threads; 0 or numThreads for one per thread.
+     */
+    public void sendFileThreaded(String filename, Integer rate, long numToSend, Integer numThreads, Integer numProducers) {
+        try {
+            MappedLineFile lines = new MappedLineFile(filename);
+
+            if (numProducers <= 0 || numProducers > numThreads) {
+                numProducers = numThreads;
+            }
+
+            List<Producer<String, ByteBuffer>> producers = new ArrayList<>();
+            producers.add(producer);
+            for (int i = 1; i < numProducers; i++) {
+                // Each producer needs its own client.id
+                Properties producerProps = new Properties();
+                producerProps.putAll(props);
+                producerProps.put("client.id", props.getProperty("client.id") + "-" + i);
+                producers.add(new KafkaProducer<>(producerProps));
+            }
+
+            long st = System.currentTimeMillis();
+
+            KafkaSenderThread[] threads = new KafkaSenderThread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                Producer<String, ByteBuffer> threadProducer = producers.get(i % numProducers);
+
+                long threadNumToSend = numToSend;
+                if (numToSend >= 0) {
+                    // Spread the remainder over the first threads
+                    threadNumToSend = numToSend / numThreads + (i < numToSend % numThreads ? 1 : 0);
+                }
+
+                // Each thread starts at a different place in the file; counter keys don't overlap
+                int startLine = (int) ((long) lines.size() * i / numThreads);
+                KafkaRecords records = new KafkaRecords(threadProducer, topic, keyStrategy, (long) i << 40);
+
+                threads[i] = new KafkaSenderThread(threadProducer, records, acks, lines, startLine, (double) rate / numThreads, threadNumToSend, stamp);
+                threads[i].start();
+            }
+
+            long cnt = 0;
+            boolean alive = true;
+            while (alive) {
+                alive = false;
+                for (KafkaSenderThread thread : threads) {
+                    thread.join(1000);
+                    if (thread.isAlive()) {
+                        alive = true;
+                        break;
+                    }
+                }
+
+                cnt = 0;
+                long maxLagNanos = 0;
+                for (KafkaSenderThread thread : threads) {
+                    cnt += thread.getCnt();
+                    maxLagNanos = Math.max(maxLagNanos, thread.takeMaxLagNanos());
+                }
+
+                if (alive) {
+                    Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
+                    System.out.println(cnt + "," + String.format("%.0f", curRate) + "," + String.format("%.1f", maxLagNanos / 1_000_000.0) + "," + acks.report(System.currentTimeMillis() - st));
+                }
+            }
+
+            for (Producer<String, ByteBuffer> p : producers) {
+                p.flush();
+            }
+
+            Double sendRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
+
+            System.out.println(cnt + "," + String.format("%.0f", sendRate) + "," + acks.reportTotal(System.currentTimeMillis() - st));
+
+            for (Producer<String, ByteBuffer> p : producers) {
+                p.close();
+            }
+
+        } catch (IOException | InterruptedException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
   /**
    *
    * @param path Path to a file or directory, with one or more files, with lines of data to be sent.
@@ -303,8 +383,14 @@ public class Kafka {
         
         // Command Line d1.trinity.dev:9092 simFile simFile_1000_10s.dat 1000 10000
         
-        if (args.length != 5 && args.length != 6) {
-            System.err.print("Usage: Kafka <broker-list-or-hub-name> <topic> <file> <rate> <numrecords> (<burst-delay-ms>)\n");
+        if (args.length < 5 || args.length > 11) {
+            System.err.print("Usage: Kafka <broker-list-or-hub-name> <topic> <file> <rate> <numrecords> (<burst-delay-ms=0>) (<threads=1>) (<producers=1>) (<key=uuid>) (<producer-props>) (<stamp=none>)\n");
+            System.err.print("burst-delay-ms: Send in bursts every burst-delay-ms; 0 sends one line at a time. Ignored if threads > 1\n");
+            System.err.print("threads: Number of sending threads; the rate is split between them. With threads > 1 file must be a file (not a directory)\n");
+            System.err.print("producers: Number of producers shared by the threads; 0 for one per thread\n");
+            System.err.print("key: uuid, none, counter, or partition (round robin partitions)\n");
+            System.err.print("producer-props: Producer config overrides k=v,k=v (e.g. batch.size=65536,linger.ms=5,compression.type=lz4,acks=all)\n");
+            System.err.print("stamp: Stamps each line with the send time for end-to-end latency; csv(:N) or json(:name) in epoch ns, add :ms for epoch ms; defaults to none\n");
         } else {
             
             String brokers = args[0];
@@ -316,11 +402,23 @@ public class Kafka {
                 brokers = new MarathonInfo().getBrokers(brokers);
             }   // Otherwise assume it's brokers 
 
-            Kafka t = new Kafka(brokers, args[1]);
-            if (args.length == 5) {
-              t.sendFiles(args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]), 0);
+            Integer burstDelay = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+            Integer numThreads = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+            Integer numProducers = args.length > 7 ? Integer.parseInt(args[7]) : 1;
+            String producerProps = args.length > 9 && !args[9].isEmpty() ? args[9] : null;
+
+            Kafka t = new Kafka(brokers, args[1], producerProps);
+            if (args.length > 8) {
+                t.setKeyStrategy(KafkaRecords.parseKeyStrategy(args[8]));
+            }
+            if (args.length > 10) {
+                t.setStamp(TimestampField.parse(args[10]));
+            }
+
+            if (numThreads > 1) {
+              t.sendFileThreaded(args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]), numThreads, numProducers);
             } else {
-              t.sendFiles(args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]), Integer.parseInt(args[5]));
+              t.sendFiles(args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]), burstDelay);
             }
 
         }
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Counts the records acknowledged by the brokers and the records that failed.
+ * Each send gets a callback from callback(); the callback records the time from the send to the ack.
+ * The rate of sends is only the rate records were put in the producer's buffer; the ack rate is what the
+ * brokers actually accepted.
+ *
+ * Callbacks run on the producers' io threads; the counts and latency recorder can be updated from several threads.
+ * report() should only be called from one thread.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.LatencyRecorder;
+import java.util.concurrent.atomic.AtomicReference;
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaAcks {
+
+    private static final Logger LOG = LogManager.getLogger(KafkaAcks.class);
+
+    private final Counter acked = new Counter();
+    private final Counter failed = new Counter();
+
+    // Send to ack
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final Histogram interval = LatencyRecorder.newHistogram();
+    private final Histogram total = LatencyRecorder.newHistogram();
+
+    // Last error since the last report
+    private final AtomicReference<Exception> lastError = new AtomicReference<>();
+
+    /**
+     * Call just before send.
+     *
+     * @return Callback for one record
+     */
+    public Callback callback() {
+        final long sendNanos = System.nanoTime();
+        return (metadata, exception) -> {
+            if (exception == null) {
+                latency.record(sendNanos);
+                acked.increment();
+            } else {
+                failed.increment();
+                lastError.set(exception);
+            }
+        };
+    }
+
+    public long getAcked() {
+        return acked.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Logs the last error since the last report.
+     *
+     * @param elapsedMs Time since the start of the run
+     * @return acked,failed,ackRate,p50,p99,p99.9,max; latency (ms) is since the last report.
+     */
+    public String report(long elapsedMs) {
+        Exception e = lastError.getAndSet(null);
+        if (e != null) {
+            LOG.error("Send failed: " + e.getMessage());
+        }
+
+        interval.reset();
+        interval.add(latency.takeInterval());
+        total.add(interval);
+
+        return counts(elapsedMs) + "," + LatencyRecorder.format(interval);
+    }
+
+    /**
+     *
+     * @param elapsedMs Time since the start of the run
+     * @return acked,failed,ackRate,p50,p99,p99.9,max; latency (ms) is for the whole run.
+     */
+    public String reportTotal(long elapsedMs) {
+        report(elapsedMs);
+        return counts(elapsedMs) + "," + LatencyRecorder.format(total);
+    }
+
+    private String counts(long elapsedMs) {
+        long a = acked.get();
+        Double ackRate = (double) a / elapsedMs * 1000;
+        return a + "," + failed.get() + "," + String.format("%.0f", ackRate);
+    }
+
+}
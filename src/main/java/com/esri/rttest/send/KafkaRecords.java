@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Creates the ProducerRecords sent by Kafka using a key strategy.
+ *   uuid: random UUID key (the original behavior); generating the UUID is expensive at high rates
+ *   none: no key; the producer picks the partition
+ *   counter: key is a counter (cheap) so records are spread over the partitions by hash
+ *   partition: no key; records are assigned to partitions round robin
+ *
+ * Not thread safe; each sending thread needs its own KafkaRecords.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaRecords {
+
+    public enum KeyStrategy {
+        UUID,
+        NONE,
+        COUNTER,
+        PARTITION
+    }
+
+    private final String topic;
+    private final KeyStrategy keyStrategy;
+    private final int numPartitions;
+
+    private long counter;
+
+    /**
+     *
+     * @param producer Used to look up the number of partitions for the partition strategy
+     * @param topic
+     * @param keyStrategy
+     * @param offset Start value of the counter; use a different offset for each thread
+     */
+    public KafkaRecords(Producer<String, ByteBuffer> producer, String topic, KeyStrategy keyStrategy, long offset) {
+        this.topic = topic;
+        this.keyStrategy = keyStrategy;
+        this.counter = offset;
+        if (keyStrategy == KeyStrategy.PARTITION) {
+            this.numPartitions = producer.partitionsFor(topic).size();
+        } else {
+            this.numPartitions = 0;
+        }
+    }
+
+    public static KeyStrategy parseKeyStrategy(String s) {
+        return KeyStrategy.valueOf(s.toUpperCase());
+    }
+
+    public ProducerRecord<String, ByteBuffer> next(ByteBuffer value) {
+        switch (keyStrategy) {
+            case NONE:
+                return new ProducerRecord<>(topic, value);
+            case COUNTER:
+                return new ProducerRecord<>(topic, Long.toString(counter++), value);
+            case PARTITION:
+                return new ProducerRecord<>(topic, (int) (counter++ % numPartitions), null, value);
+            default:
+                return new ProducerRecord<>(topic, UUID.randomUUID().toString(), value);
+        }
+    }
+
+}
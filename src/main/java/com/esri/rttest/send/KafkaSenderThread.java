@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * One of the sending threads used by Kafka when threads is greater than 1.
+ * Each thread paces its own share of the rate and sends lines of the mapped file starting at
+ * its own line.  The producer can be shared by several threads (KafkaProducer is thread safe).
+ * If stamp is set each line is stamped with its scheduled send time (end-to-end latency).
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.EpochClock;
+import com.esri.rttest.TimestampField;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaSenderThread extends Thread {
+
+    private static final Logger LOG = LogManager.getLogger(KafkaSenderThread.class);
+
+    // How often the lag is published for the reporting thread
+    private static final int LAG_INTERVAL = 1024;
+
+    private final Producer<String, ByteBuffer> producer;
+    private final KafkaRecords records;
+    private final KafkaAcks acks;
+    private final MappedLineFile lines;
+    private final double rate;
+    private final long numToSend;
+    private final TimestampField stamp;
+
+    private int lineNum;
+    private volatile boolean running = true;
+
+    private final Counter cnt = new Counter();
+
+    // Max lag behind schedule since the last takeMaxLagNanos
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    /**
+     *
+     * @param producer
+     * @param records
+     * @param acks Shared by the threads
+     * @param lines
+     * @param startLine Line of the file this thread starts on
+     * @param rate Lines per second for this thread
+     * @param numToSend Lines to send; less than 0 to send until terminated
+     * @param stamp Stamps lines with the send time; null for no stamp
+     */
+    public KafkaSenderThread(Producer<String, ByteBuffer> producer, KafkaRecords records, KafkaAcks acks, MappedLineFile lines, int startLine, double rate, long numToSend, TimestampField stamp) {
+        this.producer = producer;
+        this.records = records;
+        this.acks = acks;
+        this.lines = lines;
+        this.lineNum = startLine;
+        this.rate = rate;
+        this.numToSend = numToSend;
+        this.stamp = stamp;
+    }
+
+    public long getCnt() {
+        return cnt.get();
+    }
+
+    public long takeMaxLagNanos() {
+        return maxLagNanos.getAndSet(0);
+    }
+
+    public void terminate() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            RatePacer pacer = new RatePacer(rate);
+
+            long n = 0;
+            while (running && (n < numToSend || numToSend < 0)) {
+
+                if (lineNum >= lines.size()) {
+                    lineNum = 0;  // Start from top of file
+                }
+
+                ByteBuffer line = lines.getLine(lineNum++);
+
+                long scheduled = pacer.acquire();
+
+                if (stamp != null) {
+                    line = stamp.stamp(line, EpochClock.toEpochNanos(scheduled));
+                }
+
+                producer.send(records.next(line), acks.callback());
+
+                n += 1;
+                cnt.increment();
+
+                if (n % LAG_INTERVAL == 0) {
+                    long lag = pacer.takeMaxLagNanos();
+                    maxLagNanos.accumulateAndGet(lag, Math::max);
+                }
+            }
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Lines of a file used by the senders.
+ * The file is memory mapped instead of being read into an ArrayList<String>.  Heap use
+ * does not depend on the size of the file; only an index with the start of each line is kept (4 bytes per line).
+ * Senders get ByteBuffer slices of the mapped file so the lines are never decoded or re-encoded.
+ *
+ * The file is mapped in regions of up to 1GB. Regions always end on a line boundary so a line
+ * is never split across two regions.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *
+ * @author david
+ */
+public class MappedLineFile {
+
+    private static final int MAX_REGION_SIZE = 1 << 30;
+
+    private final MappedByteBuffer[] regions;
+
+    // Line number of the first line in each region; last entry is the number of lines
+    private final int[] regionFirstLine;
+
+    // Start of each line relative to the start of its region
+    private int[] lineStarts;
+
+    private int numLines;
+
+    // The last line with a newline added; only used if the file does not end with a newline
+    private ByteBuffer lastRecord;
+
+    public MappedLineFile(String filename) throws IOException {
+
+        ArrayList<MappedByteBuffer> regionList = new ArrayList<>();
+        ArrayList<Integer> firstLines = new ArrayList<>();
+
+        lineStarts = new int[1024];
+        numLines = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r");
+                FileChannel fc = raf.getChannel()) {
+
+            long fileSize = fc.size();
+            long pos = 0;
+
+            while (pos < fileSize) {
+                int windowSize = (int) Math.min(MAX_REGION_SIZE, fileSize - pos);
+                boolean lastWindow = pos + windowSize == fileSize;
+
+                MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, windowSize);
+
+                firstLines.add(numLines);
+                addLineStart(0);
+
+                // Find the start of each line in this window
+                int regionEnd = 0;
+                for (int i = 0; i < windowSize; i++) {
+                    if (window.get(i) == '\n') {
+                        regionEnd = i + 1;
+                        if (regionEnd < windowSize) {
+                            addLineStart(regionEnd);
+                        }
+                    }
+                }
+
+                if (lastWindow) {
+                    regionEnd = windowSize;
+                } else if (regionEnd == 0) {
+                    throw new IOException(filename + ": Line starting at byte " + pos + " is longer than " + MAX_REGION_SIZE + " bytes.");
+                } else if (regionEnd < windowSize) {
+                    // Partial line at end of window; it is the first line of the next region
+                    numLines -= 1;
+                }
+
+                window.limit(regionEnd);
+                regionList.add(window);
+                pos += regionEnd;
+            }
+
+        }
+
+        regions = regionList.toArray(new MappedByteBuffer[regionList.size()]);
+        regionFirstLine = new int[firstLines.size() + 1];
+        for (int i = 0; i < firstLines.size(); i++) {
+            regionFirstLine[i] = firstLines.get(i);
+        }
+        regionFirstLine[firstLines.size()] = numLines;
+        lineStarts = Arrays.copyOf(lineStarts, numLines);
+
+        if (numLines > 0) {
+            ByteBuffer rec = slice(numLines - 1, false);
+            if (rec.limit() == 0 || rec.get(rec.limit() - 1) != '\n') {
+                lastRecord = ByteBuffer.allocate(rec.remaining() + 1);
+                lastRecord.put(rec).put((byte) '\n');
+                lastRecord.flip();
+            }
+        }
+
+    }
+
+    private void addLineStart(int start) throws IOException {
+        if (numLines == lineStarts.length) {
+            if (numLines == Integer.MAX_VALUE - 8) {
+                throw new IOException("File has too many lines.");
+            }
+            lineStarts = Arrays.copyOf(lineStarts, (int) Math.min((long) numLines * 2, Integer.MAX_VALUE - 8));
+        }
+        lineStarts[numLines++] = start;
+    }
+
+    private int regionOf(int line) {
+        int r = Arrays.binarySearch(regionFirstLine, 0, regions.length, line);
+        if (r < 0) {
+            r = -r - 2;
+        }
+        return r;
+    }
+
+    private ByteBuffer slice(int line, boolean stripNewline) {
+        if (line < 0 || line >= numLines) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + numLines);
+        }
+        int r = regionOf(line);
+        MappedByteBuffer region = regions[r];
+
+        int start = lineStarts[line];
+        int end = line + 1 < regionFirstLine[r + 1] ? lineStarts[line + 1] : region.limit();
+
+        if (stripNewline) {
+            if (end > start && region.get(end - 1) == '\n') {
+                end--;
+            }
+            if (end > start && region.get(end - 1) == '\r') {
+                end--;
+            }
+        }
+
+        ByteBuffer buf = region.duplicate();
+        buf.limit(end).position(start);
+        return buf.slice();
+    }
+
+    /**
+     *
+     * @return Number of lines in the file.
+     */
+    public int size() {
+        return numLines;
+    }
+
+    /**
+     * The line without the line terminator.
+     *
+     * @param line zero based line number
+     * @return Read only view of the mapped file; position is 0 and limit is the length of the line.
+     */
+    public ByteBuffer getLine(int line) {
+        return slice(line, true);
+    }
+
+    /**
+     * The line including the newline. Use this when the line is sent as is (e.g. Tcp).
+     *
+     * @param line zero based line number
+     * @return Read only view of the mapped file; a newline is added if the last line of the file does not have one.
+     */
+    public ByteBuffer getRecord(int line) {
+        if (lastRecord != null && line == numLines - 1) {
+            return lastRecord.asReadOnlyBuffer();
+        }
+        return slice(line, false);
+    }
+
+    /**
+     * The line decoded as a String without the line terminator. For senders that need a String.
+     *
+     * @param line zero based line number
+     * @return
+     */
+    public String getString(int line) {
+        return StandardCharsets.UTF_8.decode(slice(line, true)).toString();
+    }
+
+}
@@ -21,7 +21,15 @@
 Sends lines of Json to a PostgreSQL database created Point Geometries.  PostgreSQL must have PostGIS installed. 
 You must create the table manually before running command to load data.  If you specify just the first four parameters SQL for create will be provided.
 
-This code has not been setup fro sending at a specified rate yet.  For PostgreSQL ruunning on local VM; rates near 3,000/s are possible.
+Originally this code was not setup for sending at a specified rate.  For PostgreSQL ruunning on local VM; rates near 3,000/s were possible.
+
+17 Oct 2026: Rows were inserted one SQL string at a time.  Rows are now loaded in batches (one transaction per batch) by
+one or more connections using COPY (default), batched prepared statements, or one insert per row; see PostgresqlWriter.
+The geometry is built by the server.  The file is memory mapped.
+
+17 Oct 2026: Sends at a specified rate like Tcp2 and Http.  Lines are queued round robin on the rings of the sender threads
+(one connection each) at their scheduled time; the file is resent from the start until numrecords lines are sent.
+Outputs cnt,err,rate,lag every 5 seconds and cnt,err,rate when done.
 
  */
 package com.esri.rttest.send;
@@ -29,11 +37,11 @@ package com.esri.rttest.send;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -55,6 +63,11 @@ public class Postgresql {
 
     final static int MAXSTRLEN = 100;
 
+    // Lines waiting to be written per thread
+    private static final int RING_CAPACITY = 65536;
+
+    List<RingBuffer<ByteBuffer>> rings = new ArrayList<>();
+
     private void printCreate(String tablename, String fileJsonLines, String geomFieldName, String oidFieldName) {
 
         try {
@@ -117,127 +130,179 @@ public class Postgresql {
 
     }
 
-    private void run(String tablename, String fileJsonLines, String geomFieldName, String oidFieldName, String serverDB, String username, String password, String lonFieldName, String latFieldName) {
+    /**
+     * Column names and types from the fields of a line of json.
+     *
+     * @param line
+     * @return Field name and type (INT, LNG, DBL, or STR); fields of other types are skipped
+     */
+    static LinkedHashMap<String, Integer> readColumns(String line) {
+        LinkedHashMap<String, Integer> columns = new LinkedHashMap<>();
+
+        JSONObject json = new JSONObject(line);
+
+        for (String k : json.keySet()) {
+
+            Object val = json.get(k);
+
+            if (val instanceof Integer) {
+                columns.put(k, INT);
+            } else if (val instanceof Long) {
+                columns.put(k, LNG);
+            } else if (val instanceof Double) {
+                columns.put(k, DBL);
+            } else if (val instanceof String) {
+                columns.put(k, STR);
+            }
+        }
+
+        return columns;
+    }
+
+    private void sendFile(String tablename, String fileJsonLines, String geomFieldName, String serverDB, String username, String password,
+            String lonFieldName, String latFieldName, Integer rate, Integer numToSend, Integer numThreads, PostgresqlWriter.Mode mode, Integer batchSize) {
         try {
+            // Map the file
+            MappedLineFile lines = new MappedLineFile(fileJsonLines);
+            int lineNum = 0;
 
-            // Create DB Connection
-            Connection c;
-            Statement stmt;
-            c = DriverManager
-                    .getConnection("jdbc:postgresql://" + serverDB,
-                            username, password);
-            c.setAutoCommit(false);
-
-            //stmt = c.createStatement();
-            FileReader fr;
-            fr = new FileReader(fileJsonLines);
-
-            try (BufferedReader br = new BufferedReader(fr)) {
-                String line = br.readLine();
-                
-                String sqlPrefix = "";
-                JSONObject json = null;
-                
-                HashMap<String, Integer> jsonMap = new HashMap<>();
-                
-                if (line != null) {
-                    
-                    sqlPrefix = "INSERT INTO " + tablename + " (" + oidFieldName + ",";
-                    
-                    // Create the Schema
-                    json = new JSONObject(line);
-                    
-                    Set<String> ks = json.keySet();
-                    
-                    for (String k : ks) {
-                        //System.out.println(k);
-                        
-                        Object val = json.get(k);
-                        
-                        if (val instanceof Integer) {
-                            jsonMap.put(k, INT);
-                        } else if (val instanceof Long) {
-                            jsonMap.put(k, LNG);
-                        } else if (val instanceof Double) {
-                            jsonMap.put(k, DBL);
-                        } else if (val instanceof String) {
-                            jsonMap.put(k, STR);
-                        }
-                        //System.out.println();
-                        sqlPrefix += k + ",";
-                        
-                    }
-                    
-                    //oid,a,b,clat,clon,rot,num,geom
-                    //sqlPrefix = sqlPrefix.substring(0,sqlPrefix.length() - 1) + ") VALUES (";
-                    sqlPrefix += geomFieldName + ") VALUES (DEFAULT,";
-                    
+            if (lines.size() == 0) {
+                return;
+            }
+
+            LinkedHashMap<String, Integer> columns = readColumns(lines.getString(0));
+
+            // Create the sender threads; one connection each
+            PostgresqlSenderThread[] threads = new PostgresqlSenderThread[numThreads];
+
+            for (int i = 0; i < threads.length; i++) {
+                PostgresqlWriter writer = new PostgresqlWriter(serverDB, username, password, tablename, geomFieldName,
+                        columns, lonFieldName, latFieldName, mode);
+                RingBuffer<ByteBuffer> ring = new RingBuffer<>(RING_CAPACITY, RingBuffer.WaitStrategy.PARK);
+                rings.add(ring);
+                threads[i] = new PostgresqlSenderThread(ring, writer, batchSize);
+                threads[i].start();
+            }
+
+            // Get the System Time as st (Start Time)
+            Long st = System.currentTimeMillis();
+
+            Integer cnt = 0;
+
+            Long timeLastDisplayedRate = System.currentTimeMillis();
+            // Each line is queued at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
+            int nextRing = 0;
+
+            while (cnt < numToSend) {
+
+                if (System.currentTimeMillis() - timeLastDisplayedRate > 5000) {
+                    // Calculate rate and output every 5000ms
+                    timeLastDisplayedRate = System.currentTimeMillis();
+                    System.out.println(counts(threads, st) + "," + pacer.takeMaxLagMillis());
+                }
+
+                if (lineNum == lines.size()) {
+                    lineNum = 0;  // Start from top of file
                 }
 
-                int num = 0;
-                
-                while (line != null) {
-                    //System.out.println(line);
-                    // Create sql line
-                    String sql;
-                    
-                    sql = sqlPrefix;
-                    
-                    for (String key : jsonMap.keySet()) {
-                        
-                        switch (jsonMap.get(key)) {
-                            case INT:
-                                sql += json.getInt(key) + ",";
-                                break;
-                            case LNG:
-                                sql += json.getLong(key) + ",";
-                                break;
-                            case DBL:
-                                sql += json.getDouble(key) + ",";
-                                break;
-                            case STR:
-                                sql += "'" + json.getString(key).replace("'", "''") + "',";
-                                break;
-                            default:
-                                break;
-                        }
-                        
+                pacer.acquire();
+
+                nextRing = RingBuffer.putAny(rings, nextRing, lines.getLine(lineNum++)) + 1;
+
+                cnt += 1;
+
+            }
+
+            long prevCnts = 0;
+
+            while (true) {
+                if (System.currentTimeMillis() - timeLastDisplayedRate > 5000) {
+                    // Calculate rate and output every 5000ms
+                    timeLastDisplayedRate = System.currentTimeMillis();
+
+                    System.out.println(counts(threads, st) + "," + pacer.takeMaxLagMillis());
+
+                    // Lines written or failed; failed lines are not in cnt
+                    long cnts = 0;
+                    for (PostgresqlSenderThread thread : threads) {
+                        cnts += thread.getCnt() + thread.getCntErr();
                     }
-                    
-                    //ST_GeomFromText('POINT(-71.060316 48.432044)', 4326)
-                    //sql = sql.substring(0,sql.length() - 1) + ");";
-                    sql += "ST_GeomFromText('POINT(" + json.getDouble(lonFieldName) + " " + json.getDouble(latFieldName) + ")', 4326)" + ");";
-                    //System.out.println(sql);
-                    
-                    stmt = c.createStatement();
-                    stmt.executeUpdate(sql);
-                    
-                    num += 1;
-                    
-                    if (num % 1000 == 0) {
-                        c.commit();
+
+                    // End if the rings are empty
+                    if (queued() == 0) {
+                        System.out.println("Queue Empty");
+                        break;
+                    }
+
+                    // End if the cnts from threads match what was sent
+                    if (cnts >= numToSend) {
+                        System.out.println("Count Sent >= Number Requested");
+                        break;
                     }
-                    
-                    line = br.readLine();
-                    
-                    if (line != null) {
-                        json = new JSONObject(line);
+
+                    // End if cnts is changing
+                    if (cnts == prevCnts) {
+                        System.out.println("Counts are not changing.");
+                        break;
                     }
-                    
-//                break;
+
+                    prevCnts = cnts;
                 }
-                
-                c.commit();
-                
-                c.close();
+                Thread.sleep(100);
+            }
+
+            // Terminate Threads; each finishes its ring
+            for (PostgresqlSenderThread thread : threads) {
+                thread.terminate();
             }
-            fr.close();
-        } catch (IOException | SQLException | JSONException e) {
+
+            long cnts = 0;
+            long cntErr = 0;
+            long et = st;
+
+            for (PostgresqlSenderThread thread : threads) {
+                cnts += thread.getCnt();
+                cntErr += thread.getCntErr();
+                if (thread.getLastUpdate() > et) et = thread.getLastUpdate();
+            }
+
+            Double sendRate = (double) cnts / (et - st) * 1000;
+
+            System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", sendRate));
+
+        } catch (IOException | SQLException | JSONException | InterruptedException | IllegalStateException e) {
             LOG.error("ERROR", e);
         }
 
     }
 
+    // cnt,err,rate
+    private String counts(PostgresqlSenderThread[] threads, long st) {
+        long cnts = 0;
+        long cntErr = 0;
+
+        // Get Counts from Threads
+        for (PostgresqlSenderThread thread : threads) {
+            cnts += thread.getCnt();
+            cntErr += thread.getCntErr();
+        }
+
+        Double curRate = (double) cnts / (System.currentTimeMillis() - st) * 1000;
+
+        return cnts + "," + cntErr + "," + String.format("%.0f", curRate);
+    }
+
+    private long queued() {
+        long n = 0;
+        for (RingBuffer<ByteBuffer> ring : rings) {
+            if (!ring.isClosed()) {
+                n += ring.size();
+            }
+        }
+        return n;
+    }
+
     public static void main(String[] args) {
         Postgresql t = new Postgresql();
 
@@ -252,7 +317,7 @@ public class Postgresql {
 //        String lonFieldName = "lon";
 //        String latFieldName = "lat";
 //        //t.printCreate(tableName, filename, geomFieldName, oidFieldName);
-//        t.run(tableName, filename, geomFieldName, oidFieldName, serverConn, username, password, lonFieldName, latFieldName);
+//        t.sendFile(tableName, filename, geomFieldName, serverConn, username, password, lonFieldName, latFieldName, 5000, 100000, 1, PostgresqlWriter.Mode.COPY, 1000);
         String tableName;
         String filename;
         String geomFieldName;
@@ -266,12 +331,16 @@ public class Postgresql {
 
         int numargs = args.length;
 
-        if (numargs != 4 && numargs != 9) {
+        if (numargs != 4 && (numargs < 11 || numargs > 14)) {
             System.err.println("Usage Print Create Table: Postgresql [tableName] [fileName] [geomFieldName] [oidFieldName]");
-            System.err.println("Usage Load Data: Postgresql [tableName] [fileName] [geomFieldName] [oidFieldName] [serverConn] [username] [password] [lonFieldName] [latFieldName]");
-            System.err.println("Example: java -cp target/rttest.jar com.esri.rttest.send.Postgresql planes planes.json geom gid 192.168.57.2:5432/gis1 gis PASSWORD lon lat");
+            System.err.println("Usage Load Data: Postgresql [tableName] [fileName] [geomFieldName] [oidFieldName] [serverConn] [username] [password] [lonFieldName] [latFieldName] [rate] [numrecords] ([numThreads=1]) ([mode=copy]) ([batch=1000])");
+            System.err.println("Example: java -cp target/rttest.jar com.esri.rttest.send.Postgresql planes planes.json geom gid 192.168.57.2:5432/gis1 gis PASSWORD lon lat 5000 100000");
             System.err.println("Loads lines from file planes.json to table planes. The table planes has oidFieldName of gid and geomFieldName of geom.  The serverConn is the IP:PORT/database.");
             System.err.println("  You'll need to specify the username and password that can insert into the table.  The lonFieldName (lon) and latFieldname (lat) from the json that will be used to create points.");
+            System.err.println("  rate: Lines per second; numrecords: Lines to send, the file is resent from the start as needed.");
+            System.err.println("  numThreads: Number of connections writing rows in parallel.");
+            System.err.println("  mode: copy (COPY FROM STDIN), batch (batched prepared inserts), or insert (one insert per row).");
+            System.err.println("  batch: Max rows per transaction.");
 
         } else {
             tableName = args[0];
@@ -288,8 +357,25 @@ public class Postgresql {
                 password = args[6];
                 lonFieldName = args[7];
                 latFieldName = args[8];
+                Integer rate = Integer.parseInt(args[9]);
+                Integer numRecords = Integer.parseInt(args[10]);
+
+                Integer numThreads = 1;
+                if (numargs > 11) {
+                    numThreads = Integer.parseInt(args[11]);
+                }
+
+                PostgresqlWriter.Mode mode = PostgresqlWriter.Mode.COPY;
+                if (numargs > 12) {
+                    mode = PostgresqlWriter.Mode.valueOf(args[12].toUpperCase());
+                }
+
+                Integer batchSize = 1000;
+                if (numargs > 13) {
+                    batchSize = Integer.parseInt(args[13]);
+                }
 
-                t.run(tableName, filename, geomFieldName, oidFieldName, serverConn, username, password, lonFieldName, latFieldName);
+                t.sendFile(tableName, filename, geomFieldName, serverConn, username, password, lonFieldName, latFieldName, rate, numRecords, numThreads, mode, batchSize);
             }
         }
 
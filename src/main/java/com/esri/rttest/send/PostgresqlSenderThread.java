@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * One of the Postgresql sender threads; each thread has its own connection (PostgresqlWriter) and ring.
+ * The thread takes whatever lines are waiting in its ring (up to batch lines) and writes them in one transaction;
+ * at low rates the transactions are small, when the database falls behind they grow up to batch.
+ *
+ * cnt is the rows written; cntErr is the rows that failed (as in Http).  When the thread stops the ring is closed so
+ * Postgresql stops putting lines on it; the lines left in the ring are counted as errors.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Counter;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class PostgresqlSenderThread extends Thread implements SenderStats {
+
+    private static final Logger LOG = LogManager.getLogger(PostgresqlSenderThread.class);
+
+    private final RingBuffer<ByteBuffer> ring;
+    private final PostgresqlWriter writer;
+    private final ArrayList<ByteBuffer> batch;
+    private final int batchSize;
+
+    private volatile boolean running = true;
+
+    private final Counter cnt = new Counter();
+    private final Counter cntErr = new Counter();
+    private final Counter numWrites = new Counter();
+    private volatile long lastUpdate;
+
+    @Override
+    public long getCnt() {
+        return cnt.get();
+    }
+
+    @Override
+    public long getCntErr() {
+        return cntErr.get();
+    }
+
+    @Override
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     *
+     * @return Number of transactions
+     */
+    @Override
+    public long getNumWrites() {
+        return numWrites.get();
+    }
+
+    PostgresqlSenderThread(RingBuffer<ByteBuffer> ring, PostgresqlWriter writer, int batchSize) {
+        this.ring = ring;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void terminate() {
+        running = false;
+        try {
+            // Let the batch in hand finish so it is counted
+            this.join(10000);
+        } catch (InterruptedException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running || !ring.isEmpty()) {
+                ByteBuffer line = ring.poll(100, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    continue;
+                }
+
+                batch.clear();
+                batch.add(line);
+                ring.drainTo(batch, batchSize - 1);
+
+                // Lines that failed are counted in cntErr only; cnt (the send rate) is the lines written
+                try {
+                    int n = writer.write(batch);
+                    cnt.add(n);
+                    cntErr.add(batch.size() - n);
+                } catch (SQLException e) {
+                    cntErr.add(batch.size());
+                    LOG.error("ERROR", e);
+                }
+                batch.clear();
+
+                numWrites.increment();
+                lastUpdate = System.currentTimeMillis();
+            }
+
+        } catch (InterruptedException e) {
+            LOG.error("ERROR", e);
+        } finally {
+            // Stop Postgresql from putting lines on the ring; what is left (and a batch not written) is not sent
+            ring.close();
+            cntErr.add(batch.size() + ring.clear());
+            writer.close();
+        }
+    }
+}
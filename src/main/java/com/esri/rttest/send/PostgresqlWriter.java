@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Writes lines of json as rows of a PostGIS table using one connection.
+ *   insert: one INSERT per row
+ *   batch: the rows are sent as a JDBC batch; the driver rewrites the batch as multi-row INSERTs (reWriteBatchedInserts)
+ *   copy: the rows are streamed with COPY ... FROM STDIN (text format) using the pgjdbc CopyManager
+ *
+ * The point geometry is built by the server from the lon and lat fields: ST_MakePoint for the inserts and
+ * EWKT (SRID=4326;POINT(lon lat)) for copy.  Each call to write is one transaction.
+ *
+ * Not thread safe; each thread needs its own writer.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ *
+ * @author david
+ */
+public class PostgresqlWriter {
+
+    public enum Mode {
+        INSERT,
+        BATCH,
+        COPY
+    }
+
+    private final Connection c;
+    private final Mode mode;
+
+    // Column name and type (Postgresql.INT, LNG, DBL, or STR)
+    private final LinkedHashMap<String, Integer> columns;
+    private final String lonFieldName;
+    private final String latFieldName;
+
+    private PreparedStatement insert;
+
+    private CopyManager copyManager;
+    private String copySql;
+
+    // Rows for the copy; reused for each write
+    private final ByteArrayBuilder copyRows = new ByteArrayBuilder(1024 * 1024);
+    private final StringBuilder row = new StringBuilder(256);
+
+    /**
+     *
+     * @param serverDB ip:port/database
+     * @param username
+     * @param password
+     * @param tablename
+     * @param geomFieldName
+     * @param columns Columns from the json; see Postgresql.readColumns
+     * @param lonFieldName
+     * @param latFieldName
+     * @param mode
+     * @throws SQLException
+     */
+    public PostgresqlWriter(String serverDB, String username, String password, String tablename, String geomFieldName,
+            LinkedHashMap<String, Integer> columns, String lonFieldName, String latFieldName, Mode mode) throws SQLException {
+
+        this.columns = columns;
+        this.lonFieldName = lonFieldName;
+        this.latFieldName = latFieldName;
+        this.mode = mode;
+
+        Properties props = new Properties();
+        props.setProperty("user", username);
+        props.setProperty("password", password);
+        // Send batches as multi-row inserts instead of one insert per row
+        props.setProperty("reWriteBatchedInserts", "true");
+
+        c = DriverManager.getConnection("jdbc:postgresql://" + serverDB, props);
+        c.setAutoCommit(false);
+
+        String names = String.join(",", columns.keySet()) + "," + geomFieldName;
+
+        if (mode == Mode.COPY) {
+            copyManager = c.unwrap(PGConnection.class).getCopyAPI();
+            copySql = "COPY " + tablename + " (" + names + ") FROM STDIN";
+        } else {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + tablename + " (" + names + ") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append("?,");
+            }
+            sql.append("ST_SetSRID(ST_MakePoint(?,?),4326))");
+            insert = c.prepareStatement(sql.toString());
+        }
+    }
+
+    /**
+     * Writes the lines in one transaction. Lines that are not valid json or are missing a field are skipped.
+     *
+     * @param lines
+     * @return Number of rows written
+     * @throws SQLException The transaction is rolled back; none of the lines were written.
+     */
+    public int write(List<ByteBuffer> lines) throws SQLException {
+        try {
+            int n;
+            if (mode == Mode.COPY) {
+                n = copy(lines);
+            } else {
+                n = insert(lines);
+            }
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        }
+    }
+
+    private int insert(List<ByteBuffer> lines) throws SQLException {
+        int n = 0;
+        for (ByteBuffer line : lines) {
+            try {
+                JSONObject json = new JSONObject(StandardCharsets.UTF_8.decode(line.duplicate()).toString());
+                int p = 1;
+                for (Map.Entry<String, Integer> col : columns.entrySet()) {
+                    switch (col.getValue()) {
+                        case Postgresql.INT:
+                            insert.setInt(p++, json.getInt(col.getKey()));
+                            break;
+                        case Postgresql.LNG:
+                            insert.setLong(p++, json.getLong(col.getKey()));
+                            break;
+                        case Postgresql.DBL:
+                            insert.setDouble(p++, json.getDouble(col.getKey()));
+                            break;
+                        default:
+                            insert.setString(p++, json.getString(col.getKey()));
+                            break;
+                    }
+                }
+                insert.setDouble(p++, json.getDouble(lonFieldName));
+                insert.setDouble(p, json.getDouble(latFieldName));
+            } catch (JSONException e) {
+                insert.clearParameters();
+                continue;
+            }
+
+            if (mode == Mode.BATCH) {
+                insert.addBatch();
+            } else {
+                insert.executeUpdate();
+            }
+            n++;
+        }
+        if (mode == Mode.BATCH && n > 0) {
+            insert.executeBatch();
+        }
+        return n;
+    }
+
+    private int copy(List<ByteBuffer> lines) throws SQLException {
+        copyRows.reset();
+
+        int n = 0;
+        for (ByteBuffer line : lines) {
+            row.setLength(0);
+            try {
+                JSONObject json = new JSONObject(StandardCharsets.UTF_8.decode(line.duplicate()).toString());
+                for (Map.Entry<String, Integer> col : columns.entrySet()) {
+                    switch (col.getValue()) {
+                        case Postgresql.INT:
+                            row.append(json.getInt(col.getKey()));
+                            break;
+                        case Postgresql.LNG:
+                            row.append(json.getLong(col.getKey()));
+                            break;
+                        case Postgresql.DBL:
+                            row.append(json.getDouble(col.getKey()));
+                            break;
+                        default:
+                            appendEscaped(json.getString(col.getKey()));
+                            break;
+                    }
+                    row.append('\t');
+                }
+                row.append("SRID=4326;POINT(").append(json.getDouble(lonFieldName)).append(' ')
+                        .append(json.getDouble(latFieldName)).append(")\n");
+            } catch (JSONException e) {
+                continue;
+            }
+            copyRows.append(row.toString());
+            n++;
+        }
+
+        if (n > 0) {
+            CopyIn copyIn = copyManager.copyIn(copySql);
+            try {
+                copyIn.writeToCopy(copyRows.array(), 0, copyRows.size());
+                copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+        }
+        return n;
+    }
+
+    // Escapes for the COPY text format
+    private void appendEscaped(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '\\':
+                    row.append("\\\\");
+                    break;
+                case '\t':
+                    row.append("\\t");
+                    break;
+                case '\n':
+                    row.append("\\n");
+                    break;
+                case '\r':
+                    row.append("\\r");
+                    break;
+                default:
+                    row.append(ch);
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            if (insert != null) {
+                insert.close();
+            }
+            c.close();
+        } catch (SQLException e) {
+            // Closing; nothing to do
+        }
+    }
+
+}
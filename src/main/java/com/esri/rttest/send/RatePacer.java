@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Rate control shared by the senders.
+ * Replaces the per sender spin loops with a tweak and the sleep once every rate lines.
+ *
+ * Each send has an intended start time on an absolute timeline: start + n / rate.
+ * acquire() waits until the intended start time of the next send; the wait parks until
+ * close to the time then spins for the last SPIN_NANOS.  Because the timeline is absolute
+ * errors in one wait are not carried into the next and the rate does not drift.
+ *
+ * If the sender falls behind acquire() returns right away; the difference between now and the
+ * intended start time is the lag.  A growing lag means the generator (not the server)
+ * can not keep up with the requested rate.
+ *
+ * pause() moves the timeline later (e.g. a sender backing off from a busy server) so the sends after the pause
+ * keep the rate instead of bursting to catch up.
+ *
+ * Not thread safe; each thread that paces sends needs its own RatePacer.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author david
+ */
+public class RatePacer {
+
+    // Park until this close to the intended time then spin
+    private static final long SPIN_NANOS = 50_000L;
+
+    private final double nanosPerSend;
+    private long startNanos;
+
+    // Number of sends acquired
+    private long n;
+
+    private long lagNanos;
+    private long maxLagNanos;
+
+    /**
+     *
+     * @param rate Sends per second; 0 or less does not wait (as fast as possible).
+     */
+    public RatePacer(double rate) {
+        this.nanosPerSend = rate > 0 ? 1_000_000_000.0 / rate : 0.0;
+        this.startNanos = System.nanoTime();
+        this.n = 0;
+    }
+
+    /**
+     * Waits until the intended start time of the next send.
+     *
+     * @return The intended start time (System.nanoTime() timeline).
+     */
+    public long acquire() {
+        return acquire(1);
+    }
+
+    /**
+     * Waits until the intended start time of the next permits sends (e.g. a batch).
+     *
+     * @param permits
+     * @return The intended start time of the first send (System.nanoTime() timeline).
+     */
+    public long acquire(int permits) {
+        long intended = startNanos + (long) (n * nanosPerSend);
+        n += permits;
+
+        long now = System.nanoTime();
+        long remaining = intended - now;
+
+        if (remaining <= 0) {
+            lagNanos = -remaining;
+            if (lagNanos > maxLagNanos) {
+                maxLagNanos = lagNanos;
+            }
+            return intended;
+        }
+
+        lagNanos = 0;
+        while (remaining > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+            remaining = intended - System.nanoTime();
+        }
+        while (System.nanoTime() - intended < 0) {
+            // spin
+        }
+        return intended;
+    }
+
+    /**
+     * Waits and moves the timeline later by the time waited so the sends after the pause are not sent in a burst to
+     * make up for it.  If the sender was already behind the lag is dropped too; the next send is due now.
+     *
+     * @param millis
+     * @throws InterruptedException
+     */
+    public void pause(long millis) throws InterruptedException {
+        long st = System.nanoTime();
+        Thread.sleep(millis);
+        long now = System.nanoTime();
+        startNanos += now - st;
+        long next = startNanos + (long) (n * nanosPerSend);
+        if (next < now) {
+            startNanos += now - next;
+        }
+    }
+
+    /**
+     *
+     * @return Number of sends acquired.
+     */
+    public long getCount() {
+        return n;
+    }
+
+    /**
+     *
+     * @return How far behind the timeline the last send started.
+     */
+    public long getLagNanos() {
+        return lagNanos;
+    }
+
+    /**
+     * The largest lag since the last call; use once per report.
+     *
+     * @return
+     */
+    public long takeMaxLagNanos() {
+        long m = maxLagNanos;
+        maxLagNanos = 0;
+        return m;
+    }
+
+    /**
+     * Max lag since the last call in ms; formatted for the sender output lines.
+     *
+     * @return
+     */
+    public String takeMaxLagMillis() {
+        return String.format("%.1f", takeMaxLagNanos() / 1_000_000.0);
+    }
+
+}
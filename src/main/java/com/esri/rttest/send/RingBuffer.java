@@ -0,0 +1,413 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Single producer single consumer ring buffer used to hand lines from the main thread to a sender thread.
+ * Replaces the shared LinkedBlockingQueue: the slots are preallocated, there are no locks and
+ * the head and tail counters are padded so the producer and consumer don't share a cache line.
+ *
+ * Each sender thread gets its own ring; the main thread is the only producer for all of them.
+ * When a ring is full (producer) or empty (consumer) the thread waits using the WaitStrategy.
+ *
+ * Each slot can also hold a long stamp (e.g. the intended send time from RatePacer); after poll/take
+ * the consumer reads the stamp of that element with getStamp().
+ *
+ * A consumer that stops (e.g. all of its connections failed) closes its ring; putAny skips closed rings and fails
+ * if every ring is closed instead of waiting forever for room.  A ring can be closed and cleared between putAny's
+ * check and its offer; putAny checks again after the offer and moves what the consumer did not clear to another ring.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author david
+ * @param <E>
+ */
+public class RingBuffer<E> {
+
+    public enum WaitStrategy {
+        // Lowest latency; uses a full core while waiting
+        SPIN,
+        // Gives up the cpu to other threads while waiting
+        YIELD,
+        // Sleeps PARK_NANOS while waiting; lowest cpu use
+        PARK
+    }
+
+    private static final long PARK_NANOS = 50_000L;
+
+    // Keep the counter on its own cache line
+    @SuppressWarnings("unused")
+    private static class PaddedSequence extends AtomicLong {
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        // Copy of the other side's counter; avoids reading its cache line on every call
+        long cached;
+        long q1, q2, q3, q4, q5, q6, q7;
+    }
+
+    private final Object[] buffer;
+    private final long[] stamps;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // Next slot to read; written by the consumer
+    private final PaddedSequence head = new PaddedSequence();
+
+    // Next slot to write; written by the producer
+    private final PaddedSequence tail = new PaddedSequence();
+
+    // Stamp of the last element returned by poll; consumer only
+    private long stamp;
+
+    // Set by the consumer when it stops taking elements
+    private volatile boolean closed = false;
+
+    /**
+     *
+     * @param capacity Rounded up to a power of 2
+     * @param waitStrategy
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.stamps = new long[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public static WaitStrategy parseWaitStrategy(String s) {
+        return WaitStrategy.valueOf(s.toUpperCase());
+    }
+
+    private void waitOnce() {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+        }
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * Consumer only. The consumer has stopped taking elements; the producer skips this ring.
+     * Call clear() after to drop what is left.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Consumer only. Drops the elements in the ring.
+     *
+     * @return number of elements dropped
+     */
+    public int clear() {
+        long h;
+        long t;
+        // CAS; after close putAny can take back elements at the same time
+        do {
+            h = head.get();
+            t = tail.get();
+        } while (h < t && !head.compareAndSet(h, t));
+        head.cached = t;
+        for (long k = h; k < t; k++) {
+            buffer[(int) k & mask] = null;
+        }
+        return (int) Math.max(t - h, 0);
+    }
+
+    /**
+     * Producer only.
+     *
+     * @param e
+     * @return false if the ring is full
+     */
+    public boolean offer(E e) {
+        return offer(e, 0L);
+    }
+
+    /**
+     * Producer only.
+     *
+     * @param e
+     * @param stamp
+     * @return false if the ring is full
+     */
+    public boolean offer(E e, long stamp) {
+        return offer(e, stamp, false);
+    }
+
+    /**
+     * Producer only.
+     *
+     * @param fence If true the new tail is a volatile write so a closed read after it can not be reordered before it
+     */
+    private boolean offer(E e, long stamp, boolean fence) {
+        long t = tail.get();
+        if (t - tail.cached >= buffer.length) {
+            tail.cached = head.get();
+            if (t - tail.cached >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        stamps[(int) t & mask] = stamp;
+        // Publish the slot; ordered store so the consumer sees the element before the new tail
+        if (fence) {
+            tail.set(t + 1);
+        } else {
+            tail.lazySet(t + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Producer only. Waits until there is room.
+     *
+     * @param e
+     * @throws InterruptedException
+     * @throws IllegalStateException if the ring is closed
+     */
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (closed) {
+                throw new IllegalStateException("The ring is closed; its consumer has stopped.");
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitOnce();
+        }
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= head.cached) {
+            head.cached = tail.get();
+            if (h >= head.cached) {
+                return null;
+            }
+        }
+        int i = (int) h & mask;
+        E e = (E) buffer[i];
+        buffer[i] = null;
+        stamp = stamps[i];
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * Consumer only. Waits up to timeout for an element.
+     *
+     * @param timeout
+     * @param unit
+     * @return null if nothing arrived before the timeout
+     * @throws InterruptedException
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            waitOnce();
+        }
+        return e;
+    }
+
+    /**
+     * Consumer only. Waits until there is an element.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitOnce();
+        }
+        return e;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return Stamp of the element last returned by poll or take; not set by drainTo.
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Consumer only. Moves up to maxElements to c without waiting.
+     *
+     * @param c
+     * @param maxElements
+     * @return number of elements moved
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        long h = head.get();
+        long t = tail.get();
+        head.cached = t;
+        int n = (int) Math.min(t - h, Math.max(maxElements, 0));
+        for (int k = 0; k < n; k++) {
+            int i = (int) (h + k) & mask;
+            c.add((E) buffer[i]);
+            buffer[i] = null;
+        }
+        if (n > 0) {
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    /**
+     * Producer only. Puts e on the first open ring with room starting at ring start;
+     * if all of the open rings are full waits using the wait strategy of the rings.
+     *
+     * @param <E>
+     * @param rings
+     * @param start
+     * @param e
+     * @return index of the ring used
+     * @throws InterruptedException
+     * @throws IllegalStateException if every ring is closed
+     */
+    public static <E> int putAny(List<RingBuffer<E>> rings, int start, E e) throws InterruptedException {
+        return putAny(rings, start, e, 0L);
+    }
+
+    /**
+     * Same as putAny with a stamp for the element.
+     *
+     * @param <E>
+     * @param rings
+     * @param start
+     * @param e
+     * @param stamp
+     * @return index of the ring used
+     * @throws InterruptedException
+     * @throws IllegalStateException if every ring is closed
+     */
+    public static <E> int putAny(List<RingBuffer<E>> rings, int start, E e, long stamp) throws InterruptedException {
+        int n = rings.size();
+        while (true) {
+            boolean open = false;
+            for (int k = 0; k < n; k++) {
+                int i = (start + k) % n;
+                RingBuffer<E> ring = rings.get(i);
+                if (ring.closed) {
+                    continue;
+                }
+                open = true;
+                if (ring.offer(e, stamp, true)) {
+                    if (ring.closed) {
+                        // Closed after the check above; either clear() saw the element or it is taken back here
+                        return ring.takeBack(rings, i + 1, i);
+                    }
+                    return i;
+                }
+            }
+            if (!open) {
+                throw new IllegalStateException("Every ring is closed; the sender threads have stopped.");
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            rings.get(start % n).waitOnce();
+        }
+    }
+
+    /**
+     * Producer only; the ring is closed.  Takes back the elements the consumer did not clear and puts them on the
+     * other rings.
+     *
+     * @return index of the ring used for the last element; used if nothing was taken back
+     */
+    @SuppressWarnings("unchecked")
+    private int takeBack(List<RingBuffer<E>> rings, int start, int used) throws InterruptedException {
+        long h;
+        long t;
+        do {
+            h = head.get();
+            t = tail.get();
+            if (h >= t) {
+                return used;
+            }
+        } while (!head.compareAndSet(h, t));
+        for (long k = h; k < t; k++) {
+            int i = (int) k & mask;
+            E e = (E) buffer[i];
+            buffer[i] = null;
+            used = putAny(rings, start, e, stamps[i]);
+        }
+        return used;
+    }
+
+}
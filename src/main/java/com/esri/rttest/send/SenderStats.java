@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+/**
+ * Counts exposed by the sender threads so the driver (e.g. Tcp2) can report
+ * cnt,cntErr,rate without knowing how the lines are actually written.
+ *
+ * @author david
+ */
+public interface SenderStats {
+
+    long getCnt();
+
+    long getCntErr();
+
+    long getLastUpdate();
+
+    /**
+     *
+     * @return Number of socket write calls; cnt / numWrites is the number of lines per syscall.
+     */
+    long getNumWrites();
+
+    /**
+     *
+     * @return Number of lines the thread has taken from its ring but not written yet.
+     */
+    default long getPending() {
+        return 0;
+    }
+
+    void terminate();
+
+}
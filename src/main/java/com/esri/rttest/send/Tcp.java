@@ -35,6 +35,9 @@
  *      ip associated with the name.  tcp-kafka.marathon.mesos might have 4 ip; each ip gets a socket.
  *      With this change I could get rates with 4 instances up to around 500,000/s on Azure.
  * 
+ * 17 Oct 2026: Replaced the spin loop and tweak with RatePacer. Each line is sent at its scheduled time
+ *      (start + n / rate) instead of a fixed delay after the previous send.  The output includes the
+ *      max lag (ms) behind schedule since the last output.
  * 
  * Creator: David Jennings
  */
@@ -42,13 +45,11 @@ package com.esri.rttest.send;
 
 import com.esri.rttest.IPPort;
 import com.esri.rttest.IPPorts;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -61,7 +62,7 @@ public class Tcp {
     private static final Logger LOG = LogManager.getLogger(Tcp.class);
     
 
-    private OutputStream[] os;
+    private SocketChannel[] os;
     private Integer numStream;
 
     public Tcp(String appNamePattern) {
@@ -76,11 +77,10 @@ public class Tcp {
             }
 
             numStream = ipPorts.size();
-            this.os = new OutputStream[numStream];
+            this.os = new SocketChannel[numStream];
             int i = 0;
             for (IPPort ipport : ipPorts) {
-                Socket skt = new Socket(ipport.getIp(), ipport.getPort());
-                this.os[i] = skt.getOutputStream();
+                this.os[i] = SocketChannel.open(new InetSocketAddress(ipport.getIp(), ipport.getPort()));
                 i++;
             }
 
@@ -122,23 +122,9 @@ public class Tcp {
                 recycle = false;
             }
 
-            // Read File
-            FileReader fr = new FileReader(filename);
-            BufferedReader br = new BufferedReader(fr);
-
-            // Load Array with Lines from File
-            ArrayList<String> lines = new ArrayList<>();
-
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-
-            br.close();
-            fr.close();
-
-            // Create Iterator from Array
-            Iterator<String> linesIt = lines.iterator();
+            // Map the File
+            MappedLineFile lines = new MappedLineFile(filename);
+            int lineNum = 0;
 
             // Get the System Time as st (Start Time)            
             Long st = System.currentTimeMillis();
@@ -146,72 +132,37 @@ public class Tcp {
             // Count of Records Sent
             Integer cnt = 0;
 
-            // Tweak used to adjust delays to try and get requested rate
-            Long tweak = 0L;
+            // Each line is sent at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
 
-            // Delay between each send in nano seconds            
-            Double ns_delay = 1000000000.0 / (double) rate;
-
-            long ns = ns_delay.longValue() - tweak;
-            if (ns < 0) {
-                ns = 0;  // can't be less than 0 
-            }
-
-            // *********** If burstDelay = 0 then send Constant Rate using nanosecond delay *********
             while (cnt < numToSend) {
 
                 if (cnt % rate == 0 && cnt > 0) {
-                    // Calculate rate and adjust as needed
+                    // Output rate and how far the sends are behind schedule (ms)
                     Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
 
-                    System.out.println(cnt + "," + String.format("%.0f", curRate));
-                }
-
-                if (cnt % 1000 == 0 && cnt > 0) {
-                    // Calculate rate and adjust as needed
-                    Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-                    // rate difference as percentage 
-                    Double rateDiff = (rate - curRate) / rate;
-
-                    // Add or subracts up to 100ns 
-                    tweak = (long) (rateDiff * rate);
-
-                    // By adding some to the delay you can fine tune to achieve the desired output
-                    ns = ns - tweak;
-                    if (ns < 0) {
-                        ns = 0;  // can't be less than 0 
-                    }
-
+                    System.out.println(cnt + "," + String.format("%.0f", curRate) + "," + pacer.takeMaxLagMillis());
                 }
 
                 cnt += 1;
 
-                if (!linesIt.hasNext()) {
+                if (lineNum == lines.size()) {
                     if (recycle) {
-                        linesIt = lines.iterator();  // Reset Iterator
+                        lineNum = 0;  // Start from top of file
                     } else {
                         // Entire contents of file send or Integer.MAX_VALUE
                         break;
                     }
                 }
 
-                final long stime = System.nanoTime();
+                pacer.acquire();
 
-                line = linesIt.next() + "\n";
+                ByteBuffer line = lines.getRecord(lineNum++);
 
                 int i = cnt % numStream;
-                this.os[i].write(line.getBytes());
-                this.os[i].flush();
-
-                long etime = 0;
-                do {
-                    // This approach uses a lot of CPU                    
-                    etime = System.nanoTime();
-                    // Adding the following sleep for a few microsecond reduces system load; however,
-                    // it also negatively effects the throughput
-                    //Thread.sleep(0,100);  
-                } while (stime + ns >= etime);
+                while (line.hasRemaining()) {
+                    this.os[i].write(line);
+                }
 
             }
 
@@ -42,19 +42,33 @@
  *      Uses DNS lookup and InetAddress to find ip's for a given name.
  *      Each thread is assigned a ip:port in a round robin fashion. 
  *      These changes increased max send rate from 140k/s to close to 600k/s
+ *
+ * 17 Oct 2026: Added nio mode. When connections-per-thread is greater than 0 each thread is an
+ *      event loop (TcpNioSenderThread) that drives that many non-blocking sockets with gathering writes.
+ *      This allows hundreds of sockets to be driven from a few threads.
+ *      Added batch option (bytes:lines:lingerMicros). TcpSenderThreads drain lines from the queue into
+ *      a buffer and write it when any of the limits is reached instead of writing each line.
+ *      Output now includes lines per write; per thread counts and rates are printed at the end.
+ *      Replaced the shared linked blocking queue with a ring buffer per thread (RingBuffer). Lines are
+ *      put on the rings round robin; a thread's ring being full moves the line to the next ring.
+ *      The wait strategy (spin, yield or park) used when a ring is full or empty can be set.
+ *      Replaced the sleep once every rate lines (one second bursts) with RatePacer; each line is queued
+ *      at its scheduled time.  The output adds the max lag (ms) behind schedule since the last output.
+ *      Added stamp option (TimestampField) for end-to-end latency; each line is stamped with its scheduled send
+ *      time in epoch nanoseconds (EpochClock).  TcpSink reads the stamp with the same spec.
  * 
  * Creator: David Jennings
  */
 package com.esri.rttest.send;
 
+import com.esri.rttest.EpochClock;
 import com.esri.rttest.IPPort;
 import com.esri.rttest.IPPorts;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.esri.rttest.TimestampField;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -65,9 +79,11 @@ import org.apache.logging.log4j.Logger;
 public class Tcp2 {
     
     private static final Logger LOG = LogManager.getLogger(Tcp2.class);
-    
 
-    LinkedBlockingQueue<String> lbq = new LinkedBlockingQueue<>();
+    // Lines waiting to be sent per thread
+    private static final int RING_CAPACITY = 65536;
+
+    List<RingBuffer<ByteBuffer>> rings = new ArrayList<>();
 
     /**
      *
@@ -78,8 +94,17 @@ public class Tcp2 {
      * @param numToSend Number of lines to send. If more than number of lines in
      * file will resend from start.
      * @param numThreads
+     * @param threadOffset
+     * @param connsPerThread If greater than 0 each thread is a nio event loop
+     * driving this many sockets; if 0 each thread has one blocking socket.
+     * @param batchBytes If greater than 0 each TcpSenderThread buffers up to this many bytes per write.
+     * @param batchLines Max lines per write when batching; 0 for no limit.
+     * @param lingerMicros Max time a line waits in the buffer when batching.
+     * @param waitStrategy How the main and sender threads wait on a full or empty ring.
+     * @param stamp If not null each line is stamped with its send time.
      */
-    public void sendFile(String appNamePattern, String filename, Integer rate, Integer numToSend, Integer numThreads, Integer threadOffset) {
+    public void sendFile(String appNamePattern, String filename, Integer rate, Integer numToSend, Integer numThreads, Integer threadOffset, Integer connsPerThread,
+            Integer batchBytes, Integer batchLines, Long lingerMicros, RingBuffer.WaitStrategy waitStrategy, TimestampField stamp) {
         try {
 
             IPPorts ipp = new IPPorts(appNamePattern);
@@ -89,23 +114,9 @@ public class Tcp2 {
                 throw new UnsupportedOperationException("Could not discover the any ip port combinations.");
             }
 
-            // Read File
-            FileReader fr = new FileReader(filename);
-            BufferedReader br = new BufferedReader(fr);
-
-            // Load Array with Lines from File
-            ArrayList<String> lines = new ArrayList<>();
-
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-
-            br.close();
-            fr.close();
-
-            // Create Iterator from Array
-            Iterator<String> linesIt = lines.iterator();
+            // Map the File
+            MappedLineFile lines = new MappedLineFile(filename);
+            int lineNum = 0;
 
             // Get the System Time as st (Start Time)            
             Long st = System.currentTimeMillis();
@@ -113,20 +124,38 @@ public class Tcp2 {
             // Count of Records Sent
             Integer cnt = 0;
 
-            // Create the TcpSenderThreads
-            TcpSenderThread[] threads = new TcpSenderThread[numThreads];
+            // Create the sender threads
+            SenderStats[] threads = new SenderStats[numThreads];
 
             for (int i = 0; i < numThreads; i++) {
-                // Use modulo to get one of the ipport's 0
-                IPPort ipPort = ipPorts.get((i + threadOffset) % ipPorts.size());
-                System.out.println(ipPort);
-                threads[i] = new TcpSenderThread(lbq, ipPort.getIp(), ipPort.getPort());
-                threads[i].start();
+                RingBuffer<ByteBuffer> ring = new RingBuffer<>(RING_CAPACITY, waitStrategy);
+                rings.add(ring);
+                if (connsPerThread > 0) {
+                    // Each nio thread gets connsPerThread ipport's assigned round robin
+                    ArrayList<IPPort> threadIPPorts = new ArrayList<>();
+                    for (int j = 0; j < connsPerThread; j++) {
+                        IPPort ipPort = ipPorts.get((i * connsPerThread + j + threadOffset) % ipPorts.size());
+                        System.out.println(ipPort);
+                        threadIPPorts.add(ipPort);
+                    }
+                    TcpNioSenderThread thread = new TcpNioSenderThread(ring, threadIPPorts);
+                    thread.start();
+                    threads[i] = thread;
+                } else {
+                    // Use modulo to get one of the ipport's 0
+                    IPPort ipPort = ipPorts.get((i + threadOffset) % ipPorts.size());
+                    System.out.println(ipPort);
+                    TcpSenderThread thread = new TcpSenderThread(ring, ipPort.getIp(), ipPort.getPort(), batchBytes, batchLines, lingerMicros);
+                    thread.start();
+                    threads[i] = thread;
+                }
 
             }
 
             Long timeLastDisplayedRate = System.currentTimeMillis();
-            Long timeStartedBatch = System.currentTimeMillis();
+            // Each line is queued at its scheduled time
+            RatePacer pacer = new RatePacer(rate);
+            int nextRing = 0;
 
             while (cnt < numToSend) {
 
@@ -136,44 +165,44 @@ public class Tcp2 {
 
                     long cnts = 0;
                     long cntErr = 0;
+                    long numWrites = 0;
                     long et = 0;
 
                     // Get Counts from Threads
-                    for (TcpSenderThread thread : threads) {
+                    for (SenderStats thread : threads) {
                         cnts += thread.getCnt();
                         cntErr += thread.getCntErr();
+                        numWrites += thread.getNumWrites();
                         if (thread.getLastUpdate() > et) et = thread.getLastUpdate();
                     }
 
                     Double curRate = (double) cnts / (et - st) * 1000;
 
-                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate));
+                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate) + "," + linesPerWrite(cnts, numWrites) + "," + pacer.takeMaxLagMillis());
 
                 }
 
-                if (!linesIt.hasNext()) {
-                    linesIt = lines.iterator();  // Reset Iterator
+                if (lineNum == lines.size()) {
+                    lineNum = 0;  // Start from top of file
                 }
 
-                line = linesIt.next() + "\n";
+                long scheduled = pacer.acquire();
 
-                lbq.put(line);
+                ByteBuffer line = lines.getRecord(lineNum++);
+                if (stamp != null) {
+                    line = stamp.stamp(line, EpochClock.toEpochNanos(scheduled));
+                }
+
+                // Round robin; skips over threads that are falling behind
+                nextRing = RingBuffer.putAny(rings, nextRing, line) + 1;
 
                 cnt += 1;
 
-                if (cnt % rate == 0) {
-                    // Wait until one second before queuing next rate events into lbq
-                    // Send rate events wait until 1 second is up
-                    long timeToWait = 1000 - (System.currentTimeMillis() - timeStartedBatch);
-                    if (timeToWait > 0) {
-                        Thread.sleep(timeToWait);
-                    }
-                    timeStartedBatch = System.currentTimeMillis();
-                }
             }
 
             long cnts = 0;
             long cntErr = 0;
+            long numWrites = 0;
             long prevCnts = 0;
             long et = 0;
 
@@ -183,17 +212,18 @@ public class Tcp2 {
                     timeLastDisplayedRate = System.currentTimeMillis();
 
                     // Get Counts from Threads
-                    for (TcpSenderThread thread : threads) {
+                    for (SenderStats thread : threads) {
                         cnts += thread.getCnt();
                         cntErr += thread.getCntErr();
+                        numWrites += thread.getNumWrites();
                     }
 
                     Double curRate = (double) cnts / (System.currentTimeMillis() - st) * 1000;
 
-                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate));
+                    System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", curRate) + "," + linesPerWrite(cnts, numWrites));
 
-                    // End if the lbq is empty
-                    if (lbq.size() == 0) {
+                    // End if the rings are empty and the threads have written what they took
+                    if (queued(threads) == 0) {
                         System.out.println("Queue Empty");
                         break;
                     }
@@ -210,53 +240,85 @@ public class Tcp2 {
                         break;
                     }
 
+                    prevCnts = cnts;
                     cnts = 0;
                     cntErr = 0;
+                    numWrites = 0;
                     et = 0;
-                    prevCnts = cnts;
 
                 }
             }
 
             // Terminate Threads
-            for (TcpSenderThread thread : threads) {
+            for (SenderStats thread : threads) {
                 thread.terminate();
             }
 
             cnts = 0;
             cntErr = 0;
+            numWrites = 0;
 
-            for (TcpSenderThread thread : threads) {
+            // Per thread counts: thread,cnt,cntErr,rate,linesPerWrite
+            for (int i = 0; i < threads.length; i++) {
+                SenderStats thread = threads[i];
                 cnts += thread.getCnt();
                 cntErr += thread.getCntErr();
+                numWrites += thread.getNumWrites();
                 if (thread.getLastUpdate() > et) et = thread.getLastUpdate();
+
+                Double thdRate = (double) thread.getCnt() / (thread.getLastUpdate() - st) * 1000;
+                System.out.println("thread " + i + "," + thread.getCnt() + "," + thread.getCntErr() + "," + String.format("%.0f", thdRate) + "," + linesPerWrite(thread.getCnt(), thread.getNumWrites()));
             }
 
             Double sendRate = (double) cnts / (et - st) * 1000;
 
-            System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", sendRate));
+            System.out.println(cnts + "," + cntErr + "," + String.format("%.0f", sendRate) + "," + linesPerWrite(cnts, numWrites));
 
             System.exit(0);
 
-        } catch (IOException | InterruptedException | UnsupportedOperationException e) {
+        } catch (IOException | InterruptedException | UnsupportedOperationException | IllegalStateException e) {
 
             LOG.error("ERROR", e);
 
         }
     }
 
+    private long queued(SenderStats[] threads) {
+        long n = 0;
+        for (RingBuffer<ByteBuffer> ring : rings) {
+            if (!ring.isClosed()) {
+                n += ring.size();
+            }
+        }
+        for (SenderStats thread : threads) {
+            n += thread.getPending();
+        }
+        return n;
+    }
+
+    private static String linesPerWrite(long cnts, long numWrites) {
+        if (numWrites == 0) {
+            return "0";
+        }
+        return String.format("%.1f", (double) cnts / numWrites);
+    }
+
     public static void main(String args[]) {
 
         // Example Command Line args: localhost 5565 faa-stream.csv 1000 10000
         int numargs = args.length;
-        if (numargs < 4 || numargs > 5) {
+        if (numargs < 4 || numargs > 9) {
             // append append time option was added to support end-to-end latency; I used it for Trinity testing
-            System.err.println("Usage: Tcp2 <server:port> <file> <rate> <numrecords> (numThreads=1)");
+            System.err.println("Usage: Tcp2 <server:port> <file> <rate> <numrecords> (numThreads=1) (connectionsPerThread=0) (batch=0) (wait=park) (stamp=none)");
             System.err.println("server:port: The IP or hostname of server to send events to. Could be ip:port, dns-name:port, or app[marathon-app-name(:portindex)]");
             System.err.println("filename: sends line by line from this file.");
             System.err.println("rate: Attempts to send at this rate.");
             System.err.println("numrecords: Sends this many lines; file is automatically recycled if needed.");
             System.err.println("numThread: Number of threads defaults to 1");
+            System.err.println("connectionsPerThread: If greater than 0 each thread uses nio to drive this many sockets; defaults to 0 (one blocking socket per thread)");
+            System.err.println("batch: bytes:lines:lingerMicros (e.g. 65536:1000:500). Each thread buffers lines and writes when any limit is reached; defaults to 0 (write each line). Ignored when connectionsPerThread > 0");
+            System.err.println("wait: spin, yield, or park. How threads wait when their ring is full or empty; spin is lowest latency but uses a core per thread; defaults to park");
+            System.err.println("stamp: Stamps each line with the send time in epoch ns for end-to-end latency; csv(:N) or json(:name), add :ms for epoch ms; defaults to none");
         } else {
             // Initial the Tcp Class with the server and port
 
@@ -266,8 +328,35 @@ public class Tcp2 {
             Integer numrecords = Integer.parseInt(args[3]);
             Integer numThreads = 1;
             Integer threadOffset = 0;
+            Integer connsPerThread = 0;
+            Integer batchBytes = 0;
+            Integer batchLines = 0;
+            Long lingerMicros = 0L;
+            RingBuffer.WaitStrategy waitStrategy = RingBuffer.WaitStrategy.PARK;
+            TimestampField stamp = null;
 
             switch (numargs) {
+                case 9:
+                    stamp = TimestampField.parse(args[8]);
+                    // fall through
+                case 8:
+                    waitStrategy = RingBuffer.parseWaitStrategy(args[7]);
+                    // fall through
+                case 7:
+                    String batchParts[] = args[6].split(":");
+                    batchBytes = Integer.parseInt(batchParts[0]);
+                    if (batchParts.length > 1) {
+                        batchLines = Integer.parseInt(batchParts[1]);
+                    }
+                    if (batchParts.length > 2) {
+                        lingerMicros = Long.parseLong(batchParts[2]);
+                    } else {
+                        lingerMicros = 1000L;
+                    }
+                    // fall through
+                case 6:
+                    connsPerThread = Integer.parseInt(args[5]);
+                    // fall through to parse numThreads
                 case 5:
                     String threadParts[] = args[4].split("\\.");
                     try {
@@ -289,7 +378,7 @@ public class Tcp2 {
             }
 
             Tcp2 t = new Tcp2();
-            t.sendFile(serverPort, filename, rate, numrecords, numThreads, threadOffset);
+            t.sendFile(serverPort, filename, rate, numrecords, numThreads, threadOffset, connsPerThread, batchBytes, batchLines, lingerMicros, waitStrategy, stamp);
 
         }
 
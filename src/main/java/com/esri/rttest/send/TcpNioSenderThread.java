@@ -0,0 +1,362 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+
+ /*
+ * Event loop used by Tcp2 in nio mode.
+ * One thread drives many non-blocking sockets using a Selector.  Lines (ByteBuffers) are taken
+ * from the queue in batches, assigned to the sockets in a round-robin fashion and written with gathering writes.
+ * If a socket can not take more data the loop waits on the Selector instead of blocking.
+ * When the loop ends (e.g. every connection failed) the ring is closed so Tcp2 stops putting lines on it; the lines
+ * left in the ring are counted as errors.  terminate gives the sockets up to FLUSH_TIMEOUT_MS to write the buffers
+ * they still hold; what is not written by then is counted as errors.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.IPPort;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class TcpNioSenderThread extends Thread implements SenderStats {
+
+    private static final Logger LOG = LogManager.getLogger(TcpNioSenderThread.class);
+
+    // Max number of lines taken from the queue per pass
+    private static final int MAX_DRAIN = 4096;
+
+    // Max number of buffers waiting on one socket before the loop stops taking lines
+    private static final int MAX_PENDING = 1024;
+
+    // Max number of buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+
+    // Max time the sockets get to write their pending buffers after terminate
+    private static final long FLUSH_TIMEOUT_MS = 5000;
+
+    private class Connection {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer[] pending = new ByteBuffer[MAX_PENDING];
+        int head = 0;
+        int tail = 0;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        boolean isFull() {
+            return tail == MAX_PENDING && head == 0;
+        }
+
+        boolean hasPending() {
+            return tail > head;
+        }
+
+        void add(ByteBuffer buf) {
+            if (tail == MAX_PENDING) {
+                // Move what is left to the front of the array
+                System.arraycopy(pending, head, pending, 0, tail - head);
+                for (int i = tail - head; i < tail; i++) {
+                    pending[i] = null;
+                }
+                tail -= head;
+                head = 0;
+            }
+            pending[tail++] = buf;
+        }
+
+        /**
+         * Write as much as the socket will take.
+         *
+         * @return true if everything pending was written
+         */
+        boolean flush() throws IOException {
+            while (head < tail) {
+                int len = Math.min(tail - head, MAX_GATHER);
+                long n = channel.write(pending, head, len);
+                numWrites.increment();
+
+                // Count the buffers that were completely written
+                while (head < tail && !pending[head].hasRemaining()) {
+                    pending[head++] = null;
+                    cnt.increment();
+                }
+
+                if (n == 0) {
+                    break;
+                }
+            }
+
+            if (head == tail) {
+                head = 0;
+                tail = 0;
+                lastUpdate = System.currentTimeMillis();
+                key.interestOps(0);
+                return true;
+            } else {
+                lastUpdate = System.currentTimeMillis();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+
+    }
+
+    RingBuffer<ByteBuffer> ring;
+    private volatile boolean running = true;
+
+    private final Selector selector;
+    private final Connection[] connections;
+    private int nextConnection = 0;
+
+    private volatile long lastUpdate;
+    private final Counter cntErr = new Counter();
+    private final Counter cnt = new Counter();
+    private final Counter numWrites = new Counter();
+
+    // Lines taken from the ring that are not written yet; set once per pass
+    private volatile long pending;
+
+    @Override
+    public long getCntErr() {
+        return cntErr.get();
+    }
+
+    @Override
+    public long getCnt() {
+        return cnt.get();
+    }
+
+    @Override
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    @Override
+    public long getNumWrites() {
+        return numWrites.get();
+    }
+
+    @Override
+    public long getPending() {
+        return pending;
+    }
+
+    public TcpNioSenderThread(RingBuffer<ByteBuffer> ring, List<IPPort> ipPorts) throws IOException {
+        lastUpdate = 0;
+        this.ring = ring;
+        this.selector = Selector.open();
+
+        ArrayList<Connection> conns = new ArrayList<>();
+        for (IPPort ipPort : ipPorts) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(ipPort.getIp(), ipPort.getPort()));
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, 0);
+                Connection conn = new Connection(channel, key);
+                key.attach(conn);
+                conns.add(conn);
+            } catch (IOException e) {
+                System.out.println("Failed to created socket to: " + ipPort.getIp() + ":" + ipPort.getPort());
+            }
+        }
+
+        this.connections = conns.toArray(new Connection[conns.size()]);
+    }
+
+    public int getNumConnections() {
+        return connections.length;
+    }
+
+    @Override
+    public void terminate() {
+        running = false;
+        selector.wakeup();
+        // Wait for the sockets to write what they hold so the counts are final
+        try {
+            this.join(FLUSH_TIMEOUT_MS + 1000);
+        } catch (InterruptedException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private Connection nextOpenConnection() {
+        for (int i = 0; i < connections.length; i++) {
+            Connection conn = connections[nextConnection];
+            nextConnection = (nextConnection + 1) % connections.length;
+            if (conn.channel.isOpen() && !conn.isFull()) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    private void close(Connection conn) {
+        try {
+            conn.key.cancel();
+            conn.channel.close();
+        } catch (IOException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private void fail(Connection conn, IOException e) {
+        LOG.error("ERROR", e);
+        cntErr.add(conn.tail - conn.head);
+        conn.head = 0;
+        conn.tail = 0;
+        close(conn);
+    }
+
+    /**
+     * Writes the buffers the sockets still hold; waits up to FLUSH_TIMEOUT_MS for the sockets to take them.
+     */
+    private void flushPending() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        try {
+            while (System.nanoTime() - deadline < 0) {
+                boolean blocked = false;
+                for (Connection conn : connections) {
+                    if (!conn.channel.isOpen() || !conn.hasPending()) {
+                        continue;
+                    }
+                    try {
+                        if (!conn.flush()) {
+                            blocked = true;
+                        }
+                    } catch (IOException e) {
+                        fail(conn, e);
+                    }
+                }
+                if (!blocked) {
+                    return;
+                }
+                selector.select(10);
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<ByteBuffer> batch = new ArrayList<>(MAX_DRAIN);
+        boolean blocked = false;
+        int numOpen = connections.length;
+
+        try {
+            while (running && numOpen > 0) {
+
+                if (batch.isEmpty()) {
+                    // Don't wait on the queue if some sockets still have data to write
+                    ByteBuffer line = blocked ? ring.poll() : ring.poll(100, TimeUnit.MILLISECONDS);
+                    if (line != null) {
+                        batch.add(line);
+                        ring.drainTo(batch, MAX_DRAIN - 1);
+                    }
+                }
+
+                // Assign lines to the sockets that have room
+                int i = 0;
+                while (i < batch.size()) {
+                    Connection conn = nextOpenConnection();
+                    if (conn == null) {
+                        break;
+                    }
+                    conn.add(batch.get(i));
+                    i++;
+                }
+                batch.subList(0, i).clear();
+
+                // Write to every socket with pending buffers
+                blocked = false;
+                numOpen = 0;
+                for (Connection conn : connections) {
+                    if (!conn.channel.isOpen()) {
+                        continue;
+                    }
+                    numOpen += 1;
+                    if (conn.hasPending()) {
+                        try {
+                            if (!conn.flush()) {
+                                blocked = true;
+                            }
+                        } catch (IOException e) {
+                            fail(conn, e);
+                            numOpen -= 1;
+                        }
+                    }
+                }
+
+                if (blocked && (!batch.isEmpty() || ring.isEmpty())) {
+                    // Nothing else to do until one of the sockets can be written
+                    selector.select(10);
+                    selector.selectedKeys().clear();
+                }
+
+                long n = batch.size();
+                for (Connection conn : connections) {
+                    n += conn.tail - conn.head;
+                }
+                pending = n;
+
+            }
+        } catch (InterruptedException | IOException e) {
+            LOG.error("ERROR", e);
+            cntErr.increment();
+        } finally {
+            if (running) {
+                LOG.error("No open connections; " + (batch.size() + ring.size()) + " queued lines not sent");
+            }
+            ring.close();
+            cntErr.add(batch.size() + ring.clear());
+            flushPending();
+            for (Connection conn : connections) {
+                // Not written before the deadline
+                cntErr.add(conn.tail - conn.head);
+                close(conn);
+            }
+            pending = 0;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.error("ERROR", e);
+            }
+        }
+    }
+
+}
@@ -18,54 +18,92 @@
  */
 package com.esri.rttest.send;
 
+import com.esri.rttest.Counter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Sends lines from the queue to one socket.
+ *
+ * By default each line is written as soon as it is taken from the queue.
+ * If batchBytes is greater than 0 lines are drained from the queue into a direct buffer
+ * which is written when it reaches batchBytes, when it holds batchLines lines or when the
+ * first line in the buffer has waited lingerMicros.
  *
  * @author david
  */
-public class TcpSenderThread extends Thread {
-    
-    LinkedBlockingQueue<String> lbq;
+public class TcpSenderThread extends Thread implements SenderStats {
+
+    // Max number of lines taken from the queue at once when batching
+    private static final int MAX_DRAIN = 4096;
+
+    RingBuffer<ByteBuffer> ring;
     private volatile boolean running = true;
 
     private final String ip;
     private final int port;
     
-    private OutputStream os;
+    private SocketChannel os;
+
+    private final int batchBytes;
+    private final int batchLines;
+    private final long lingerNanos;
 
-    private long lastUpdate;
-    private long cntErr;
-    private long cnt;
+    private volatile long lastUpdate;
+    private final Counter cntErr = new Counter();
+    private final Counter cnt = new Counter();
+    private final Counter numWrites = new Counter();
 
+    @Override
     public long getCntErr() {
-        return cntErr;
+        return cntErr.get();
     }
 
+    @Override
     public long getCnt() {
-        return cnt;
+        return cnt.get();
     }
     
+    @Override
     public long getLastUpdate() {
         return lastUpdate;
     }
-    
 
-    public TcpSenderThread(LinkedBlockingQueue<String> lbq, String ip, int port) {
-        cnt = 0;
-        cntErr = 0;
+    @Override
+    public long getNumWrites() {
+        return numWrites.get();
+    }
+
+
+    public TcpSenderThread(RingBuffer<ByteBuffer> ring, String ip, int port) {
+        this(ring, ip, port, 0, 0, 0);
+    }
+
+    /**
+     *
+     * @param ring
+     * @param ip
+     * @param port
+     * @param batchBytes Size of the write buffer; 0 writes each line as it is taken from the queue
+     * @param batchLines Write when this many lines are buffered; 0 for no limit
+     * @param lingerMicros Write when the oldest buffered line has waited this long
+     */
+    public TcpSenderThread(RingBuffer<ByteBuffer> ring, String ip, int port, int batchBytes, int batchLines, long lingerMicros) {
         lastUpdate = 0;
-        this.lbq = lbq;
+        this.ring = ring;
         this.ip = ip;
-        this.port = port;        
+        this.port = port;
+        this.batchBytes = batchBytes;
+        this.batchLines = batchLines > 0 ? batchLines : Integer.MAX_VALUE;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
         try {
-            Socket skt = new Socket(this.ip, this.port);
-            this.os = skt.getOutputStream();
+            this.os = SocketChannel.open(new InetSocketAddress(this.ip, this.port));
         } catch (IOException e) {
             System.out.println("Failed to created socket to: " +  this.ip + ":" + this.port);
         }
@@ -74,8 +112,17 @@ public class TcpSenderThread extends Thread {
     }
     
     
+    @Override
     public void terminate() {
         running = false;
+        if (batchBytes > 0) {
+            // Give the thread a chance to write what is buffered
+            try {
+                this.join(1000);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(TcpSenderThread.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
         try {
             os.close();
         } catch (IOException ex) {
@@ -83,27 +130,100 @@ public class TcpSenderThread extends Thread {
         }
     }
 
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            os.write(buf);
+            numWrites.increment();
+        }
+    }
+
+    private int writeBuffered(ByteBuffer buf, int numBuffered) throws IOException {
+        buf.flip();
+        write(buf);
+        buf.clear();
+        cnt.add(numBuffered);
+        lastUpdate = System.currentTimeMillis();
+        return 0;
+    }
+
+    private void runBatched() throws InterruptedException, IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(batchBytes);
+        ArrayList<ByteBuffer> lines = new ArrayList<>(MAX_DRAIN);
+        int numBuffered = 0;
+        long firstBuffered = 0;
+
+        while (running) {
+            ByteBuffer line;
+            if (numBuffered == 0) {
+                line = ring.poll(100, TimeUnit.MILLISECONDS);
+            } else {
+                line = ring.poll(firstBuffered + lingerNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            if (line != null) {
+                lines.add(line);
+                ring.drainTo(lines, Math.min(batchLines - numBuffered, MAX_DRAIN) - 1);
+            }
+
+            for (ByteBuffer ln : lines) {
+                if (ln.remaining() > buf.remaining() && numBuffered > 0) {
+                    // Line won't fit; write what is buffered
+                    numBuffered = writeBuffered(buf, numBuffered);
+                }
+
+                if (ln.remaining() > buf.remaining()) {
+                    // Line is larger than the buffer
+                    write(ln);
+                    cnt.increment();
+                    lastUpdate = System.currentTimeMillis();
+                } else {
+                    if (numBuffered == 0) {
+                        firstBuffered = System.nanoTime();
+                    }
+                    buf.put(ln);
+                    numBuffered += 1;
+                    if (numBuffered >= batchLines) {
+                        numBuffered = writeBuffered(buf, numBuffered);
+                    }
+                }
+            }
+            lines.clear();
+
+            if (numBuffered > 0 && (System.nanoTime() - firstBuffered >= lingerNanos || !running)) {
+                numBuffered = writeBuffered(buf, numBuffered);
+            }
+        }
+
+    }
+
     @Override
     public void run() {
         try {
+            if (batchBytes > 0) {
+                runBatched();
+                return;
+            }
+
             while (running) {
-                String line = lbq.take();
+                ByteBuffer line = ring.take();
                 if (line == null) {
                     break;
                 }
-                // Send the String
-
-                os.write(line.getBytes());
-                os.flush();
+                // Send the bytes as is; no encoding needed
+                write(line);
 
-                cnt += 1;
+                cnt.increment();
                 lastUpdate = System.currentTimeMillis();
 
             }
 
         } catch (InterruptedException | IOException ex) {
             Logger.getLogger(HttpPosterThread.class.getName()).log(Level.SEVERE, null, ex);
-            cntErr += 1;
+            cntErr.increment();
+        } finally {
+            // Stop Tcp2 from putting lines on the ring; what is left is not sent
+            ring.close();
+            cntErr.add(ring.clear());
         }
     }    
     
@@ -0,0 +1,356 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Consumes a Kafka Topic and counts the records.
+ * Unlike KafkaTopicMon (which only reads the end offsets) the records are actually read, so the rate is
+ * what consumers can get out of the topic.
+ *
+ * A number of consumers (KafkaSinkConsumer) in one consumer group share the partitions.
+ * Every sample-every-N-seconds the counts are added to a linear regression (same output as TcpSink).
+ * After the count stops increasing the rate and the count of each partition are output and the counts reset.
+ *
+ * Latency (produce to consume) is from the record timestamps or the send time stamped in each value by the sender;
+ * percentiles (p50,p99,p99.9,max ms) follow the count and rate on each output line.
+ * The 10s, 60s and 5m rates (RateEstimator) are added at the end of each sample line.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.sink;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.MarathonInfo;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.TimestampField;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaSink {
+
+    private static final Logger LOG = LogManager.getLogger(KafkaSink.class);
+
+    private class GetCounts implements Sampler.Source, Sampler.Listener {
+
+        long st = 0L;
+        long currentCnt = 0L;
+        long prevCnt = 0L;
+        // Rates from the samples of the current count (constant memory)
+        RateEstimator rates;
+        int numSamples = 0;
+        long tm;
+
+        // Latency of the last sample and of the whole test; null if latency is not enabled
+        Histogram interval;
+        Histogram total;
+
+        public GetCounts(boolean latency) {
+            st = 0L;
+            currentCnt = 0L;
+            prevCnt = 0L;
+            rates = new RateEstimator(sampleEveryMs);
+            tm = 0L;
+            if (latency) {
+                interval = LatencyRecorder.newHistogram();
+                total = LatencyRecorder.newHistogram();
+            }
+        }
+
+        // Merge the latencies recorded by the consumers since the last sample
+        private void takeLatencies() {
+            if (interval == null) {
+                return;
+            }
+            interval.reset();
+            for (KafkaSinkConsumer consumer : consumers) {
+                interval.add(consumer.takeLatencyInterval());
+            }
+            total.add(interval);
+        }
+
+        // ,p50,p99,p99.9,max or empty
+        private String latencies(Histogram h) {
+            return h == null ? "" : "," + LatencyRecorder.format(h);
+        }
+
+        @Override
+        public long count() {
+            long cnt = 0L;
+            for (Counter c : partitionCounts.values()) {
+                cnt += c.get();
+            }
+            return cnt;
+        }
+
+        @Override
+        public void onSample(Sampler.Sample sample) {
+            currentCnt = sample.count;
+
+            takeLatencies();
+
+            if (currentCnt > prevCnt) {
+
+                if (prevCnt == 0) {
+                    st = System.currentTimeMillis();
+
+                    for (KafkaSinkConsumer consumer : consumers) {
+                        long consumerSt = consumer.getFirstTime();
+                        if (consumerSt < st && consumerSt > 0) {
+                            st = consumerSt;
+                        }
+                    }
+
+                }
+                numSamples += 1;
+                tm = sample.getTimeMillis();
+                rates.add(tm, currentCnt);
+
+                if (numSamples > 2) {
+                    double rcvRate = rates.getRate();
+                    System.out.println(numSamples + "," + tm + "," + currentCnt + "," + String.format("%.0f", rcvRate) + latencies(interval) + "," + rates.formatRollingRates(","));
+                } else {
+                    System.out.println(numSamples + "," + tm + "," + currentCnt + latencies(interval) + "," + rates.formatRollingRates(","));
+                }
+
+            } else {
+                if (currentCnt > 0) {
+                    long et = 0;
+                    for (KafkaSinkConsumer consumer : consumers) {
+                        if (consumer.getLastTime() > et) {
+                            et = consumer.getLastTime();
+                        }
+                        consumer.reset();
+                    }
+
+                    // Take the partition counts before they are reset
+                    TreeMap<Integer, Long> counts = new TreeMap<>();
+                    for (Map.Entry<Integer, Counter> entry : partitionCounts.entrySet()) {
+                        counts.put(entry.getKey(), entry.getValue().getAndReset());
+                    }
+
+                    numSamples -= 1;
+                    // Remove the last sample
+                    rates.removeLast();
+                    System.out.println("Removing: " + tm + "," + currentCnt);
+                    // Output Results
+                    double rcvRate = rates.getRate();
+
+                    if (numSamples > 4) {
+                        double rateStdErr = rates.getRateStdErr();
+                        System.out.format("%d , %.0f, %.4f%s\n", currentCnt, rcvRate, rateStdErr, latencies(total));
+                    } else if (numSamples >= 2) {
+                        System.out.format("%d , %.0f%s\n", currentCnt, rcvRate, latencies(total));
+                    } else {
+                        System.out.println("Not enough samples to calculate rate. ");
+                    }
+
+                    Double rate = ((double) currentCnt / (double) (et - st) * 1000.0);
+                    System.out.println("Total Count: " + currentCnt);
+                    System.out.format("Average Rate: %.0f\n", rate);
+
+                    // A partition much slower than the others has a slow broker or consumer
+                    System.out.println("Partition,Count,Rate");
+                    for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                        System.out.format("%d,%d,%.0f\n", entry.getKey(), entry.getValue(), (double) entry.getValue() / (double) (et - st) * 1000.0);
+                    }
+
+                    currentCnt = 0L;
+                    prevCnt = 0L;
+                    rates.reset();
+                    tm = 0L;
+                    numSamples = 0;
+                    if (total != null) {
+                        total.reset();
+                    }
+                }
+
+            }
+            prevCnt = currentCnt;
+
+        }
+
+    }
+
+    String brokers;
+    String topic;
+    String groupId;
+    Integer numConsumers;
+    long sampleEveryMs;
+    boolean latency;
+    TimestampField stamp;
+    String consumerProps;
+
+    // partition -> count; shared by the consumers
+    private final ConcurrentHashMap<Integer, Counter> partitionCounts = new ConcurrentHashMap<>();
+    // Partitions the consumers have started reading; shared by the consumers
+    private final Set<TopicPartition> started = ConcurrentHashMap.newKeySet();
+    private final ArrayList<KafkaSinkConsumer> consumers = new ArrayList<>();
+
+    /**
+     *
+     * @param brokers
+     * @param topic
+     * @param groupId Consumer group of the consumers
+     * @param numConsumers Consumers in this process; more than the number of partitions are idle
+     * @param sampleEveryMs
+     * @param latency If true latency is recorded
+     * @param stamp Send time stamp in each value; null to use the record timestamps
+     * @param consumerProps Overrides for the consumer configs: k=v,k=v (e.g. fetch.min.bytes=65536,max.poll.records=20000); null for none
+     */
+    public KafkaSink(String brokers, String topic, String groupId, Integer numConsumers, long sampleEveryMs, boolean latency, TimestampField stamp, String consumerProps) {
+        this.brokers = brokers;
+        this.topic = topic;
+        this.groupId = groupId;
+        this.numConsumers = numConsumers;
+        this.sampleEveryMs = sampleEveryMs;
+        this.latency = latency;
+        this.stamp = stamp;
+        this.consumerProps = consumerProps;
+    }
+
+    private Properties consumerProperties() {
+        Properties props = new Properties();
+
+        // https://kafka.apache.org/documentation/#consumerconfigs
+        props.put("bootstrap.servers", brokers);
+        props.put("group.id", groupId);
+        props.put("client.id", KafkaSink.class.getName());
+        // Only count what arrives after the sink starts (like TcpSink); the consumers seek to the end of each partition
+        // the first time it is assigned, so offsets committed by an earlier run are not used
+        props.put("enable.auto.commit", "false");
+        props.put("auto.offset.reset", "latest");
+        props.put("session.timeout.ms", "10000");
+        props.put("request.timeout.ms", "11000");
+        // Larger fetches than the defaults (500 records, 1MB per partition) so the consumer is not the bottleneck
+        props.put("max.poll.records", 10000);
+        props.put("max.partition.fetch.bytes", 4 * 1024 * 1024);
+        props.put("receive.buffer.bytes", 4 * 1024 * 1024);
+        props.put("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        props.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+
+        if (consumerProps != null) {
+            for (String kv : consumerProps.split(",")) {
+                String parts[] = kv.split("=", 2);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid consumer property: " + kv);
+                }
+                props.put(parts[0].trim(), parts[1].trim());
+            }
+        }
+
+        return props;
+    }
+
+    public void run() {
+        try {
+            Properties props = consumerProperties();
+
+            for (int i = 0; i < numConsumers; i++) {
+                Properties threadProps = new Properties();
+                threadProps.putAll(props);
+                threadProps.put("client.id", props.getProperty("client.id") + "-" + i);
+                KafkaSinkConsumer consumer = new KafkaSinkConsumer(threadProps, topic, partitionCounts, started, latency, stamp);
+                consumers.add(consumer);
+                consumer.start();
+            }
+
+            System.out.println("Consuming " + topic + " with " + numConsumers + " consumers in group " + groupId + ".  Use Ctrl-C to Exit.");
+
+            GetCounts getCounts = new GetCounts(latency);
+            Sampler sampler = new Sampler("KafkaSink", sampleEveryMs, getCounts, getCounts);
+            sampler.start();
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        int numargs = args.length;
+
+        if (numargs < 2 || numargs > 7) {
+            System.err.println("Usage: KafkaSink <brokers> <topic> (<group-id/rttest-sink>) (<consumers/1>) (<sample-every-N-seconds/5>) (<latency/record>) (<consumer-props>)\n");
+            System.err.println("brokers: broker list (host:port,host:port) or hub name");
+            System.err.println("group-id: Consumer group; the consumers share the partitions of the topic. Defaults to rttest-sink.");
+            System.err.println("consumers: Number of consumer threads; more than the number of partitions are idle. Defaults to 1.");
+            System.err.println("samples-every-N-seconds: Will gather a sample every N seconds for linear regression and estimation of rate; can be a fraction (e.g. 0.5).");
+            System.err.println("latency: record (now - record timestamp), none, or where the sender stamped the send time (e.g. csv, json:ts); percentiles (ms) are added to the output. Defaults to record.");
+            System.err.println("consumer-props: Consumer config overrides k=v,k=v (e.g. fetch.min.bytes=65536,fetch.max.wait.ms=100,max.poll.records=20000)");
+
+        } else {
+
+            String brokers = args[0];
+            if (brokers.split(":").length == 1) {
+                // Try hub name. Name cannot have a ':' and brokers must have it.
+                brokers = new MarathonInfo().getBrokers(brokers);
+            }
+
+            String topic = args[1];
+
+            String groupId = "rttest-sink";
+            if (numargs > 2) {
+                groupId = args[2];
+            }
+
+            Integer numConsumers = 1;
+            if (numargs > 3) {
+                numConsumers = Integer.parseInt(args[3]);
+            }
+
+            long sampleEveryMs = 5000;
+            if (numargs > 4) {
+                sampleEveryMs = Sampler.parsePeriodMillis(args[4]);
+            }
+
+            boolean latency = true;
+            TimestampField stamp = null;
+            if (numargs > 5) {
+                if (args[5].equalsIgnoreCase("none")) {
+                    latency = false;
+                } else if (!args[5].equalsIgnoreCase("record")) {
+                    stamp = TimestampField.parse(args[5]);
+                }
+            }
+
+            String consumerProps = null;
+            if (numargs > 6) {
+                consumerProps = args[6];
+            }
+
+            KafkaSink t = new KafkaSink(brokers, topic, groupId, numConsumers, sampleEveryMs, latency, stamp, consumerProps);
+            t.run();
+
+        }
+
+    }
+
+}
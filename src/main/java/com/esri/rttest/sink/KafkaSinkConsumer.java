@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Used by KafkaSink; one consumer of the group.
+ *
+ * Records are read as byte[] (no String decoding) and counted per partition in counters shared by all
+ * the consumers; when the group rebalances a partition's count continues on whichever consumer gets it.
+ * Offsets are not auto committed.  The first time a partition is assigned in this run the consumer seeks to its end so
+ * only records that arrive after the sink starts are counted; when a partition is revoked its position is committed
+ * so the consumer that gets it next continues from there.
+ *
+ * Latency is now - record timestamp (ms; CreateTime is set by the producer) or, if stamp is set,
+ * now - the send time stamped in the value by the sender (ns; see TimestampField).
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.sink;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.EpochClock;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.TimestampField;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * @author david
+ */
+public class KafkaSinkConsumer extends Thread {
+
+    private static final Logger LOG = LogManager.getLogger(KafkaSinkConsumer.class);
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(100);
+
+    private final KafkaConsumer<byte[], byte[]> consumer;
+    private final String topic;
+
+    // Shared by the consumers; partition -> count
+    private final ConcurrentHashMap<Integer, Counter> partitionCounts;
+
+    // This thread's view of partitionCounts so the shared map is only used for new partitions
+    private final HashMap<Integer, Counter> counters = new HashMap<>();
+
+    // Shared by the consumers; partitions that have been assigned in this run
+    private final Set<TopicPartition> started;
+
+    private final boolean latencyEnabled;
+    private final TimestampField stamp;
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private volatile boolean running = true;
+    volatile long lastTime;
+    volatile long firstTime;
+
+    /**
+     *
+     * @param props Consumer properties (same group.id for all the consumers)
+     * @param topic
+     * @param partitionCounts Shared by the consumers
+     * @param started Shared by the consumers; partitions assigned so far
+     * @param latencyEnabled If true latency is recorded
+     * @param stamp Send time stamp in each value; null to use the record timestamp
+     */
+    public KafkaSinkConsumer(Properties props, String topic, ConcurrentHashMap<Integer, Counter> partitionCounts, Set<TopicPartition> started, boolean latencyEnabled, TimestampField stamp) {
+        this.consumer = new KafkaConsumer<>(props);
+        this.topic = topic;
+        this.partitionCounts = partitionCounts;
+        this.started = started;
+        this.latencyEnabled = latencyEnabled;
+        this.stamp = stamp;
+        this.lastTime = 0L;
+        this.firstTime = 0L;
+        this.setDaemon(true);
+    }
+
+    /**
+     * Only call from one (reporting) thread; see LatencyRecorder.takeInterval.
+     *
+     * @return Latencies since the last call; null if latency is not enabled
+     */
+    public Histogram takeLatencyInterval() {
+        return latencyEnabled ? latency.takeInterval() : null;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * Clears the times; KafkaSink resets the partition counts.
+     */
+    public void reset() {
+        lastTime = 0L;
+        firstTime = 0L;
+    }
+
+    public void terminate() {
+        running = false;
+        consumer.wakeup();
+    }
+
+    private Counter counter(int partition) {
+        Counter c = counters.get(partition);
+        if (c == null) {
+            c = partitionCounts.computeIfAbsent(partition, p -> new Counter());
+            counters.put(partition, c);
+        }
+        return c;
+    }
+
+    private void recordLatency(List<ConsumerRecord<byte[], byte[]>> records) {
+        if (stamp == null) {
+            long now = System.currentTimeMillis();
+            for (ConsumerRecord<byte[], byte[]> rec : records) {
+                latency.recordNanos((now - rec.timestamp()) * 1000000L);
+            }
+        } else {
+            long now = EpochClock.nowNanos();
+            for (ConsumerRecord<byte[], byte[]> rec : records) {
+                byte[] value = rec.value();
+                long sent = value == null ? -1 : stamp.extract(value, 0, value.length);
+                if (sent > 0) {
+                    latency.recordNanos(now - sent);
+                }
+            }
+        }
+    }
+
+    private class Rebalance implements ConsumerRebalanceListener {
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // Hand the position to the next consumer of the partition
+            try {
+                consumer.commitSync();
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            ArrayList<TopicPartition> first = new ArrayList<>();
+            for (TopicPartition tp : partitions) {
+                if (started.add(tp)) {
+                    first.add(tp);
+                }
+            }
+            if (!first.isEmpty()) {
+                consumer.seekToEnd(first);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            consumer.subscribe(Collections.singletonList(topic), new Rebalance());
+
+            while (running) {
+                ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_TIMEOUT);
+                if (records.isEmpty()) {
+                    continue;
+                }
+
+                lastTime = System.currentTimeMillis();
+                if (firstTime == 0) {
+                    firstTime = lastTime;
+                }
+
+                for (TopicPartition tp : records.partitions()) {
+                    List<ConsumerRecord<byte[], byte[]>> partRecords = records.records(tp);
+                    if (latencyEnabled) {
+                        recordLatency(partRecords);
+                    }
+                    counter(tp.partition()).add(partRecords.size());
+                }
+            }
+
+        } catch (WakeupException e) {
+            // terminate
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+}
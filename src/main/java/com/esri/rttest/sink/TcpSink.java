@@ -22,17 +22,28 @@
  * After collecting three samples it will output the rate.
  * After 10 second pause the count and regression are reset.
  *
+ * 17 Oct 2026: Connections are read by a fixed pool of selector threads (TcpSinkServer) instead of a thread per connection.
+ *     Added latency option; the send time stamped in each line by the sender (e.g. Tcp2 stamp) is read and the
+ *     end-to-end latency percentiles (p50,p99,p99.9,max ms) follow the count and rate on each output line.
+ *     Samples are taken by Sampler instead of a Timer; sample-every-N-seconds can be a fraction (e.g. 0.5).
+ *     The rate is from a RateEstimator (constant memory) instead of a SimpleRegression; the 10s, 60s and 5m rates are
+ *     added to the end of each sample line.  The standard error on the result line is now per second (was per ms).
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.sink;
 
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.TimestampField;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.HdrHistogram.Histogram;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -45,7 +56,7 @@ public class TcpSink {
     private static final Logger LOG = LogManager.getLogger(TcpSink.class);
     
 
-    private class GetCounts extends TimerTask {
+    private class GetCounts implements Sampler.Source, Sampler.Listener {
 
         ArrayList<TcpSinkServer> tssList;
         Boolean autoTerminate;
@@ -53,27 +64,60 @@ public class TcpSink {
         long st = 0L;
         long currentCnt = 0L;
         long prevCnt = 0L;
-        SimpleRegression regression;
+        // Rates from the samples of the current count (constant memory)
+        RateEstimator rates;
         int numSamples = 0;
         long tm;
 
-        public GetCounts(ArrayList<TcpSinkServer> tssList, Boolean autoTerminate) {
+        // Latency of the last sample and of the whole test; null if not reading stamps
+        Histogram interval;
+        Histogram total;
+
+        public GetCounts(ArrayList<TcpSinkServer> tssList, Boolean autoTerminate, boolean latency) {
             this.tssList = tssList;
             this.autoTerminate = autoTerminate;
             st = 0L;
             currentCnt = 0L;
             prevCnt = 0L;
-            regression = new SimpleRegression();
+            rates = new RateEstimator(sampleEveryMs);
             tm = 0L;
+            if (latency) {
+                interval = LatencyRecorder.newHistogram();
+                total = LatencyRecorder.newHistogram();
+            }
+        }
+
+        // Merge the latencies recorded by the servers since the last sample
+        private void takeLatencies() {
+            if (interval == null) {
+                return;
+            }
+            interval.reset();
+            for (TcpSinkServer tss : tssList) {
+                interval.add(tss.takeLatencyInterval());
+            }
+            total.add(interval);
+        }
+
+        // ,p50,p99,p99.9,max or empty
+        private String latencies(Histogram h) {
+            return h == null ? "" : "," + LatencyRecorder.format(h);
         }
 
         @Override
-        public void run() {
-            currentCnt = 0L;
-            
+        public long count() {
+            long cnt = 0L;
             for (TcpSinkServer tss : tssList) {
-                currentCnt += tss.getCnt();
+                cnt += tss.getCnt();
             }
+            return cnt;
+        }
+
+        @Override
+        public void onSample(Sampler.Sample sample) {
+            currentCnt = sample.count;
+
+            takeLatencies();
 
             if (currentCnt > prevCnt) {
 
@@ -89,14 +133,14 @@ public class TcpSink {
 
                 }
                 numSamples += 1;
-                tm = System.currentTimeMillis();
-                regression.addData(tm, currentCnt);
+                tm = sample.getTimeMillis();
+                rates.add(tm, currentCnt);
 
                 if (numSamples > 2) {
-                    double rcvRate = regression.getSlope() * 1000;
-                    System.out.println(numSamples + "," + tm + "," + currentCnt + "," + String.format("%.0f", rcvRate));
+                    double rcvRate = rates.getRate();
+                    System.out.println(numSamples + "," + tm + "," + currentCnt + "," + String.format("%.0f", rcvRate) + latencies(interval) + "," + rates.formatRollingRates(","));
                 } else {
-                    System.out.println(numSamples + "," + tm + "," + currentCnt);
+                    System.out.println(numSamples + "," + tm + "," + currentCnt + latencies(interval) + "," + rates.formatRollingRates(","));
                 }
 
             } else {
@@ -121,16 +165,16 @@ public class TcpSink {
 
                     numSamples -= 1;
                     // Remove the last sample
-                    regression.removeData(tm, currentCnt);
+                    rates.removeLast();
                     System.out.println("Removing: " + tm + "," + currentCnt);
                     // Output Results
-                    double rcvRate = regression.getSlope() * 1000;  // converting from ms to seco                    
+                    double rcvRate = rates.getRate();
 
                     if (numSamples > 4) {
-                        double rateStdErr = regression.getSlopeStdErr();
-                        System.out.format("%d , %.0f, %.4f\n", currentCnt, rcvRate, rateStdErr);
+                        double rateStdErr = rates.getRateStdErr();
+                        System.out.format("%d , %.0f, %.4f%s\n", currentCnt, rcvRate, rateStdErr, latencies(total));
                     } else if (numSamples >= 2) {
-                        System.out.format("%d , %.0f\n", currentCnt, rcvRate);
+                        System.out.format("%d , %.0f%s\n", currentCnt, rcvRate, latencies(total));
                     } else {
                         System.out.println("Not enough samples to calculate rate. ");
                     }
@@ -140,9 +184,12 @@ public class TcpSink {
                     System.out.format("Average Rate: %.0f\n",rate);
                     currentCnt = 0L;
                     prevCnt = 0L;
-                    regression = new SimpleRegression();
+                    rates.reset();
                     tm = 0L;
                     numSamples = 0;
+                    if (total != null) {
+                        total.reset();
+                    }
                 }
 
             }
@@ -154,40 +201,58 @@ public class TcpSink {
 
     private void listenForConnections() {
         try {
-            ServerSocket ss = new ServerSocket(port);
+            ServerSocketChannel ss = ServerSocketChannel.open();
+            // Accepted sockets inherit the receive buffer
+            ss.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            ss.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
 
             System.out.println("After starting this; create or restart the GeoEvent service.");
-            System.out.println("Once connected you see a 'Thread Started' message for each connection.");
+            System.out.println("Once connected you see a 'Connection Started' message for each connection.");
 
             ArrayList<TcpSinkServer> tssList = new ArrayList<>();
 
-            // Setup Timer to Get Counts
-            Timer timer = new Timer(true);
-            timer.scheduleAtFixedRate(new GetCounts(tssList, autoTerminate), 0, this.sampleEveryNSecs * 1000);
-
-            while (true) {
-                Socket cs = ss.accept();
-                TcpSinkServer ts = new TcpSinkServer(cs, displayMessages);
+            for (int i = 0; i < numSelectorThreads; i++) {
+                TcpSinkServer ts = new TcpSinkServer(displayMessages, stamp);
                 ts.start();
                 tssList.add(ts);
             }
 
+            // Sample the counts
+            GetCounts getCounts = new GetCounts(tssList, autoTerminate, stamp != null && !displayMessages);
+            Sampler sampler = new Sampler("TcpSink", sampleEveryMs, getCounts, getCounts);
+            sampler.start();
+
+            // Connections are assigned to the selector threads round robin
+            int next = 0;
+            while (true) {
+                SocketChannel cs = ss.accept();
+                tssList.get(next).addConnection(cs);
+                next = (next + 1) % tssList.size();
+            }
+
         } catch (IOException e) {
             LOG.error("ERROR",e);
         }
     }
 
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+
     Integer port;
-    Integer sampleEveryNSecs;
+    long sampleEveryMs;
     Boolean autoTerminate;
     Boolean displayMessages;
+    Integer numSelectorThreads;
+    TimestampField stamp;
        
     
-    public TcpSink(Integer port, Integer sampleEveryNSecs, Boolean autoTerminate, Boolean displayMessages) {
+    public TcpSink(Integer port, long sampleEveryMs, Boolean autoTerminate, Boolean displayMessages, Integer numSelectorThreads, TimestampField stamp) {
         this.port = port;
-        this.sampleEveryNSecs = sampleEveryNSecs;
+        this.sampleEveryMs = sampleEveryMs;
         this.autoTerminate = autoTerminate;
         this.displayMessages = displayMessages;
+        this.numSelectorThreads = numSelectorThreads;
+        this.stamp = stamp;
         listenForConnections();
 
     }
@@ -208,31 +273,46 @@ public class TcpSink {
          */
         int numargs = args.length;
 
-        if (numargs < 1 || numargs > 4) {
-            System.err.println("Usage: TcpSink <port-to-listen-on> (<sample-every-N-seconds/5>) (<auto-terminate/true>) (<display-messages/false>)\n");
+        if (numargs < 1 || numargs > 6) {
+            System.err.println("Usage: TcpSink <port-to-listen-on> (<sample-every-N-seconds/5>) (<auto-terminate/true>) (<display-messages/false>) (<selector-threads/number-of-processors>) (<latency/none>)\n");
             System.err.println("port-to-listen-on: The port to listen on");
-            System.err.println("samples-every-N-seconds: Will gather a sample every N seconds for linear regression and estimation of rate.");
+            System.err.println("samples-every-N-seconds: Will gather a sample every N seconds for linear regression and estimation of rate; can be a fraction (e.g. 0.5).");
             System.err.println("auto-terminate: true or false defaults to true. If true when count stops increasing the socket is closed; GeoEvent expects socket to stay open.");
             System.err.println("display-messages: true or false default to false. If true messages are displayed counts ignored. Useful for low rates and validating messages.");
+            System.err.println("selector-threads: Number of threads reading the connections; defaults to the number of processors.");
+            System.err.println("latency: Where the sender stamped the send time (same as the sender's stamp) e.g. csv, csv:2, json:ts; latency percentiles (ms) are added to the output. Defaults to none.");
             
         } else {
 
-            
-            switch (numargs) {
-                case 1:
-                    new TcpSink(Integer.parseInt(args[0]), 5, true, false);
-                    break;
-                case 2:
-                    new TcpSink(Integer.parseInt(args[0]), Integer.parseInt(args[1]), true, false);
-                    break;
-                case 3:
-                    new TcpSink(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Boolean.parseBoolean(args[2]), false);
-                    break;
-                default:
-                    new TcpSink(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Boolean.parseBoolean(args[2]), Boolean.parseBoolean(args[3]));
-                    break;
+            Integer port = Integer.parseInt(args[0]);
+
+            long sampleEveryMs = 5000;
+            if (numargs > 1) {
+                sampleEveryMs = Sampler.parsePeriodMillis(args[1]);
             }
 
+            Boolean autoTerminate = true;
+            if (numargs > 2) {
+                autoTerminate = Boolean.parseBoolean(args[2]);
+            }
+
+            Boolean displayMessages = false;
+            if (numargs > 3) {
+                displayMessages = Boolean.parseBoolean(args[3]);
+            }
+
+            Integer numSelectorThreads = Runtime.getRuntime().availableProcessors();
+            if (numargs > 4) {
+                numSelectorThreads = Integer.parseInt(args[4]);
+            }
+
+            TimestampField stamp = null;
+            if (numargs > 5) {
+                stamp = TimestampField.parse(args[5]);
+            }
+
+            new TcpSink(port, sampleEveryMs, autoTerminate, displayMessages, numSelectorThreads, stamp);
+
         }
 
     }
@@ -19,14 +19,37 @@
 /**
  * Used by TcpSink to listen for Messages.
  *
+ * 17 Oct 2026: Was one thread per socket that decoded each line with readLine and slept a second whenever no data
+ * was ready.  Now each TcpSinkServer is a selector thread that reads any number of non-blocking connections; TcpSink
+ * starts a fixed number of them and hands each accepted connection to one.  Messages are counted by scanning the raw
+ * bytes for newlines; lines are only decoded when displayMessages is true.
+ *
+ * Resetting the count and the times and closing the connections are carried out by this thread, together, before the
+ * next read; a read can not land between the count and the times being reset (firstTime left at 0 for the next run).
+ *
+ * If stamp is set each line's send time stamp is read in place (TimestampField) and now - stamp is recorded in a
+ * LatencyRecorder; a line split across reads is copied into the connection's PartialLine first.
+ * A line longer than MAX_LINE_SIZE (e.g. a peer that never sends a newline) is not buffered; it is still counted but
+ * not displayed or read for a stamp, and a warning is logged.
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.sink;
 
-import java.io.BufferedReader;
+import com.esri.rttest.Counter;
+import com.esri.rttest.EpochClock;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.TimestampField;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.HdrHistogram.Histogram;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -36,28 +59,85 @@ import org.apache.logging.log4j.Logger;
  * @author david
  */
 public class TcpSinkServer extends Thread {
-    
+
     private static final Logger LOG = LogManager.getLogger(TcpSinkServer.class);
-    
 
-    private Socket socket = null;
-    boolean running;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final Selector selector;
+
+    // Accepted connections waiting to be registered with the selector
+    private final ConcurrentLinkedQueue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+
+    // Shared by all the connections of this thread
+    private final ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Same limit as a WebSocket message (WebSocketSinkFrames)
+    static final int MAX_LINE_SIZE = 16 * 1024 * 1024;
+
+    // End of a connection's last read that did not end with a newline
+    private static class PartialLine {
+
+        byte[] b = new byte[1024];
+        int len;
+        // Longer than MAX_LINE_SIZE; the rest of the line is dropped until the newline
+        boolean oversized;
+
+        void append(byte[] src, int start, int end) {
+            int n = end - start;
+            if (oversized) {
+                return;
+            }
+            if (len + n > MAX_LINE_SIZE) {
+                oversized = true;
+                len = 0;
+                b = new byte[1024];
+                return;
+            }
+            if (len + n > b.length) {
+                b = Arrays.copyOf(b, Math.max(b.length * 2, len + n));
+            }
+            System.arraycopy(src, start, b, len, n);
+            len += n;
+        }
+
+        void clear() {
+            len = 0;
+            oversized = false;
+        }
+    }
+
+    private final TimestampField stamp;
+    private final LatencyRecorder latency;
+
+    private volatile boolean closeRequested;
+    private volatile boolean resetRequested;
+
     boolean displayMessages;
-    long cnt;
-    long lastTime;
-    long firstTime;
+    final Counter cnt = new Counter();
+    volatile long lastTime;
+    volatile long firstTime;
+    // Lines longer than MAX_LINE_SIZE; only used by this thread
+    long oversizedLines;
 
-    public TcpSinkServer(Socket socket, boolean displayMessages) {
-        this.socket = socket;
-        this.cnt = 0;
+    /**
+     *
+     * @param displayMessages
+     * @param stamp Send time stamp in each line; null to only count lines
+     * @throws IOException
+     */
+    public TcpSinkServer(boolean displayMessages, TimestampField stamp) throws IOException {
+        this.selector = Selector.open();
+        this.stamp = displayMessages ? null : stamp;
+        this.latency = this.stamp == null ? null : new LatencyRecorder();
         this.lastTime = 0L;
         this.firstTime = 0L;
         this.displayMessages = displayMessages;
-        this.running = true;
+        this.setDaemon(true);
     }
 
     public long getCnt() {
-        return cnt;
+        return cnt.get();
     }
 
     public long getLastTime() {
@@ -67,65 +147,212 @@ public class TcpSinkServer extends Thread {
     public long getFirstTime() {
         return firstTime;
     }
-    
+
+    /**
+     * Only call from one (reporting) thread; see LatencyRecorder.takeInterval.
+     *
+     * @return Latencies since the last call; null if the lines are not stamped
+     */
+    public Histogram takeLatencyInterval() {
+        return latency == null ? null : latency.takeInterval();
+    }
+
+    /**
+     * Hand an accepted connection to this thread. Rejected (closed) while a terminate is pending.
+     *
+     * @param channel
+     */
+    public void addConnection(SocketChannel channel) {
+        if (closeRequested) {
+            LOG.info("Terminating; connection rejected");
+            closeChannel(channel);
+            return;
+        }
+        newConnections.add(channel);
+        selector.wakeup();
+    }
+
     public void reset() {
-        this.cnt = 0;
-        this.lastTime = 0L;
-        this.firstTime = 0L;        
+        resetRequested = true;
+        selector.wakeup();
     }
-    
-    
+
+    /**
+     * Close the connections of this thread and reset the counts. The thread keeps running for new connections.
+     */
     public void terminate() {
-        
+        closeRequested = true;
+        resetRequested = true;
+        selector.wakeup();
+    }
+
+    private void registerNewConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = newConnections.poll()) != null) {
+            channel.configureBlocking(false);
+            // Partial line is only kept when displaying messages or reading stamps
+            PartialLine partial = null;
+            if (displayMessages || stamp != null) {
+                partial = new PartialLine();
+            }
+            channel.register(selector, SelectionKey.OP_READ, partial);
+            System.out.println("Connection Started");
+        }
+    }
+
+    private void closeConnections() {
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        // Accepted before the terminate but not registered yet
+        SocketChannel channel;
+        while ((channel = newConnections.poll()) != null) {
+            closeChannel(channel);
+        }
+    }
+
+    private static void closeChannel(SocketChannel channel) {
         try {
-            cnt = 0L;            
-            this.lastTime = 0L;
-            this.firstTime = 0L;
-            socket.close();            
-            running = false;
-            this.interrupt();
-            
+            channel.close();
         } catch (IOException e) {
-            LOG.error("ERROR", e);
+            // Closing; nothing to do
         }
-    }    
+    }
 
-    @Override
-    public void run() {
+    private void close(SelectionKey key) {
         try {
+            key.cancel();
+            key.channel().close();
+        } catch (IOException e) {
+            // Closing; nothing to do
+        }
+    }
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+    private void oversized() {
+        oversizedLines++;
+        LOG.warn("Line longer than " + MAX_LINE_SIZE + " bytes was not read (" + oversizedLines + " lines)");
+    }
 
-            System.out.println("Thread Started");
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
 
-            while (true) {
-                if (in.ready()) {
+        buf.clear();
+        int n = channel.read(buf);
+        if (n < 0) {
+            close(key);
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
 
-                    String line = in.readLine();
-                    lastTime = System.currentTimeMillis();
+        lastTime = System.currentTimeMillis();
 
-                    if (displayMessages) {
-                        System.out.println(line);
+        byte[] b = buf.array();
 
+        if (displayMessages) {
+            PartialLine partial = (PartialLine) key.attachment();
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (b[i] == '\n') {
+                    partial.append(b, start, i);
+                    if (partial.oversized) {
+                        oversized();
                     } else {
-                        cnt += 1;
-                        if (cnt == 1) {
-                            firstTime = System.currentTimeMillis();
+                        System.out.println(new String(partial.b, 0, partial.len, StandardCharsets.UTF_8));
+                    }
+                    partial.clear();
+                    start = i + 1;
+                }
+            }
+            partial.append(b, start, n);
+            return;
+        }
+
+        int lines = 0;
+        if (stamp == null) {
+            for (int i = 0; i < n; i++) {
+                if (b[i] == '\n') {
+                    lines++;
+                }
+            }
+        } else {
+            long now = EpochClock.nowNanos();
+            PartialLine partial = (PartialLine) key.attachment();
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (b[i] == '\n') {
+                    lines++;
+                    long sent;
+                    if (partial.len > 0 || partial.oversized) {
+                        partial.append(b, start, i);
+                        if (partial.oversized) {
+                            oversized();
+                            sent = -1;
+                        } else {
+                            sent = stamp.extract(partial.b, 0, partial.len);
                         }
+                        partial.clear();
+                    } else {
+                        sent = stamp.extract(b, start, i);
                     }
+                    if (sent > 0) {
+                        latency.recordNanos(now - sent);
+                    }
+                    start = i + 1;
+                }
+            }
+            partial.append(b, start, n);
+        }
+
+        if (lines > 0) {
+            if (cnt.get() == 0) {
+                firstTime = lastTime;
+            }
+            cnt.add(lines);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
 
-                } else {
-                    Thread.sleep(1000);
+            while (true) {
+                selector.select();
+
+                // Terminate before registering so a connection is not registered only to be closed
+                if (closeRequested) {
+                    closeConnections();
+                    closeRequested = false;
                 }
-                if (!running) {
-                    break;
+
+                registerNewConnections();
+
+                if (resetRequested) {
+                    resetRequested = false;
+                    cnt.reset();
+                    lastTime = 0L;
+                    firstTime = 0L;
                 }
-                
 
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        read(key);
+                    } catch (IOException e) {
+                        // Connection reset by the sender
+                        close(key);
+                    }
+                }
             }
 
-        } catch (IOException | InterruptedException e) {
-            //e.printStackTrace();
+        } catch (IOException e) {
+            LOG.error("ERROR", e);
         }
 
     }
@@ -20,21 +20,41 @@
  * Listens on on Web Socket for messages.
  * Updated; based on https://www.eclipse.org/jetty/documentation/9.4.x/jetty-websocket-client-api.html
  *
+ * 17 Oct 2026: Added latency option; the send time stamped in each message by the sender is read and the
+ *     end-to-end latency percentiles (ms) are added to the table and the totals.
+ *     Added mode; frames and lines count from the raw frames (WebSocketSinkFrames) without decoding each message
+ *     into a String; lines counts the newline delimited records in each message.  The max message size is 16MB.
+ *     Added sessions; opens that many sessions on one client (bounded QueuedThreadPool) to measure the aggregate rate
+ *     of a broadcast service.  With spread (or an app[...] url) the sessions are spread over the ip:ports found by IPPorts.
+ *     Each session counts on its own; the counts are summed for the rate and the min and max session rates are added to
+ *     the table to spot slow subscribers.
+ *     Samples are taken by Sampler instead of a Timer; sample-rate-sec can be a fraction (e.g. 0.5).
+ *     The samples go to a RateEstimator (constant memory) instead of a SimpleRegression and a map of every sample;
+ *     10s, 60s and 5m rates are added to the table and the slope standard error to the totals.
+ *     Sampling starts after the sessions connect; the number connected is always output and the tool exits with an
+ *     error if no session connected.
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.sink;
 
+import com.esri.rttest.IPPort;
+import com.esri.rttest.IPPorts;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.RateEstimator;
+import com.esri.rttest.Sampler;
+import com.esri.rttest.TimestampField;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.HdrHistogram.Histogram;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 
@@ -46,23 +66,38 @@ public class WebSocketSink {
 
     private static final Logger LOG = LogManager.getLogger(WebSocketSink.class);
 
-    WebSocketSinkMsg socket;
+    // One per session
+    final ArrayList<WebSocketSinkStats> sockets = new ArrayList<>();
 
-    // ******************* TimerTask Class ******************************
-    class CheckCount extends TimerTask {
+    // ******************* Sampler Listener Class ******************************
+    class CheckCount implements Sampler.Source, Sampler.Listener {
 
         long cnt1 = 0;
         long cnt2 = -1;
         long startCount = 0;
         long endCount = 0;
         int numSamples = 0;
-        HashMap<Long, Long> samples;
         long t1 = 0L;
         long t2 = 0L;
-        SimpleRegression regression;
+        // Rates from the samples of the current count (constant memory)
+        RateEstimator rates;
+
+        // Count of each session at the last sample and at the start of the count
+        long[] sessionPrev;
+        long[] sessionStart;
+
+        // Latency of the last sample and of the current count; null if not reading stamps
+        Histogram interval;
+        Histogram total;
 
         public CheckCount() {
-            regression = new SimpleRegression();
+            rates = new RateEstimator(sampleRateMs);
+            sessionPrev = new long[sockets.size()];
+            sessionStart = new long[sockets.size()];
+            if (stamp != null) {
+                interval = LatencyRecorder.newHistogram();
+                total = LatencyRecorder.newHistogram();
+            }
             cnt1 = 0;
             cnt2 = -1;
             startCount = 0;
@@ -80,10 +115,6 @@ public class WebSocketSink {
             }
         }
 
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
-
         long getStartCount() {
             return startCount;
         }
@@ -92,20 +123,112 @@ public class WebSocketSink {
             return endCount;
         }
 
+        // Merge the latencies recorded since the last sample
+        private void takeLatencies() {
+            if (interval == null) {
+                return;
+            }
+            interval.reset();
+            for (WebSocketSinkStats socket : sockets) {
+                interval.add(socket.takeLatencyInterval());
+            }
+            total.add(interval);
+        }
+
+        private long getCnt() {
+            long cnt = 0;
+            for (WebSocketSinkStats socket : sockets) {
+                cnt += socket.getCnt();
+            }
+            return cnt;
+        }
+
+        // Table columns: min and max rate of the sessions since the last sample or empty for one session
+        private String sessionRates() {
+            if (sockets.size() < 2) {
+                return "";
+            }
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (int i = 0; i < sockets.size(); i++) {
+                long cnt = sockets.get(i).getCnt();
+                if (t2 > 0 && t1 > t2) {
+                    double rate = (double) (cnt - sessionPrev[i]) / (double) (t1 - t2) * 1000.0;
+                    min = Math.min(min, rate);
+                    max = Math.max(max, rate);
+                }
+                sessionPrev[i] = cnt;
+            }
+            if (min > max) {
+                return "           |           |";
+            }
+            return " " + String.format("%.0f", min) + " | " + String.format("%.0f", max) + " |";
+        }
+
+        private void startSessionCounts() {
+            for (int i = 0; i < sockets.size(); i++) {
+                sessionStart[i] = sockets.get(i).getCnt();
+            }
+        }
+
+        // Totals line: open sessions and the min and max session counts or empty for one session
+        private String sessionTotals() {
+            if (sockets.size() < 2) {
+                return "";
+            }
+            int open = 0;
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < sockets.size(); i++) {
+                WebSocketSinkStats socket = sockets.get(i);
+                if (socket.isOpen()) {
+                    open++;
+                }
+                long cnt = socket.getCnt() - sessionStart[i];
+                min = Math.min(min, cnt);
+                max = Math.max(max, cnt);
+            }
+            return String.format(" | Sessions Open: %d of %d | Min Session Count: %,d | Max Session Count: %,d", open, sockets.size(), min, max);
+        }
+
+        // Table column: p50,p99,p99.9,max or empty
+        private String latencies(Histogram h) {
+            return h == null ? "" : " " + LatencyRecorder.format(h) + " |";
+        }
+
+        @Override
+        public long count() {
+            return getCnt();
+        }
+
         @Override
-        public void run() {
+        public void onSample(Sampler.Sample sample) {
 
             try {
                 LOG.info("Checking Count");
 
-                cnt1 = socket.getCnt();
-                t1 = System.currentTimeMillis();
+                cnt1 = sample.count;
+                t1 = sample.getTimeMillis();
+                takeLatencies();
+                String sessionRates = sessionRates();
 
                 if (cnt2 == -1) {
                     if (sendStdout) {
                         System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
-                        System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|");
-                        System.out.println("|-------------|-----|-----|----------------------|--------------------------|");
+                        String header = "|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|";
+                        String line = "|-------------|-----|-----|----------------------|--------------------------|";
+                        if (interval != null) {
+                            header += "Latency p50,p99,p99.9,max (ms)|";
+                            line += "------------------------------|";
+                        }
+                        if (sockets.size() > 1) {
+                            header += "Min Session Rate|Max Session Rate|";
+                            line += "----------------|----------------|";
+                        }
+                        header += "10s Rate|60s Rate|5m Rate|";
+                        line += "--------|--------|-------|";
+                        System.out.println(header);
+                        System.out.println(line);
                     }
                 }
 
@@ -113,27 +236,29 @@ public class WebSocketSink {
                     cnt2 = cnt1;
                     startCount = cnt1;
                     endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
+                    rates.reset();
                     numSamples = 0;
+                    if (total != null) {
+                        total.reset();
+                    }
+                    startSessionCounts();
 
                 } else if (cnt1 > cnt2) {
                     // Increase number of samples
                     numSamples += 1;
 
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
+                    // Add to the rate estimator (regression and rolling rates)
+                    rates.add(t1, cnt1);
 
                     if (numSamples >= 2) {
-                        double regRate = regression.getSlope() * 1000;
+                        double regRate = rates.getRate();
                         double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
                         if (sendStdout) {
-                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |");
+                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |" + latencies(interval) + sessionRates + " " + rates.formatRollingRates(" | ") + " |");
                         }
                     } else {
                         if (sendStdout) {
-                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |");
+                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |" + latencies(interval) + sessionRates + " " + rates.formatRollingRates(" | ") + " |");
                         }
                     }
 
@@ -147,31 +272,10 @@ public class WebSocketSink {
 
                     numSamples -= 1;
                     // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
-
-                    // Calculate Average Rate
-                    long minTime = Long.MAX_VALUE;
-                    long maxTime = Long.MIN_VALUE;
-                    long minCount = Long.MAX_VALUE;
-                    long maxCount = Long.MIN_VALUE;
-                    for (Map.Entry pair : samples.entrySet()) {
-                        long time = (long) pair.getKey();
-                        long count = (long) pair.getValue();
-                        if (time < minTime) {
-                            minTime = time;
-                        }
-                        if (time > maxTime) {
-                            maxTime = time;
-                        }
-                        if (count < minCount) {
-                            minCount = count;
-                        }
-                        if (count > maxCount) {
-                            maxCount = count;
-                        }
-                    }
-                    double avgRate = (double) (maxCount - minCount) / (double) (maxTime - minTime) * 1000.0;
+                    rates.removeLast();
+
+                    // Average Rate (first to last sample)
+                    double avgRate = rates.getAverageRate();
 
                     if (sendStdout) {
                         System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
@@ -180,7 +284,7 @@ public class WebSocketSink {
                     // Output Results
                     long cnt = cnt2 - startCount;
 
-                    double regRate = regression.getSlope() * 1000;  // converting from ms to seconds
+                    double regRate = rates.getRate();
 
                     //if (numSamples > 5) {
                     //    double rateStdErr = regression.getSlopeStdErr();
@@ -191,7 +295,11 @@ public class WebSocketSink {
                     //} else if (numSamples >= 2) {
                     if (numSamples >= 2) {
                         if (sendStdout) {
-                            System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f\n\n", cnt, regRate, avgRate);
+                            if (total == null) {
+                                System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f%s | Rate Std Err: %,.1f\n\n", cnt, regRate, avgRate, sessionTotals(), rates.getRateStdErr());
+                            } else {
+                                System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f | Latency p50,p99,p99.9,max (ms): %s%s | Rate Std Err: %,.1f\n\n", cnt, regRate, avgRate, LatencyRecorder.format(total), sessionTotals(), rates.getRateStdErr());
+                            }
                         }
                     } else {
                         if (sendStdout) {
@@ -206,7 +314,10 @@ public class WebSocketSink {
                     numSamples = 0;
                     t1 = 0L;
                     t2 = 0L;
-                    regression = new SimpleRegression();
+                    rates.reset();
+                    if (total != null) {
+                        total.reset();
+                    }
 
                 }
 
@@ -222,44 +333,150 @@ public class WebSocketSink {
     }
     // *****************************************************************
 
-    final int MAX_MESSAGE_SIZE = 1000000;
+    final int MAX_MESSAGE_SIZE = WebSocketSinkFrames.MAX_MESSAGE_SIZE;
     boolean sendStdout;
-    Timer timer;
-    long sampleRate;
+    Sampler sampler;
+    long sampleRateMs;
     String destUri;
+    TimestampField stamp;
+    boolean spread;
+    int clientThreads;
 
-    public WebSocketSink(String url, Integer sampleRateSec, boolean printMessages, boolean sendStdout) {
+    // Jetty needs a few threads for its selectors besides the ones delivering messages
+    private static final int MIN_CLIENT_THREADS = 8;
+
+    public WebSocketSink(String url, long sampleRateMs, boolean printMessages, boolean sendStdout) {
+        this(url, sampleRateMs, printMessages, sendStdout, null, "text", 1, false, MIN_CLIENT_THREADS);
+    }
+
+    /**
+     *
+     * @param url
+     * @param sampleRateMs
+     * @param printMessages
+     * @param sendStdout
+     * @param stamp Send time stamp in each message; null to only count messages
+     * @param mode text (each message is decoded; needed for printMessages), frames (count messages from the raw frames),
+     * or lines (count newline delimited records from the raw frames)
+     * @param numSessions Number of sessions to open
+     * @param spread If true the sessions are spread over the ip:ports of the url's host (IPPorts)
+     * @param clientThreads Max threads of the client's thread pool (shared by the sessions)
+     */
+    public WebSocketSink(String url, long sampleRateMs, boolean printMessages, boolean sendStdout, TimestampField stamp, String mode,
+            int numSessions, boolean spread, int clientThreads) {
 
         this.sendStdout = sendStdout;
-        this.sampleRate = sampleRateSec;
+        this.sampleRateMs = sampleRateMs;
 
         this.destUri = url;
         //String destUri = "ws://echo.websocket.org";
 
-        socket = new WebSocketSinkMsg(printMessages);
+        this.stamp = stamp;
+        this.spread = spread || url.contains("://app[");
+        this.clientThreads = Math.max(clientThreads, MIN_CLIENT_THREADS);
+
+        for (int i = 0; i < numSessions; i++) {
+            switch (mode.toLowerCase()) {
+                case "frames":
+                    sockets.add(new WebSocketSinkFrames(false, stamp));
+                    break;
+                case "lines":
+                    sockets.add(new WebSocketSinkFrames(true, stamp));
+                    break;
+                case "text":
+                    sockets.add(new WebSocketSinkMsg(printMessages, stamp));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid mode: " + mode);
+            }
+        }
+
+    }
+
+    /**
+     * The urls the sessions connect to round robin.
+     *
+     * @return destUri or if spread a url for each ip:port found by IPPorts
+     */
+    private ArrayList<URI> endpoints() throws Exception {
+        ArrayList<URI> uris = new ArrayList<>();
+        if (!spread) {
+            uris.add(new URI(destUri));
+            return uris;
+        }
 
+        // IPPorts uses java.net.URL which does not know ws or wss; the default ports are the same as http and https
+        String query = destUri.contains("?") ? destUri.substring(destUri.indexOf('?')) : "";
+        String url = destUri.replaceFirst("^ws://", "http://").replaceFirst("^wss://", "https://");
+        IPPorts ipp = new IPPorts(url);
+        if (ipp.getIPPorts() == null || ipp.getIPPorts().isEmpty()) {
+            throw new UnsupportedOperationException("Could not discover the any ip port combinations.");
+        }
+        String protocol = ipp.getProtocol().equalsIgnoreCase("https") || ipp.getProtocol().equalsIgnoreCase("wss") ? "wss" : "ws";
+        // The app[name] form leaves the query in the path; a host url's path (java.net.URL) does not have it
+        String path = ipp.getPath() == null ? "" : ipp.getPath();
+        if (path.contains("?")) {
+            query = "";
+        }
+        for (IPPort ipport : ipp.getIPPorts()) {
+            uris.add(new URI(protocol + "://" + ipport.getIp() + ":" + ipport.getPort() + path + query));
+        }
+        return uris;
     }
 
     public void run() {
+        boolean anyConnected = false;
         try {
 
-            timer = new Timer();
-            timer.schedule(new WebSocketSink.CheckCount(), 0, sampleRate * 1000);
-
             SslContextFactory sslContextFactory = new SslContextFactory();
             sslContextFactory.setTrustAll(true);             
             
-            WebSocketClient client = new WebSocketClient(sslContextFactory);
+            // All the sessions share the client and its bounded pool
+            QueuedThreadPool threadPool = new QueuedThreadPool(clientThreads, Math.min(clientThreads, MIN_CLIENT_THREADS));
+            threadPool.setName("websocket-sink");
+            threadPool.setDaemon(true);
+
+            WebSocketClient client = new WebSocketClient(sslContextFactory, threadPool);
+            client.getPolicy().setMaxTextMessageSize(MAX_MESSAGE_SIZE);
+            client.getPolicy().setMaxBinaryMessageSize(MAX_MESSAGE_SIZE);
+            client.setMaxTextMessageBufferSize(MAX_MESSAGE_SIZE);
+            client.setMaxBinaryMessageBufferSize(MAX_MESSAGE_SIZE);
             try {
                 client.start();
 
-                URI echoUri = new URI(destUri);
-                ClientUpgradeRequest request = new ClientUpgradeRequest();
-                client.connect(socket, echoUri, request);
-                //System.out.printf("Connecting to : %s%n", echoUri);
+                ArrayList<URI> uris = endpoints();
+
+                ArrayList<Future<Session>> connects = new ArrayList<>();
+                for (int i = 0; i < sockets.size(); i++) {
+                    URI echoUri = uris.get(i % uris.size());
+                    ClientUpgradeRequest request = new ClientUpgradeRequest();
+                    connects.add(client.connect(sockets.get(i), echoUri, request));
+                }
+
+                // A session whose connect failed never gets onClose; only wait on the ones that connected
+                ArrayList<WebSocketSinkStats> connected = new ArrayList<>();
+                for (int i = 0; i < connects.size(); i++) {
+                    try {
+                        connects.get(i).get(30, TimeUnit.SECONDS);
+                        connected.add(sockets.get(i));
+                    } catch (Exception e) {
+                        LOG.error("Session " + i + " could not connect to " + uris.get(i % uris.size()) + ": " + e.getMessage());
+                    }
+                }
+                System.out.println("Connected " + connected.size() + " of " + sockets.size() + " sessions to " + uris.size() + " endpoints with " + clientThreads + " client threads.");
+                anyConnected = !connected.isEmpty();
+
+                // Sample only after the connects; nothing is counted if no session connected
+                if (anyConnected) {
+                    WebSocketSink.CheckCount checkCount = new WebSocketSink.CheckCount();
+                    sampler = new Sampler("WebSocketSink", sampleRateMs, checkCount, checkCount);
+                    sampler.start();
+                }
 
-                // wait for closed socket connection.
-                socket.awaitClose(5, TimeUnit.DAYS);
+                // wait for closed socket connections.
+                for (WebSocketSinkStats socket : connected) {
+                    socket.awaitClose(5, TimeUnit.DAYS);
+                }
             } catch (Exception t) {
                 t.printStackTrace();
             } finally {
@@ -274,6 +491,11 @@ public class WebSocketSink {
             LOG.error("ERROR", e);
         }
 
+        if (!anyConnected) {
+            LOG.error("No session connected to " + destUri);
+            System.exit(-1);
+        }
+
     }
 
     public static void main(String[] args) {
@@ -281,19 +503,25 @@ public class WebSocketSink {
         int numargs = args.length;
 
         if (numargs < 1) {
-            System.err.println("Usage: WebSocketSink (ws-url) [(sample-rate-sec) (print-messages=false)]");
+            System.err.println("Usage: WebSocketSink (ws-url) [(sample-rate-sec) (print-messages=false) (latency=none) (mode=text) (sessions=1) (spread=false) (client-threads=8)]");
+            System.err.println("sample-rate-sec: Seconds between samples; can be a fraction (e.g. 0.5). Defaults to 5.");
+            System.err.println("latency: Where the sender stamped the send time (e.g. csv, csv:2, json:ts); latency percentiles (ms) are added to the output.");
+            System.err.println("mode: text (each message decoded to a String), frames (count messages from raw frames; no decoding), or lines (count newline delimited records in the frames). print-messages requires text.");
+            System.err.println("sessions: Number of sessions opened on one client; the counts are summed and the min and max session rates are added to the output.");
+            System.err.println("spread: true spreads the sessions over each ip:port of the host (dns name with several ips); a ws://app[marathon-app-name]/path url is always spread.");
+            System.err.println("client-threads: Max threads shared by the sessions (at least 8).");
             System.err.println("NOTE: For GeoEvent Stream Service append /subscribe to the Web Socket URL.");
         } else {
 
             String websockerurl = args[0];
-            Integer sampleRateSec = 5;
+            long sampleRateMs = 5000;
             Boolean printMessages = false;
             Boolean sendStdout = true;
 
             LOG.info("Entering application");
 
             if (numargs > 1) {
-                sampleRateSec = Integer.parseInt(args[1]);
+                sampleRateMs = Sampler.parsePeriodMillis(args[1]);
             }
             if (numargs > 2) {
                 printMessages = Boolean.parseBoolean(args[2]);
@@ -301,8 +529,28 @@ public class WebSocketSink {
                     sendStdout = false;
                 }
             }
+            TimestampField stamp = null;
+            if (numargs > 3) {
+                stamp = TimestampField.parse(args[3]);
+            }
+            String mode = "text";
+            if (numargs > 4) {
+                mode = args[4];
+            }
+            Integer numSessions = 1;
+            if (numargs > 5) {
+                numSessions = Integer.parseInt(args[5]);
+            }
+            Boolean spread = false;
+            if (numargs > 6) {
+                spread = Boolean.parseBoolean(args[6]);
+            }
+            Integer clientThreads = 8;
+            if (numargs > 7) {
+                clientThreads = Integer.parseInt(args[7]);
+            }
 
-            WebSocketSink webSocketSink = new WebSocketSink(websockerurl, sampleRateSec, printMessages, sendStdout);
+            WebSocketSink webSocketSink = new WebSocketSink(websockerurl, sampleRateMs, printMessages, sendStdout, stamp, mode, numSessions, spread, clientThreads);
             webSocketSink.run();
         }
     }
@@ -43,7 +43,7 @@ public class WebSocketSink2 {
 
     private static final Logger LOG = LogManager.getLogger(WebSocketSink2.class);
 
-    final int MAX_MESSAGE_SIZE = 1000000;
+    final int MAX_MESSAGE_SIZE = WebSocketSinkFrames.MAX_MESSAGE_SIZE;
 
     public void connectWebsocket(String url, int sampleEveryN, boolean showMessages) {
 
@@ -54,6 +54,8 @@ public class WebSocketSink2 {
         sslContextFactory.setTrustAll(true);
 
         WebSocketClient client = new WebSocketClient(sslContextFactory);
+        client.getPolicy().setMaxTextMessageSize(MAX_MESSAGE_SIZE);
+        client.setMaxTextMessageBufferSize(MAX_MESSAGE_SIZE);
         WebSocketSinkMsg2 socket = new WebSocketSinkMsg2(sampleEveryN, showMessages);
         try {
             client.start();
@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Used by WebSocketSink (mode frames or lines).
+ *
+ * Counts messages from the raw frames. There is only a frame handler (no message handler) so Jetty does not
+ * decode the text frames into Strings or collect the frames of a message; each frame's payload is scanned in place.
+ * A message is counted when its last frame (fin) arrives; text and binary messages are both counted.
+ *
+ * If countLines is true the newline delimited records inside the messages are counted instead; a message
+ * that does not end with a newline counts its last record when the message ends.
+ *
+ * If stamp is set the send time stamp of each record is read (TimestampField) and the latency recorded; a record
+ * split across frames is copied to a partial buffer first.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.sink;
+
+import com.esri.rttest.Counter;
+import com.esri.rttest.EpochClock;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.TimestampField;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+
+/**
+ *
+ * @author david
+ */
+@org.eclipse.jetty.websocket.api.annotations.WebSocket(maxTextMessageSize = WebSocketSinkFrames.MAX_MESSAGE_SIZE, maxBinaryMessageSize = WebSocketSinkFrames.MAX_MESSAGE_SIZE)
+public class WebSocketSinkFrames implements WebSocketSinkStats {
+
+    private static final Logger LOG = LogManager.getLogger(WebSocketSinkFrames.class);
+
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final boolean countLines;
+    private final TimestampField stamp;
+    private final LatencyRecorder latency;
+
+    final Counter cnt = new Counter();
+
+    // Frames of a session are delivered one at a time so these are only used by one thread at a time
+    private boolean inRecord;
+    private byte[] partial = new byte[1024];
+    private int partialLen;
+    private byte[] copy = new byte[64 * 1024];
+
+    private final CountDownLatch closeLatch;
+    private volatile Session session;
+
+    /**
+     *
+     * @param countLines If true newline delimited records are counted instead of messages
+     * @param stamp Send time stamp in each record; null to only count
+     */
+    public WebSocketSinkFrames(boolean countLines, TimestampField stamp) {
+        this.closeLatch = new CountDownLatch(1);
+        this.countLines = countLines;
+        this.stamp = stamp;
+        this.latency = stamp == null ? null : new LatencyRecorder();
+    }
+
+    @Override
+    public long getCnt() {
+        return cnt.get();
+    }
+
+    @Override
+    public Histogram takeLatencyInterval() {
+        return latency == null ? null : latency.takeInterval();
+    }
+
+    @Override
+    public boolean awaitClose(int duration, TimeUnit unit) throws InterruptedException {
+        return this.closeLatch.await(duration, unit);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return session != null;
+    }
+
+    @OnWebSocketClose
+    public void onClose(int statusCode, String reason) {
+        this.session = null;
+        this.closeLatch.countDown(); // trigger latch
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        this.session = session;
+    }
+
+    private void appendPartial(byte[] b, int start, int end) {
+        int n = end - start;
+        if (partialLen + n > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLen + n));
+        }
+        System.arraycopy(b, start, partial, partialLen, n);
+        partialLen += n;
+    }
+
+    private void recordLatency(byte[] b, int start, int end, long now) {
+        long sent;
+        if (partialLen > 0) {
+            appendPartial(b, start, end);
+            sent = stamp.extract(partial, 0, partialLen);
+            partialLen = 0;
+        } else {
+            sent = stamp.extract(b, start, end);
+        }
+        if (sent > 0) {
+            latency.recordNanos(now - sent);
+        }
+    }
+
+    @OnWebSocketFrame
+    public void onFrame(Frame frame) {
+        try {
+            Frame.Type type = frame.getType();
+            if (type != Frame.Type.TEXT && type != Frame.Type.BINARY && type != Frame.Type.CONTINUATION) {
+                return;
+            }
+
+            if (!countLines && stamp == null) {
+                // Only the end of each message matters
+                if (frame.isFin()) {
+                    cnt.increment();
+                }
+                return;
+            }
+
+            // The payload is only valid during this call; scan it in place or from a reused copy
+            int n = frame.hasPayload() ? frame.getPayloadLength() : 0;
+            byte[] b;
+            int start;
+            if (n == 0) {
+                b = copy;
+                start = 0;
+            } else {
+                ByteBuffer payload = frame.getPayload();
+                if (payload.hasArray()) {
+                    b = payload.array();
+                    start = payload.arrayOffset() + payload.position();
+                } else {
+                    if (n > copy.length) {
+                        copy = new byte[Math.max(copy.length * 2, n)];
+                    }
+                    payload.duplicate().get(copy, 0, n);
+                    b = copy;
+                    start = 0;
+                }
+            }
+            int end = start + n;
+
+            long now = stamp == null ? 0 : EpochClock.nowNanos();
+            long records = 0;
+            int recordStart = start;
+            for (int i = start; i < end; i++) {
+                if (b[i] == '\n') {
+                    records++;
+                    if (stamp != null) {
+                        recordLatency(b, recordStart, i, now);
+                    }
+                    recordStart = i + 1;
+                }
+            }
+            if (recordStart < end) {
+                inRecord = true;
+                if (stamp != null) {
+                    appendPartial(b, recordStart, end);
+                }
+            } else if (records > 0) {
+                inRecord = false;
+            }
+
+            if (frame.isFin()) {
+                // Last record of a message without a trailing newline
+                if (inRecord) {
+                    records++;
+                    if (stamp != null) {
+                        recordLatency(b, end, end, now);
+                    }
+                    inRecord = false;
+                }
+                if (!countLines) {
+                    records = 1;
+                }
+            } else if (!countLines) {
+                records = 0;
+            }
+
+            cnt.add(records);
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+}
@@ -19,12 +19,21 @@
 /**
  * Used by WebSocketSink2
  *
+ * 17 Oct 2026: If stamp is set the send time stamp is read from each message (TimestampField) and the
+ * end-to-end latency is recorded (LatencyRecorder); WebSocketSink reports the percentiles.
+ * Messages up to WebSocketSinkFrames.MAX_MESSAGE_SIZE are accepted (was 64KB); WebSocketSinkFrames counts without decoding Strings.
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.sink;
 
+import com.esri.rttest.Counter;
+import com.esri.rttest.EpochClock;
+import com.esri.rttest.LatencyRecorder;
+import com.esri.rttest.TimestampField;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,35 +48,58 @@ import org.eclipse.jetty.websocket.api.annotations.WebSocket;
  *
  * @author david
  */
-@WebSocket(maxTextMessageSize = 64 * 1024)
-public class WebSocketSinkMsg {
+@WebSocket(maxTextMessageSize = WebSocketSinkFrames.MAX_MESSAGE_SIZE)
+public class WebSocketSinkMsg implements WebSocketSinkStats {
 
     private static final Logger LOG = LogManager.getLogger(WebSocketSinkMsg.class);
 
     boolean printMessages;
     int sampleEvery;
     Integer numSamples;
-    long cnt;
+    final Counter cnt = new Counter();
     SimpleRegression regression;
+    private final TimestampField stamp;
+    private final LatencyRecorder latency;
+
+    @Override
+    public long getCnt() {
+        return cnt.get();
+    }
 
-    public Long getCnt() {
-        return cnt;
+    @Override
+    public Histogram takeLatencyInterval() {
+        return latency == null ? null : latency.takeInterval();
     }
 
     private final CountDownLatch closeLatch;
-    @SuppressWarnings("unused")
-    private Session session;
+    private volatile Session session;
 
     public WebSocketSinkMsg(boolean printMessages) {
+        this(printMessages, null);
+    }
+
+    /**
+     *
+     * @param printMessages
+     * @param stamp Send time stamp in each message; null to only count messages
+     */
+    public WebSocketSinkMsg(boolean printMessages, TimestampField stamp) {
         this.closeLatch = new CountDownLatch(1);
         this.printMessages = printMessages;
-        this.cnt = 0L;
+        this.stamp = stamp;
+        this.latency = stamp == null ? null : new LatencyRecorder();
     }
 
+    @Override
     public boolean awaitClose(int duration, TimeUnit unit) throws InterruptedException {
         return this.closeLatch.await(duration, unit);
     }
 
+    @Override
+    public boolean isOpen() {
+        return session != null;
+    }
+
     @OnWebSocketClose
     public void onClose(int statusCode, String reason) {
         this.session = null;
@@ -83,7 +115,14 @@ public class WebSocketSinkMsg {
 
     @OnWebSocketMessage
     public void onMessage(String msg) {
-        this.cnt++;
+        this.cnt.increment();
+
+        if (stamp != null) {
+            long sent = stamp.extract(msg);
+            if (sent > 0) {
+                latency.recordNanos(EpochClock.nowNanos() - sent);
+            }
+        }
 
         if (printMessages) {
             System.out.println(msg);
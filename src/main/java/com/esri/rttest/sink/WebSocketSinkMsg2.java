@@ -19,10 +19,13 @@
 /**
  * Used by WebSocketSink2
  *
+ * 17 Oct 2026: cnt is a Counter (was a boxed Integer) and messages up to WebSocketSinkFrames.MAX_MESSAGE_SIZE are accepted.
+ *
  * Creator: David Jennings
  */
 package com.esri.rttest.sink;
 
+import com.esri.rttest.Counter;
 import java.util.Timer;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
@@ -42,7 +45,7 @@ import org.eclipse.jetty.websocket.api.annotations.WebSocket;
  *
  * @author david
  */
-@WebSocket(maxTextMessageSize = 64 * 1024)
+@WebSocket(maxTextMessageSize = WebSocketSinkFrames.MAX_MESSAGE_SIZE)
 public class WebSocketSinkMsg2 {
 
     private static final Logger LOG = LogManager.getLogger(WebSocketSinkMsg2.class);
@@ -51,11 +54,11 @@ public class WebSocketSinkMsg2 {
     int sampleEvery;
     Timer timer;
     Integer numSamples;
-    Integer cnt;
+    final Counter cnt = new Counter();
     SimpleRegression regression;
 
-    public Integer getCnt() {
-        return cnt;
+    public long getCnt() {
+        return cnt.get();
     }
 
     private final CountDownLatch closeLatch;
@@ -67,7 +70,6 @@ public class WebSocketSinkMsg2 {
         this.printmessages = printmessages;
         this.sampleEvery = sampleEvery;
         this.numSamples = 0;
-        this.cnt = 0;
         this.timer = new Timer();
         this.regression = new SimpleRegression();
 
@@ -86,10 +88,10 @@ public class WebSocketSinkMsg2 {
         if (numSamples > 5) {
             double rateStdErr = regression.getSlopeStdErr();
             System.out.println("Number of Samples,Count,Rate,StdErr");
-            System.out.format("%d, %d , %.2f, %.4f\n", numSamples, cnt, rcvRate, rateStdErr);
+            System.out.format("%d, %d , %.2f, %.4f\n", numSamples, cnt.get(), rcvRate, rateStdErr);
         } else if (numSamples >= 3) {
             System.out.println("Number of Samples,Count,Rate,StdErr");
-            System.out.format("%d, %d , %.2f\n", numSamples, cnt, rcvRate);
+            System.out.format("%d, %d , %.2f\n", numSamples, cnt.get(), rcvRate);
         }
 
         System.out.printf("Connection closed: %d - %s%n", statusCode, reason);
@@ -101,10 +103,10 @@ public class WebSocketSinkMsg2 {
     public void onConnect(Session session) {
         System.out.printf("Got connect: %s%n", session);
         this.session = session;
-        if (cnt > 0) {
+        if (cnt.get() > 0) {
             System.out.println("Websocket connected");
             numSamples = 0;
-            cnt = 0;
+            cnt.reset();
             timer = new Timer();
             regression = new SimpleRegression();
         }
@@ -118,11 +120,12 @@ public class WebSocketSinkMsg2 {
 
     @OnWebSocketMessage
     public void onMessage(String msg) {
-        cnt++;
+        cnt.increment();
+        long n = cnt.get();
 
-        if (cnt % sampleEvery == 0) {
+        if (n % sampleEvery == 0) {
             long t = System.currentTimeMillis();
-            regression.addData(t, cnt);
+            regression.addData(t, n);
             numSamples += 1;
 
             if (printmessages) {
@@ -131,9 +134,9 @@ public class WebSocketSinkMsg2 {
 
             if (numSamples > 2) {
                 double rcvRate = regression.getSlope() * 1000;
-                System.out.println(numSamples + "," + t + "," + cnt + "," + rcvRate);
+                System.out.println(numSamples + "," + t + "," + n + "," + rcvRate);
             } else {
-                System.out.println(numSamples + "," + t + "," + cnt);
+                System.out.println(numSamples + "," + t + "," + n);
             }
         }
     }
@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.sink;
+
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Counts exposed by the WebSocket sockets (WebSocketSinkMsg, WebSocketSinkFrames) so WebSocketSink
+ * can report the count and rate without knowing how the messages are read.
+ *
+ * @author david
+ */
+public interface WebSocketSinkStats {
+
+    /**
+     *
+     * @return Messages (or records) received; safe to call from any thread
+     */
+    long getCnt();
+
+    /**
+     * Only call from one (reporting) thread; see LatencyRecorder.takeInterval.
+     *
+     * @return Latencies since the last call; null if the messages are not stamped
+     */
+    Histogram takeLatencyInterval();
+
+    boolean awaitClose(int duration, TimeUnit unit) throws InterruptedException;
+
+    /**
+     *
+     * @return true if the session is connected
+     */
+    boolean isOpen();
+
+}